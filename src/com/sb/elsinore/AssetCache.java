@@ -0,0 +1,250 @@
+package com.sb.elsinore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Holds the static files in memory, so the scripts and styles of the pages
+ * are read off the SD card once rather than on every request.
+ * Each file is held as it is and, when it is text, gzipped as well, so a
+ * browser that accepts gzip gets the smaller copy over a slow link. A
+ * "name.gz" next to a file that is at least as new is used as its gzipped
+ * copy instead of compressing it here.
+ * A file is read again once its size or modification time changes, and
+ * the least recently used files are dropped when the cache goes over its
+ * size.
+ */
+public final class AssetCache {
+
+    /**
+     * The default most bytes held, both copies of a file count.
+     */
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Files larger than this are left to stream from the disk.
+     */
+    public static final long MAX_FILE_SIZE = 1024 * 1024;
+
+    /**
+     * A gzipped copy is only kept if it saves at least this fraction.
+     */
+    private static final double MIN_SAVING = 0.1;
+
+    private final long maxBytes;
+    /**
+     * The held files by path, least recently used first. Guards the counts.
+     */
+    private final LinkedHashMap<String, Asset> assets =
+        new LinkedHashMap<String, Asset>(64, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long loads = 0;
+    private long evictions = 0;
+
+    /**
+     * @param newMaxBytes The most bytes to hold, 0 or less to hold nothing.
+     */
+    public AssetCache(final long newMaxBytes) {
+        this.maxBytes = newMaxBytes;
+    }
+
+    /**
+     * Get a file, reading it if it isn't held or has changed.
+     * @param file The file.
+     * @param mime The MIME type of the file.
+     * @return The file, or null if it is too big to hold.
+     * @throws IOException If the file couldn't be read.
+     */
+    public Asset get(final File file, final String mime) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (length > MAX_FILE_SIZE || length > maxBytes / 2) {
+            return null;
+        }
+        String key = file.getPath();
+        synchronized (assets) {
+            Asset asset = assets.get(key);
+            if (asset != null && asset.length == length
+                    && asset.lastModified == lastModified) {
+                hits++;
+                return asset;
+            }
+            if (asset != null) {
+                remove(key);
+            }
+        }
+
+        // Read it outside the lock, other files can be served meanwhile
+        Asset asset = load(file, mime, length, lastModified);
+        synchronized (assets) {
+            loads++;
+            if (assets.containsKey(key)) {
+                remove(key);
+            }
+            assets.put(key, asset);
+            bytes += asset.size();
+            Iterator<Map.Entry<String, Asset>> oldest =
+                assets.entrySet().iterator();
+            while (bytes > maxBytes && oldest.hasNext()) {
+                Asset evicted = oldest.next().getValue();
+                if (evicted == asset) {
+                    continue;
+                }
+                oldest.remove();
+                bytes -= evicted.size();
+                evictions++;
+            }
+        }
+        return asset;
+    }
+
+    private void remove(final String key) {
+        Asset asset = assets.remove(key);
+        if (asset != null) {
+            bytes -= asset.size();
+        }
+    }
+
+    private static Asset load(final File file, final String mime,
+            final long length, final long lastModified) throws IOException {
+        byte[] identity = readFile(file);
+        byte[] gzip = null;
+        if (isCompressible(mime)) {
+            File precompressed = new File(file.getPath() + ".gz");
+            if (precompressed.isFile()
+                    && precompressed.lastModified() >= lastModified) {
+                gzip = readFile(precompressed);
+            } else {
+                ByteArrayOutputStream compressed =
+                    new ByteArrayOutputStream(identity.length / 3 + 64);
+                GZIPOutputStream out = new GZIPOutputStream(compressed);
+                out.write(identity);
+                out.close();
+                gzip = compressed.toByteArray();
+            }
+            if (gzip.length > identity.length * (1 - MIN_SAVING)) {
+                gzip = null;
+            }
+        }
+        return new Asset(length, lastModified, identity, gzip);
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        ByteArrayOutputStream content =
+            new ByteArrayOutputStream((int) file.length());
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                content.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * @param mime A MIME type.
+     * @return True if files of the type are worth gzipping.
+     */
+    private static boolean isCompressible(final String mime) {
+        return mime != null && (mime.startsWith("text/")
+            || mime.contains("javascript") || mime.contains("json")
+            || mime.contains("xml") || mime.contains("svg"));
+    }
+
+    /**
+     * @param acceptEncoding The Accept-Encoding header of a request, or null.
+     * @return True if the browser accepts gzip.
+     */
+    public static boolean acceptsGzip(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        // q=0 turns it down
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The size and hit counts of the cache as a map.
+     */
+    public Map<String, Object> getMapStatus() {
+        Map<String, Object> status = new HashMap<String, Object>();
+        synchronized (assets) {
+            status.put("files", assets.size());
+            status.put("bytes", bytes);
+            status.put("maxBytes", maxBytes);
+            status.put("hits", hits);
+            status.put("loads", loads);
+            status.put("evictions", evictions);
+        }
+        return status;
+    }
+
+    /**
+     * A file held in memory.
+     */
+    public static final class Asset {
+        private final long length;
+        private final long lastModified;
+        private final byte[] identity;
+        private final byte[] gzip;
+
+        private Asset(final long newLength, final long newLastModified,
+                final byte[] newIdentity, final byte[] newGzip) {
+            this.length = newLength;
+            this.lastModified = newLastModified;
+            this.identity = newIdentity;
+            this.gzip = newGzip;
+        }
+
+        private long size() {
+            return identity.length + (gzip == null ? 0 : gzip.length);
+        }
+
+        /**
+         * @return True if there is a gzipped copy.
+         */
+        public boolean hasGzip() {
+            return gzip != null;
+        }
+
+        /**
+         * @param gzipped True for the gzipped copy.
+         * @return The content, read without being copied.
+         */
+        public InputStream getStream(final boolean gzipped) {
+            return new ByteArrayInputStream(gzipped ? gzip : identity);
+        }
+    }
+}
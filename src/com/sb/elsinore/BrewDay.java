@@ -127,6 +127,7 @@ public final class BrewDay {
         
         timerElements.put(timerData.getKey(), timerData.getValue());
         timers.put(name, timerElements);
+        StatusVersion.bump();
     }
 
     /**
@@ -261,9 +262,28 @@ public final class BrewDay {
             return;
         }
         timers.put(name, null);
+        StatusVersion.bump();
         BrewServer.LOG.info("Added new timer: " + name);
     }
 
+    /**
+     * @return True if any timer is running, its seconds in the status then
+     *         change without the status version changing.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean isCounting() {
+        for (Object value : timers.values()) {
+            if (value != null) {
+                HashMap<String, Date> valueEntry = (HashMap<String, Date>) value;
+                if (valueEntry.get("start") != null
+                        && valueEntry.get("end") == null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Get the Status as a JSON Object.
      * 
@@ -2,24 +2,36 @@ package com.sb.elsinore;
 
 import jGPIO.InvalidGPIOException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.net.URLEncoder;
 import java.nio.file.Files;
 import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.Iterator;
 import java.util.StringTokenizer;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -27,16 +39,22 @@ import java.util.logging.Logger;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.rendersnake.HtmlCanvas;
 
 import com.sb.elsinore.NanoHTTPD.Response.Status;
+import com.sb.elsinore.devices.CompressorDevice;
+import com.sb.elsinore.recorder.ChangeDetector;
+import com.sb.elsinore.recorder.SegmentFormat;
+import com.sb.elsinore.recorder.SeriesQuery;
+import com.sb.elsinore.recorder.SessionCatalog;
+import com.sb.elsinore.recorder.TailCache;
+import com.sb.elsinore.recorder.SeriesReader;
 import com.sb.elsinore.NanoHTTPD.Response;
 import com.sb.elsinore.html.RenderHTML;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 
 /**
  * A custom HTTP server for Elsinore. Designed to be very simple and lightweight.
@@ -51,11 +69,47 @@ public class BrewServer extends NanoHTTPD {
      */
     private File rootDir;
 
+    /**
+     * The static files held in memory, sized by the asset_cache property in
+     * bytes, 0 to always read them from the disk.
+     */
+    private final AssetCache assetCache;
+
+    /**
+     * The session catalog of the recorder directory.
+     */
+    private SessionCatalog sessionCatalog = null;
+
     /**
      * The Logger object.
      */
     public static final Logger LOG = Logger.getLogger("com.sb.manager.Server");
 
+    /**
+     * The size of the pipe between the zip export thread and the response.
+     */
+    private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The default number of requests to run at once, each keep-alive
+     * connection holds one while it is open. Streams have their own.
+     */
+    private static final int HTTP_THREADS = 16;
+
+    /**
+     * The default number of connections to hold waiting for a thread
+     * before answering with a 503.
+     */
+    private static final int HTTP_QUEUE = 32;
+
+    /**
+     * The threads sending the status events to the WebSockets, one for
+     * each subscriber the broadcaster allows. A closed subscription wakes
+     * its sender, so a new socket only waits for a thread briefly.
+     */
+    private static final ExecutorService WEBSOCKET_SENDERS =
+        createWebSocketSenders();
+
     /**
      * Hashtable mapping (String)FILENAME_EXTENSION -> (String)MIME_TYPE.
      */
@@ -179,6 +233,15 @@ public class BrewServer extends NanoHTTPD {
                     + rootDir.getAbsolutePath());
         }
 
+        registerRoutes();
+        this.assetCache = new AssetCache(
+            Long.getLong("asset_cache", AssetCache.DEFAULT_MAX_BYTES));
+        setAsyncRunner(createAsyncRunner());
+        if ("nio".equalsIgnoreCase(System.getProperty("http_transport"))) {
+            LOG.info("Watching connections with a selector");
+            setSelectorTransport(true);
+        }
+
         LOG.info("Root Directory is: " + rootDir.toString());
 
         if (rootDir.exists() && rootDir.isDirectory()) {
@@ -1226,126 +1289,259 @@ public class BrewServer extends NanoHTTPD {
     }
 
     /**
-     * The main method that checks the data coming into the server.
-     * 
-     * @param uri
-     *            The URI requested
-     * @param method
-     *            The type of the request (GET/POST/DELETE)
-     * @param header
-     *            The header map from the request
-     * @param parms
-     *            The incoming Parameter map.
-     * @param files
-     *            A map of incoming files.
-     * @return A NanoHTTPD Response Object
+     * Handles the requests for one path.
      */
-    public final Response serve(final String uri, final Method method,
-            final Map<String, String> header, final Map<String, String> parms,
-            final Map<String, String> files) {
-
-        BrewServer.LOG.info("URL : " + uri + " method: " + method);
+    private interface Route {
+        /**
+         * @param uri The URI requested
+         * @param header The header map from the request
+         * @param parms The incoming Parameter map.
+         * @param files A map of incoming files.
+         * @return A NanoHTTPD Response Object, or null to carry on to the
+         *         static files.
+         */
+        Response serve(String uri, Map<String, String> header,
+                Map<String, String> parms, Map<String, String> files);
+    }
 
-        if (uri.equalsIgnoreCase("/clearStatus")) {
-            LaunchControl.setMessage("");
-            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                    "Status Cleared");
-        }
+    /**
+     * A route that doesn't change anything shown in the status. Serving
+     * any other route bumps the status version.
+     */
+    private interface ReadOnlyRoute extends Route {
+    }
 
-        // parms contains the properties here
-        if (uri.equalsIgnoreCase("/mashprofile")) {
-            if (updateMashProfile(parms)) {
-                return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                        "Updated MashProfile");
-            }
+    /**
+     * The routes for exact paths, keyed by method and lower case path.
+     */
+    private final Map<String, Route> routes = new HashMap<String, Route>();
 
-            return new NanoHTTPD.Response(Status.BAD_REQUEST, MIME_HTML,
-                    "Failed to update Mashprofile");
-        }
+    /**
+     * The routes for paths starting with a prefix, tried in order after
+     * the exact paths.
+     */
+    private final List<Entry<String, Route>> prefixRoutes =
+        new ArrayList<Entry<String, Route>>();
 
-        if (uri.equalsIgnoreCase("/addmashstep")) {
-            return addMashStep(parms);
-        }
+    /**
+     * @param method The method, null for any method.
+     * @param path The path, lower case.
+     * @return The key of the route in the route table.
+     */
+    private static String routeKey(final Method method, final String path) {
+        return (method == null ? "*" : method.name()) + " " + path;
+    }
 
-        if (uri.equalsIgnoreCase("/addsystem")) {
-            LaunchControl.addSystemTemp();
-            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                    "Added system temperature");
-        }
-        
-        if (uri.equalsIgnoreCase("/delsystem")) {
-            LaunchControl.delSystemTemp();
-            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                    "Deleted system temperature");
-        }
+    /**
+     * Register a route for an exact path, matched ignoring case.
+     * @param method The method to match, null for any method.
+     * @param path The path to match.
+     * @param route The route to serve it with.
+     */
+    private void addRoute(final Method method, final String path,
+            final Route route) {
+        routes.put(routeKey(method, path.toLowerCase(Locale.ENGLISH)), route);
+    }
 
-        if (uri.equalsIgnoreCase("/delmashstep")) {
-            return delMashStep(parms);
-        }
+    /**
+     * Register a route for every path starting with a prefix, matched
+     * ignoring case.
+     * @param prefix The prefix to match.
+     * @param route The route to serve it with.
+     */
+    private void addPrefixRoute(final String prefix, final Route route) {
+        prefixRoutes.add(new AbstractMap.SimpleImmutableEntry<String, Route>(
+            prefix.toLowerCase(Locale.ENGLISH), route));
+    }
 
-        if (uri.equalsIgnoreCase("/togglemash")) {
-            if (toggleMashProfile(parms)) {
-                return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                        "Toggled mash profile");
+    /**
+     * Find the route for a request.
+     * @param method The method of the request.
+     * @param uri The URI requested.
+     * @return The route, or null if there isn't one.
+     */
+    private Route findRoute(final Method method, final String uri) {
+        String path = uri.toLowerCase(Locale.ENGLISH);
+        Route route = null;
+        if (method != null) {
+            route = routes.get(routeKey(method, path));
+        }
+        if (route == null) {
+            route = routes.get(routeKey(null, path));
+        }
+        if (route == null) {
+            for (Entry<String, Route> prefixRoute : prefixRoutes) {
+                if (path.startsWith(prefixRoute.getKey())) {
+                    return prefixRoute.getValue();
+                }
             }
-            return new NanoHTTPD.Response(Status.BAD_REQUEST, MIME_HTML,
-                    "Failed to toggle MashProfile");
-        }
-
-        if (uri.equalsIgnoreCase("/reordermashprofile")) {
-            return reorderMashProfile(parms);
         }
+        return route;
+    }
 
-        if (uri.equalsIgnoreCase("/editdevice")) {
-            return editVessel(parms);
-        }
-        if (uri.equalsIgnoreCase("/updatepid")) {
-            // parse the values if possible
-            return updatePID(parms);
+    /**
+     * Serve a request with a route, bumping the status version if the
+     * route may have changed anything.
+     * @param route The route to serve the request with.
+     * @param uri The URI requested.
+     * @param header The header map from the request.
+     * @param parms The incoming Parameter map.
+     * @param files A map of incoming files.
+     * @return The response of the route, or null.
+     */
+    private Response serveRoute(final Route route, final String uri,
+            final Map<String, String> header, final Map<String, String> parms,
+            final Map<String, String> files) {
+        try {
+            return route.serve(uri, header, parms, files);
+        } finally {
+            if (!(route instanceof ReadOnlyRoute)) {
+                StatusVersion.bump();
+            }
         }
+    }
 
-        if (uri.equalsIgnoreCase("/updateday")) {
-            // we're storing the data for the brew day
-            String tempDateStamp;
-            BrewDay brewDay = LaunchControl.getBrewDay();
-
-            // updated date
-            if (parms.containsKey("updated")) {
-                tempDateStamp = parms.get("updated");
-                brewDay.setUpdated(tempDateStamp);
-            } else {
-                // we don't have an updated datestamp
+    /**
+     * Build the route table.
+     */
+    private void registerRoutes() {
+        addRoute(null, "/clearStatus", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                LaunchControl.setMessage("");
                 return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                        "No update datestamp, not updating a thang! YA HOSER!");
+                        "Status Cleared");
             }
+        });
 
-            Iterator<Entry<String, String>> it = parms.entrySet().iterator();
-            Entry<String, String> e = null;
+        addRoute(null, "/mashprofile", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                if (updateMashProfile(parms)) {
+                    return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                            "Updated MashProfile");
+                }
 
-            while (it.hasNext()) {
-                e = it.next();
+                return new NanoHTTPD.Response(Status.BAD_REQUEST, MIME_HTML,
+                        "Failed to update Mashprofile");
+            }
+        });
 
-                if (e.getKey().endsWith("Start")) {
-                    int trimEnd = e.getKey().length() - "Start".length();
-                    String name = e.getKey().substring(0, trimEnd);
-                    brewDay.startTimer(name, e.getValue());
-                } else if (e.getKey().endsWith("End")) {
-                    int trimEnd = e.getKey().length() - "End".length();
-                    String name = e.getKey().substring(0, trimEnd);
-                    brewDay.stopTimer(name, e.getValue());
-                } else if (e.getKey().endsWith("Reset")) {
-                    int trimEnd = e.getKey().length() - "Reset".length();
-                    String name = e.getKey().substring(0, trimEnd);
-                    brewDay.resetTimer(name);
-                }
+        addRoute(null, "/addmashstep", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return addMashStep(parms);
             }
+        });
 
-            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                    "Updated Brewday");
-        }
+        addRoute(null, "/addsystem", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                LaunchControl.addSystemTemp();
+                return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                        "Added system temperature");
+            }
+        });
 
-        if (uri.equalsIgnoreCase("/updatepump")) {
-            if (parms.containsKey("toggle")) {
+        addRoute(null, "/delsystem", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                LaunchControl.delSystemTemp();
+                return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                        "Deleted system temperature");
+            }
+        });
+
+        addRoute(null, "/delmashstep", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return delMashStep(parms);
+            }
+        });
+
+        addRoute(null, "/togglemash", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                if (toggleMashProfile(parms)) {
+                    return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                            "Toggled mash profile");
+                }
+                return new NanoHTTPD.Response(Status.BAD_REQUEST, MIME_HTML,
+                        "Failed to toggle MashProfile");
+            }
+        });
+
+        addRoute(null, "/reordermashprofile", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return reorderMashProfile(parms);
+            }
+        });
+
+        addRoute(null, "/editdevice", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return editVessel(parms);
+            }
+        });
+
+        addRoute(null, "/updatepid", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                // parse the values if possible
+                return updatePID(parms);
+            }
+        });
+
+        addRoute(null, "/updateday", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return updateDay(parms);
+            }
+        });
+
+        addRoute(null, "/updatepump", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                if (!parms.containsKey("toggle")) {
+                    return null;
+                }
                 String pumpname = parms.get("toggle");
                 Pump tempPump = LaunchControl.findPump(pumpname.replaceAll("_", " "));
                 if (tempPump != null) {
@@ -1366,10 +1562,17 @@ public class BrewServer extends NanoHTTPD {
                                     + " provided.");
                 }
             }
-        }
+        });
 
-        if (uri.equalsIgnoreCase("/toggleaux")) {
-            if (parms.containsKey("toggle")) {
+        addRoute(null, "/toggleaux", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                if (!parms.containsKey("toggle")) {
+                    return null;
+                }
                 String pidname = parms.get("toggle");
                 PID tempPID = LaunchControl.findPID(pidname);
                 if (tempPID != null) {
@@ -1385,235 +1588,738 @@ public class BrewServer extends NanoHTTPD {
                     return new Response(usage.toJSONString());
                 }
             }
-        }
-
-        if (uri.equalsIgnoreCase("/getstatus")) {
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    LaunchControl.getJSONStatus());
-        }
+        });
+
+        addRoute(null, "/getstatus", new ReadOnlyRoute() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                // Read the tag first, a change while the status is built
+                // then shows up as a new tag on the next request
+                String etag = StatusVersion.getTag();
+                Response response = null;
+                if (!notModified(header, etag, 0)) {
+                    // Shared with every other poller
+                    StatusCache.Snapshot status =
+                        StatusCache.getInstance().get();
+                    etag = status.getTag();
+                    if (!notModified(header, etag, 0)) {
+                        response = new NanoHTTPD.Response(Status.OK,
+                            MIME_TYPES.get("json"), status.getStream());
+                    }
+                }
+                if (response == null) {
+                    response = new NanoHTTPD.Response(Status.NOT_MODIFIED,
+                        MIME_TYPES.get("json"), "");
+                }
+                response.addHeader("ETag", etag);
+                response.addHeader("Cache-Control", "no-cache");
+                return response;
+            }
+        });
+
+        addRoute(Method.GET, "/events", new ReadOnlyRoute() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return getEvents(header, parms);
+            }
+        });
+
+        addRoute(null, "/compressorhistory", new ReadOnlyRoute() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                        getCompressorHistory());
+            }
+        });
+
+        addRoute(null, "/metrics", new ReadOnlyRoute() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                        getMetrics());
+            }
+        });
+
+        addRoute(null, "/getsystemsettings", new ReadOnlyRoute() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                        LaunchControl.getSystemStatus());
+            }
+        });
+
+        addRoute(null, "/updatesystemsettings", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                        updateSystemSettings(parms));
+            }
+        });
+
+        addRoute(null, "/oldcontroller", new ReadOnlyRoute() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                        LaunchControl.getControlPage());
+            }
+        });
+
+        addRoute(null, "/controller", new ReadOnlyRoute() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                RenderHTML renderController = new RenderHTML();
+                HtmlCanvas html = new HtmlCanvas();
+                String result = "";
+                try {
+                    renderController.renderOn(html);
+                    result = html.toHtml();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    result = e.getMessage();
+                }
+                return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                        result);
+            }
+        });
+
+        addRoute(null, "/timers", new ReadOnlyRoute() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return new NanoHTTPD.Response(Status.OK, MIME_HTML, LaunchControl
+                        .getBrewDay().brewDayStatus().toString());
+            }
+        });
+
+        addRoute(null, "/graph", new ReadOnlyRoute() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return serveFile("/templates/static/graph/graph.html", header,
+                        rootDir);
+            }
+        });
+
+        addRoute(null, "/graph-sessions", new ReadOnlyRoute() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return getGraphSessions(parms);
+            }
+        });
+
+        addPrefixRoute("/graph-data", new ReadOnlyRoute() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return getGraphData(parms);
+            }
+        });
+
+        addRoute(null, "/addpump", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return addPump(parms);
+            }
+        });
+
+        addRoute(null, "/addtimer", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return addTimer(parms);
+            }
+        });
+
+        addRoute(null, "/addvolpoint", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return addVolumePoint(parms);
+            }
+        });
+
+        addRoute(null, "/checkgit", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                LaunchControl.checkForUpdates();
+                return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                        "{Status:'OK'}");
+            }
+        });
+
+        addRoute(null, "/restartupdate", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                LaunchControl.updateFromGit();
+                return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                        "{Status:'OK'}");
+            }
+        });
+
+        addRoute(null, "/setbreweryname", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                updateBreweryName(parms);
+                return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                        "{Status:'OK'}");
+            }
+        });
+
+        addRoute(null, "/settheme", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return setTheme(parms);
+            }
+        });
+
+        addRoute(null, "/favicon.ico", new ReadOnlyRoute() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                // Has the favicon been overridden?
+                // Check to see if there's a theme set.
+                if (LaunchControl.theme != null
+                        && !LaunchControl.theme.equals("")) {
+                    if (new File(rootDir,
+                            "/logos/" + LaunchControl.theme + ".ico").exists()) {
+                        return serveFile("/logos/" + LaunchControl.theme + ".ico",
+                                header, rootDir);
+                    }
+                }
+                // Carry on to the static file
+                return null;
+            }
+        });
 
-        if (uri.equalsIgnoreCase("/getsystemsettings")) {
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    LaunchControl.getSystemStatus());
-        }
+        // NLS Support
+        addPrefixRoute("/nls/", new ReadOnlyRoute() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return serveFile(uri.replace("/nls/", "/src/com/sb/elsinore/nls/"),
+                    header, rootDir);
+            }
+        });
+
+        addRoute(null, "/brewerImage.gif", new ReadOnlyRoute() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                // Has the user uploaded a file?
+                if (new File(rootDir, uri).exists()) {
+                    return serveFile(uri, header, rootDir);
+                }
+                // Check to see if there's a theme set.
+                if (LaunchControl.theme != null
+                        && !LaunchControl.theme.equals("")) {
+                    if (new File(rootDir,
+                            "/logos/" + LaunchControl.theme + ".gif").exists()) {
+                        return serveFile("/logos/" + LaunchControl.theme + ".gif",
+                                header, rootDir);
+                    }
+                }
+                return null;
+            }
+        });
+
+        addRoute(null, "/uploadimage", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return updateBreweryImage(files);
+            }
+        });
+
+        addRoute(null, "/updatepumporder", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return updatePumpOrder(parms);
+            }
+        });
+
+        addRoute(null, "/deletepump", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return deletePump(parms);
+            }
+        });
+
+        addRoute(null, "/unlockpage", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                LaunchControl.unlockPage();
+                return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                        "{status: 'unlocked'}");
+            }
+        });
+
+        addRoute(null, "/lockpage", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                LaunchControl.lockPage();
+                return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                        "{status: 'locked'}");
+            }
+        });
+
+        addRoute(null, "/updatetimerorder", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return updateTimerOrder(parms);
+            }
+        });
+
+        addRoute(null, "/deletetimer", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return deleteTimer(parms);
+            }
+        });
+
+        addRoute(null, "/setscale", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return setScale(parms);
+            }
+        });
+
+        addRoute(null, "/toggledevice", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                return toggleDevice(parms);
+            }
+        });
+
+        addRoute(null, "/stop", new Route() {
+            @Override
+            public Response serve(final String uri,
+                    final Map<String, String> header,
+                    final Map<String, String> parms,
+                    final Map<String, String> files) {
+                System.exit(128);
+                return null;
+            }
+        });
+    }
 
-        if (uri.equalsIgnoreCase("/updatesystemsettings")) {
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    updateSystemSettings(parms));
-        }
+    /**
+     * The main method that checks the data coming into the server.
+     * Requests go to the route table first and then to the static files.
+     * 
+     * @param uri
+     *            The URI requested
+     * @param method
+     *            The type of the request (GET/POST/DELETE)
+     * @param header
+     *            The header map from the request
+     * @param parms
+     *            The incoming Parameter map.
+     * @param files
+     *            A map of incoming files.
+     * @return A NanoHTTPD Response Object
+     */
+    public final Response serve(final String uri, final Method method,
+            final Map<String, String> header, final Map<String, String> parms,
+            final Map<String, String> files) {
 
-        if (uri.equalsIgnoreCase("/oldcontroller")) {
-            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                    LaunchControl.getControlPage());
-        }
+        BrewServer.LOG.info("URL : " + uri + " method: " + method);
 
-        if (uri.equalsIgnoreCase("/controller")) {
-            RenderHTML renderController = new RenderHTML();
-            HtmlCanvas html = new HtmlCanvas();
-            String result = "";
-            try {
-                renderController.renderOn(html);
-                result = html.toHtml();
-            } catch (IOException e) {
-                e.printStackTrace();
-                result = e.getMessage();
+        Route route = findRoute(method, uri);
+        if (route != null) {
+            Response response = serveRoute(route, uri, header, parms, files);
+            if (response != null) {
+                return response;
             }
-            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
-                    result);
         }
 
-        if (uri.equalsIgnoreCase("/timers")) {
-            return new NanoHTTPD.Response(Status.OK, MIME_HTML, LaunchControl
-                    .getBrewDay().brewDayStatus().toString());
+        if (!uri.equals("") && new File(rootDir, uri).exists()) {
+            return serveFile(uri, header, rootDir);
         }
 
-        if (uri.equalsIgnoreCase("/graph")) {
-            return serveFile("/templates/static/graph/graph.html", header,
-                    rootDir);
-        }
+        BrewServer.LOG.info("Unidentified URL: " + uri);
+        JSONObject usage = new JSONObject();
+        usage.put("controller", "Get the main controller page");
+        usage.put("getstatus", "Get the current status as a JSON object");
+        usage.put("timers", "Get the current timer status");
 
-        if (uri.toLowerCase().startsWith("/graph-data")) {
-            return getGraphData(parms);
-        }
+        usage.put("addpump", "Add a new pump");
+        usage.put("addtimer", "Add a new timer");
+        usage.put("addvolpoint", "Add a new volume point");
 
-        if (uri.equalsIgnoreCase("/addpump")) {
-            return addPump(parms);
-        }
+        usage.put("toggleaux", "toggle an aux output");
+        usage.put("mashprofile", "Set a mash profile for the output");
+        usage.put("editdevice", "Edit the settings on a device");
 
-        if (uri.equalsIgnoreCase("/addtimer")) {
-            return addTimer(parms);
-        }
+        usage.put("updatepid", "Update the PID Settings");
+        usage.put("updateday", "Update the brewday information");
+        usage.put("updatepump", "Change the pump status off/on");
+        usage.put("compressorhistory",
+                "Get the run history of the compressor outputs");
+        usage.put("metrics",
+                "Get the requested and achieved duty and timing of the outputs");
 
-        if (uri.equalsIgnoreCase("/addvolpoint")) {
-            return addVolumePoint(parms);
-        }
+        BrewServer.LOG.info("Invalid URI: " + uri);
+        return new NanoHTTPD.Response(Status.NOT_FOUND, MIME_TYPES.get("json"),
+                usage.toJSONString());
+    }
 
-        if (uri.equalsIgnoreCase("/checkgit")) {
-            LaunchControl.checkForUpdates();
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    "{Status:'OK'}");
-        }
+    /**
+     * Subscribe to the status as a stream of Server-Sent Events.
+     * @param header The headers, a reconnecting browser sends the
+     *            Last-Event-ID it saw.
+     * @param parms The parameters, lastEventId can be used in place of the
+     *            header.
+     * @return A chunked event stream, or a 503 if there are too many
+     *         subscribers.
+     */
+    private Response getEvents(final Map<String, String> header,
+            final Map<String, String> parms) {
+        String lastEventId = header.get("last-event-id");
+        if (lastEventId == null) {
+            lastEventId = parms.get("lastEventId");
+        }
+        InputStream events =
+            StatusBroadcaster.getInstance().subscribeStream(lastEventId);
+        if (events == null) {
+            Response response = new Response(Status.SERVICE_UNAVAILABLE,
+                MIME_PLAINTEXT, "Too many event streams open.");
+            response.addHeader("Retry-After", "10");
+            return response;
+        }
+        Response response = new Response(Status.OK, "text/event-stream",
+            events);
+        response.addHeader("Cache-Control", "no-cache");
+        response.setChunkedTransfer(true);
+        return response;
+    }
 
-        if (uri.equalsIgnoreCase("/restartupdate")) {
-            LaunchControl.updateFromGit();
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    "{Status:'OK'}");
+    /**
+     * Accept WebSocket connections to /ws for status and control.
+     * @param session The HTTP session of the upgrade request
+     * @return The handler for the socket, or null for any other path.
+     */
+    @Override
+    protected WebSocket.Handler openWebSocket(final IHTTPSession session) {
+        if (!"/ws".equalsIgnoreCase(session.getUri())) {
+            return null;
         }
+        return new ControlSocket();
+    }
 
-        if (uri.equalsIgnoreCase("/setbreweryname")) {
-            updateBreweryName(parms);
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    "{Status:'OK'}");
+    /**
+     * A WebSocket carrying the status out and commands in.
+     * The server sends each status event from the {@link StatusBroadcaster}
+     * as {"event": "status" or "delta", "id": n, "data": {...}}.
+     * The client sends {"id": n, "command": "/updatepid", "params": {...}},
+     * which is served by the route for the command as a POST, and is
+     * answered with {"id": n, "status": code, "body": "..."}.
+     */
+    private final class ControlSocket implements WebSocket.Handler {
+        private StatusBroadcaster.Subscription subscription = null;
+
+        @Override
+        public void onOpen(final WebSocket socket) {
+            subscription = StatusBroadcaster.getInstance().subscribe(null);
+            if (subscription == null) {
+                socket.close();
+                return;
+            }
+            WEBSOCKET_SENDERS.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendEvents(socket);
+                }
+            });
         }
 
-        if (uri.equalsIgnoreCase("/settheme")) {
-            String newTheme = parms.get("name");
-
-            if (newTheme == null) {
-                return new NanoHTTPD.Response(Status.BAD_REQUEST,
-                        MIME_TYPES.get("json"),
-                        "{Status:'No name provided'}");
-            }
-
-            String fileName = "/logos/" + newTheme + ".ico";
-            if (!(new File(rootDir, fileName).exists())) {
-                // It doesn't exist
-                LaunchControl.setMessage("Favicon for the new theme: "
-                        + newTheme + ", doesn't exist."
-                        + " Please add: " + fileName + " and try again");
-                return new NanoHTTPD.Response(Status.BAD_REQUEST,
-                        MIME_TYPES.get("json"),
-                        "{Status:'Favicon doesn\'t exist'}");
-            }
-
-            fileName = "/logos/" + newTheme + ".gif";
-            if (!(new File(rootDir, fileName).exists())) {
-                // It doesn't exist
-                LaunchControl.setMessage("Brewry image for the new theme: "
-                        + newTheme + ", doesn't exist."
-                        + " Please add: " + fileName + " and try again");
-                return new NanoHTTPD.Response(Status.BAD_REQUEST,
-                        MIME_TYPES.get("json"),
-                        "{Status:'Brewery Image doesn\'t exist'}");
+        /**
+         * Send the status events until the socket or the subscription
+         * closes, a dropped subscriber closes the socket so the client
+         * reconnects and starts over.
+         */
+        private void sendEvents(final WebSocket socket) {
+            try {
+                while (socket.isOpen() && !subscription.isClosed()) {
+                    StatusBroadcaster.Event event = subscription.poll(
+                        StatusBroadcaster.HEARTBEAT_INTERVAL);
+                    if (event != null) {
+                        socket.sendFrame(event.getFrame());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                LOG.info("WebSocket closed: " + e.getMessage());
             }
-
-            LaunchControl.theme = newTheme;
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    "{Status:'OK'}");
-
+            subscription.close();
+            socket.close();
         }
 
-        if (uri.equalsIgnoreCase("/favicon.ico")) {
-            // Has the favicon been overridden?
-            // Check to see if there's a theme set.
-            if (LaunchControl.theme != null
-                    && !LaunchControl.theme.equals("")) {
-                if (new File(rootDir,
-                        "/logos/" + LaunchControl.theme + ".ico").exists()) {
-                    return serveFile("/logos/" + LaunchControl.theme + ".ico",
-                            header, rootDir);
+        @Override
+        public void onMessage(final WebSocket socket, final String message) {
+            JSONObject reply = new JSONObject();
+            try {
+                JSONObject request =
+                    (JSONObject) new JSONParser().parse(message);
+                reply.put("id", request.get("id"));
+                String command = (String) request.get("command");
+                Route route = command == null ? null
+                    : findRoute(Method.POST, command);
+                Response response = null;
+                if (route != null) {
+                    response = serveRoute(route, command,
+                        new HashMap<String, String>(),
+                        commandParams((JSONObject) request.get("params")),
+                        new HashMap<String, String>());
+                }
+                if (response == null) {
+                    reply.put("status", Status.NOT_FOUND.getRequestStatus());
+                } else {
+                    reply.put("status",
+                        response.getStatus().getRequestStatus());
+                    reply.put("body", responseBody(response));
                 }
+            } catch (Exception e) {
+                reply.put("status", Status.BAD_REQUEST.getRequestStatus());
+                reply.put("body", "Bad command: " + e.getMessage());
             }
-
-            if (new File(rootDir, uri).exists()) {
-                return serveFile(uri, header, rootDir);
+            try {
+                socket.send(reply.toJSONString());
+            } catch (IOException e) {
+                socket.close();
             }
-
-        }
-
-        // NLS Support
-        if (uri.startsWith("/nls/")) {
-            return serveFile(uri.replace("/nls/", "/src/com/sb/elsinore/nls/"),
-                header, rootDir);
         }
 
-        if (uri.equalsIgnoreCase("/brewerImage.gif")) {
-            // Has the user uploaded a file?
-            if (new File(rootDir, uri).exists()) {
-                return serveFile(uri, header, rootDir);
+        @Override
+        public void onClose(final WebSocket socket) {
+            if (subscription != null) {
+                subscription.close();
             }
-            // Check to see if there's a theme set.
-            if (LaunchControl.theme != null
-                    && !LaunchControl.theme.equals("")) {
-                if (new File(rootDir,
-                        "/logos/" + LaunchControl.theme + ".gif").exists()) {
-                    return serveFile("/logos/" + LaunchControl.theme + ".gif",
-                            header, rootDir);
-                }
-            }
-
-
-        }
-
-        if (!uri.equals("") && new File(rootDir, uri).exists()) {
-            return serveFile(uri, header, rootDir);
-        }
-
-        if (uri.equalsIgnoreCase("/uploadimage")) {
-            return updateBreweryImage(files);
-        }
-
-        if (uri.equalsIgnoreCase("/updatepumporder")) {
-            return updatePumpOrder(parms);
-        }
-
-        if (uri.equalsIgnoreCase("/deletepump")) {
-            return deletePump(parms);
         }
+    }
 
-        if (uri.equalsIgnoreCase("/unlockpage")) {
-            LaunchControl.unlockPage();
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    "{status: 'unlocked'}");
+    /**
+     * Turn the params of a WebSocket command into the parameter map the
+     * routes expect.
+     * @param params The params, may be null.
+     * @return The parameters as strings, with objects and arrays as JSON.
+     */
+    private static Map<String, String> commandParams(final JSONObject params) {
+        Map<String, String> parms = new HashMap<String, String>();
+        if (params == null) {
+            return parms;
+        }
+        for (Object entry : params.entrySet()) {
+            Entry<?, ?> param = (Entry<?, ?>) entry;
+            Object value = param.getValue();
+            parms.put(String.valueOf(param.getKey()),
+                value instanceof String ? (String) value
+                    : JSONValue.toJSONString(value));
         }
+        return parms;
+    }
 
-        if (uri.equalsIgnoreCase("/lockpage")) {
-            LaunchControl.lockPage();
-            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
-                    "{status: 'locked'}");
+    /**
+     * Read the body of a response to a WebSocket command, only text bodies
+     * are passed back.
+     * @param response The response.
+     * @return The body, or null if it isn't text.
+     * @throws IOException If the body couldn't be read.
+     */
+    private static String responseBody(final Response response)
+            throws IOException {
+        InputStream data = response.getData();
+        String mimeType = response.getMimeType();
+        try {
+            if (data == null || mimeType == null
+                    || !(mimeType.startsWith("text/")
+                        || mimeType.equals(MIME_TYPES.get("json")))
+                    || mimeType.equals("text/event-stream")) {
+                return null;
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = data.read(buffer)) > 0) {
+                body.write(buffer, 0, read);
+            }
+            return body.toString("UTF-8");
+        } finally {
+            if (data != null) {
+                data.close();
+            }
         }
+    }
 
-        if (uri.equalsIgnoreCase("/updatetimerorder")) {
-            return updateTimerOrder(parms);
+    /**
+     * Update the brew day timers.
+     * @param parms The updated datestamp and the timers to start, stop or
+     *            reset.
+     * @return A NanoHTTPD Response Object
+     */
+    private Response updateDay(final Map<String, String> parms) {
+        // we're storing the data for the brew day
+        String tempDateStamp;
+        BrewDay brewDay = LaunchControl.getBrewDay();
+
+        // updated date
+        if (parms.containsKey("updated")) {
+            tempDateStamp = parms.get("updated");
+            brewDay.setUpdated(tempDateStamp);
+        } else {
+            // we don't have an updated datestamp
+            return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                    "No update datestamp, not updating a thang! YA HOSER!");
         }
 
-        if (uri.equalsIgnoreCase("/deletetimer")) {
-            return deleteTimer(parms);
-        }
+        Iterator<Entry<String, String>> it = parms.entrySet().iterator();
+        Entry<String, String> e = null;
 
-        if (uri.equalsIgnoreCase("/setscale")) {
-            return setScale(parms);
-        }
+        while (it.hasNext()) {
+            e = it.next();
 
-        if (uri.equalsIgnoreCase("/toggledevice")) {
-            return toggleDevice(parms);
-        }
-        
-        if (uri.equalsIgnoreCase("/stop")) {
-            System.exit(128);
+            if (e.getKey().endsWith("Start")) {
+                int trimEnd = e.getKey().length() - "Start".length();
+                String name = e.getKey().substring(0, trimEnd);
+                brewDay.startTimer(name, e.getValue());
+            } else if (e.getKey().endsWith("End")) {
+                int trimEnd = e.getKey().length() - "End".length();
+                String name = e.getKey().substring(0, trimEnd);
+                brewDay.stopTimer(name, e.getValue());
+            } else if (e.getKey().endsWith("Reset")) {
+                int trimEnd = e.getKey().length() - "Reset".length();
+                String name = e.getKey().substring(0, trimEnd);
+                brewDay.resetTimer(name);
+            }
         }
 
-        BrewServer.LOG.info("Unidentified URL: " + uri);
-        JSONObject usage = new JSONObject();
-        usage.put("controller", "Get the main controller page");
-        usage.put("getstatus", "Get the current status as a JSON object");
-        usage.put("timers", "Get the current timer status");
-
-        usage.put("addpump", "Add a new pump");
-        usage.put("addtimer", "Add a new timer");
-        usage.put("addvolpoint", "Add a new volume point");
-
-        usage.put("toggleaux", "toggle an aux output");
-        usage.put("mashprofile", "Set a mash profile for the output");
-        usage.put("editdevice", "Edit the settings on a device");
-
-        usage.put("updatepid", "Update the PID Settings");
-        usage.put("updateday", "Update the brewday information");
-        usage.put("updatepump", "Change the pump status off/on");
+        return new NanoHTTPD.Response(Status.OK, MIME_HTML,
+                "Updated Brewday");
+    }
 
-        BrewServer.LOG.info("Invalid URI: " + uri);
-        return new NanoHTTPD.Response(Status.NOT_FOUND, MIME_TYPES.get("json"),
-                usage.toJSONString());
+    /**
+     * Change the theme, once its logos are in place.
+     * @param parms The name of the new theme.
+     * @return A NanoHTTPD Response Object
+     */
+    private Response setTheme(final Map<String, String> parms) {
+        String newTheme = parms.get("name");
+
+        if (newTheme == null) {
+            return new NanoHTTPD.Response(Status.BAD_REQUEST,
+                    MIME_TYPES.get("json"),
+                    "{Status:'No name provided'}");
+        }
+
+        String fileName = "/logos/" + newTheme + ".ico";
+        if (!(new File(rootDir, fileName).exists())) {
+            // It doesn't exist
+            LaunchControl.setMessage("Favicon for the new theme: "
+                    + newTheme + ", doesn't exist."
+                    + " Please add: " + fileName + " and try again");
+            return new NanoHTTPD.Response(Status.BAD_REQUEST,
+                    MIME_TYPES.get("json"),
+                    "{Status:'Favicon doesn\'t exist'}");
+        }
+
+        fileName = "/logos/" + newTheme + ".gif";
+        if (!(new File(rootDir, fileName).exists())) {
+            // It doesn't exist
+            LaunchControl.setMessage("Brewry image for the new theme: "
+                    + newTheme + ", doesn't exist."
+                    + " Please add: " + fileName + " and try again");
+            return new NanoHTTPD.Response(Status.BAD_REQUEST,
+                    MIME_TYPES.get("json"),
+                    "{Status:'Brewery Image doesn\'t exist'}");
+        }
+
+        LaunchControl.theme = newTheme;
+        return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                "{Status:'OK'}");
     }
 
     /**
@@ -1751,76 +2457,90 @@ public class BrewServer extends NanoHTTPD {
                 if (mime == null) {
                     mime = NanoHTTPD.MIME_HTML;
                 }
-                // Calculate etag
-                String etag = Integer.toHexString((f.getAbsolutePath()
-                        + f.lastModified() + "" + f.length()).hashCode());
+                // The validators change whenever the file is replaced
+                long lastModified = f.lastModified();
+                String etag = "\"" + Long.toHexString(f.length()) + "-"
+                        + Long.toHexString(lastModified) + "\"";
+                String modified = formatHttpDate(lastModified);
 
-                // Support (simple) skipping:
-                long startFrom = 0;
-                long endAt = -1;
+                // A single range, "first-last", "first-" or "-suffix"
+                long fileLen = f.length();
+                long startFrom = -1;
+                long endAt = fileLen - 1;
                 String range = header.get("range");
-                if (range != null) {
-                    if (range.startsWith("bytes=")) {
-                        range = range.substring("bytes=".length());
-                        int minus = range.indexOf('-');
-                        try {
-                            if (minus > 0) {
-                                startFrom = Long.parseLong(range.substring(0,
-                                        minus));
-                                endAt = Long.parseLong(range
-                                        .substring(minus + 1));
+                String ifRange = header.get("if-range");
+                if (range != null && ifRange != null
+                        && !ifRange.trim().equals(etag)
+                        && !ifRange.trim().equals(modified)) {
+                    // The file has changed, send all of it
+                    range = null;
+                }
+                if (range != null && range.startsWith("bytes=")
+                        && range.indexOf(',') < 0) {
+                    range = range.substring("bytes=".length()).trim();
+                    int minus = range.indexOf('-');
+                    try {
+                        if (minus == 0) {
+                            long suffix = Long.parseLong(range.substring(1));
+                            startFrom = Math.max(0, fileLen - suffix);
+                        } else if (minus > 0) {
+                            startFrom = Long.parseLong(range.substring(0,
+                                    minus));
+                            if (minus < range.length() - 1) {
+                                endAt = Math.min(endAt, Long.parseLong(
+                                        range.substring(minus + 1)));
                             }
-                        } catch (NumberFormatException ignored) {
-                            BrewServer.LOG.info(ignored.getMessage());
                         }
+                    } catch (NumberFormatException ignored) {
+                        BrewServer.LOG.info(ignored.getMessage());
+                        startFrom = -1;
                     }
                 }
 
                 // Change return code and add Content-Range header
                 // when skipping is requested
-                long fileLen = f.length();
-                if (range != null && startFrom >= 0) {
-                    if (startFrom >= fileLen) {
+                if (startFrom >= 0) {
+                    if (startFrom >= fileLen || endAt < startFrom) {
                         res = new Response(
                                 Response.Status.RANGE_NOT_SATISFIABLE,
                                 NanoHTTPD.MIME_PLAINTEXT, "");
-                        res.addHeader("Content-Range", "bytes 0-0/" + fileLen);
+                        res.addHeader("Content-Range", "bytes */" + fileLen);
                         res.addHeader("ETag", etag);
                     } else {
-                        if (endAt < 0) {
-                            endAt = fileLen - 1;
-                        }
-                        long newLen = endAt - startFrom + 1;
-                        if (newLen < 0) {
-                            newLen = 0;
-                        }
-
-                        final long dataLen = newLen;
-                        FileInputStream fis = new FileInputStream(f) {
-                            @Override
-                            public int available() throws IOException {
-                                return (int) dataLen;
-                            }
-                        };
-                        fis.skip(startFrom);
-
                         res = new Response(Response.Status.PARTIAL_CONTENT,
-                                mime, fis);
-                        res.addHeader("Content-Length", "" + dataLen);
+                                mime, f, startFrom, endAt - startFrom + 1);
                         res.addHeader("Content-Range", "bytes " + startFrom
                                 + "-" + endAt + "/" + fileLen);
                         res.addHeader("ETag", etag);
+                        res.addHeader("Last-Modified", modified);
                     }
                 } else {
-                    if (etag.equals(header.get("if-none-match"))) {
+                    AssetCache.Asset asset = assetCache.get(f, mime);
+                    boolean gzip = asset != null && asset.hasGzip()
+                        && AssetCache.acceptsGzip(
+                            header.get("accept-encoding"));
+                    if (gzip) {
+                        // Each copy has its own tag
+                        etag = etag.substring(0, etag.length() - 1) + "-gz\"";
+                    }
+                    if (notModified(header, etag, lastModified)) {
                         res = new Response(Response.Status.NOT_MODIFIED, mime,
                                 "");
+                    } else if (asset != null) {
+                        res = new Response(Response.Status.OK, mime,
+                                asset.getStream(gzip));
                     } else {
                         res = new Response(Response.Status.OK, mime,
-                                new FileInputStream(f));
-                        res.addHeader("Content-Length", "" + fileLen);
-                        res.addHeader("ETag", etag);
+                                f, 0, fileLen);
                     }
+                    if (gzip) {
+                        res.addHeader("Content-Encoding", "gzip");
+                    }
+                    if (asset != null && asset.hasGzip()) {
+                        res.addHeader("Vary", "Accept-Encoding");
+                    }
+                    res.addHeader("ETag", etag);
+                    res.addHeader("Last-Modified", modified);
                 }
             }
         } catch (IOException ioe) {
@@ -1833,6 +2553,61 @@ public class BrewServer extends NanoHTTPD {
         return res;
     }
 
+    /**
+     * Check the validators of a conditional request, If-None-Match is used
+     * when there is one and If-Modified-Since otherwise.
+     * @param header The headers of the request.
+     * @param etag The entity tag of what would be sent, quoted.
+     * @param lastModified The time it was last modified, or 0 if unknown.
+     * @return True if the browser already has it and 304 can be sent.
+     */
+    static boolean notModified(final Map<String, String> header,
+            final String etag, final long lastModified) {
+        String ifNoneMatch = header.get("if-none-match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                // A weak comparison is enough for a GET
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = header.get("if-modified-since");
+        if (ifModifiedSince == null || lastModified <= 0) {
+            return false;
+        }
+        try {
+            // HTTP dates only hold whole seconds
+            return lastModified / 1000
+                <= httpDateFormat().parse(ifModifiedSince).getTime() / 1000;
+        } catch (java.text.ParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param time A time in milliseconds.
+     * @return The time as an HTTP date.
+     */
+    static String formatHttpDate(final long time) {
+        return httpDateFormat().format(new Date(time));
+    }
+
+    /**
+     * @return A new format for HTTP dates, they aren't thread safe.
+     */
+    private static DateFormat httpDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(
+            "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
     /**
      * URL-encodes everything between "/"-characters. Encodes spaces as '%20'
      * instead of '+'.
@@ -2006,40 +2781,54 @@ public class BrewServer extends NanoHTTPD {
             vessel = (String) parms.get("vessel");
         }
 
-        // Read CSV files and make a JSON Response
-
-        // Assume live for now until we can build a UI to deal with this
-        boolean live = true;
+        // An optional time range in epoch milliseconds, both ends inclusive
+        long after = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        try {
+            if (params.containsKey("from")) {
+                after = Long.parseLong(params.get("from")) - 1;
+            }
+            if (params.containsKey("to")) {
+                to = Long.parseLong(params.get("to"));
+            }
+        } catch (NumberFormatException nfe) {
+            return new NanoHTTPD.Response(Status.BAD_REQUEST,
+                    NanoHTTPD.MIME_PLAINTEXT, "Invalid from or to time");
+        }
 
-        // If Live - read newest set
-        String directory = null;
-        if (live) {
+        // The client sends back the cursors from the last response
+        // to get only the newer points
+        Map<String, Long> cursors = null;
+        if (parms.containsKey("cursors")) {
+            cursors = parseCursors(parms.get("cursors"));
+        }
+        JSONObject newCursors = new JSONObject();
 
-            long newest = 0;
-            File file = new File("graph-data/");
-            if (file.isDirectory()) {
-                File[] contents = file.listFiles();
-                for (File content : contents) {
-                    String name = content.getName();
-                    try {
-                        long current = Long.parseLong(name);
-                        if (current > newest) {
-                            newest = current;
-                        }
-                    } catch (NumberFormatException nfe) {
-                        // Skip
-                    }
-                }
+        // Use the newest session unless the client asked for another one
+        SessionCatalog catalog = getSessionCatalog();
+        long session = catalog.newest();
+        if (params.containsKey("session")) {
+            try {
+                session = Long.parseLong(params.get("session"));
+            } catch (NumberFormatException nfe) {
+                session = -1L;
+            }
+            if (!catalog.contains(session)) {
+                return new NanoHTTPD.Response(Status.NOT_FOUND,
+                        NanoHTTPD.MIME_PLAINTEXT, "Unknown session: "
+                        + params.get("session"));
             }
-            directory = String.valueOf(newest);
         }
+        File directoryFile = catalog.sessionDirectory(session);
 
-        // Else Read based on time
-
-        // Get files from directory
-        File directoryFile = new File("graph-data/" + directory);
+        // The recorder keeps the newest points of its session in memory
+        TailCache tail = null;
+        StatusRecorder recorder = LaunchControl.getRecorder();
+        if (recorder != null && recorder.getSessionId() == session) {
+            tail = recorder.getTail();
+        }
 
-        File[] contents = directoryFile.listFiles();
+        Map<String, List<File>> seriesFiles = catalog.seriesFiles(session);
         JSONObject xsData = new JSONObject();
         JSONObject axes = new JSONObject();
         JSONObject columns = new JSONObject();
@@ -2049,42 +2838,14 @@ public class BrewServer extends NanoHTTPD {
         // Are we downloading the files?
         if (params.containsKey("download")
                 && params.get("download").equalsIgnoreCase("true")) {
-            String zipFileName = "graph-data/zipdownload-"
-                + currentTime + ".zip";
-            ZipFile zipFile = null;
-            try {
-                zipFile = new ZipFile(zipFileName);
-            } catch (FileNotFoundException ioe) {
-                BrewServer.LOG.warning(
-                        "Couldn't create zip file at: " + zipFileName);
-                BrewServer.LOG.warning(ioe.getLocalizedMessage());
-            }
-
-            for (File content : contents) {
-                try {
-                    if (content.getName().endsWith(".csv")
-                            && content.getName().toLowerCase()
-                                    .startsWith(vessel.toLowerCase())) {
-                        zipFile.addToZipFile(content.getAbsolutePath());
-                    }
-                } catch (IOException ioe) {
-                    BrewServer.LOG.warning(
-                            "Couldn't add " + content.getAbsolutePath()
-                            + " to zipfile");
-                }
-            }
-            return serveFile(zipFileName, params, rootDir);
+            return streamGraphZip("graph-data-" + session + ".zip",
+                seriesFiles, vessel, after, to);
         }
 
-        for (File content : contents) {
-            if (content.getName().endsWith(".csv")
-                    && content.getName().toLowerCase()
-                            .startsWith(vessel.toLowerCase())) {
-                String name = content.getName();
-
-                // Strip off .csv
-                name = name.substring(0, name.length() - 4);
-                name = name.replace('-', ' ');
+        for (Entry<String, List<File>> series : seriesFiles.entrySet()) {
+            if (series.getKey().toLowerCase()
+                    .startsWith(vessel.toLowerCase())) {
+                String name = series.getKey().replace('-', ' ');
 
                 if (parms.containsKey("bindto")
                         && ((String)parms.get("bindto"))
@@ -2100,54 +2861,79 @@ public class BrewServer extends NanoHTTPD {
                     axes.put(name, "y");
                 }
 
-                JSONArray xArray = new JSONArray();
-                JSONArray dataArray = new JSONArray();
+                final JSONArray xArray = new JSONArray();
+                final JSONArray dataArray = new JSONArray();
 
                 xArray.add("x" + name);
                 dataArray.add(name);
 
-                String lastLine = null;
-                BufferedReader reader = null;
+                final long[] lastTime = {-1L};
+                final float[] lastValue = {0f};
+                SeriesReader.Visitor visitor = new SeriesReader.Visitor() {
+                    @Override
+                    public void point(final long time, final float value) {
+                        xArray.add(BrewDay.sFormat.format(new Date(time)));
+                        dataArray.add(SegmentFormat.format(value));
+                        lastTime[0] = time;
+                        lastValue[0] = value;
+                    }
+                };
+                Long since = null;
+                if (cursors != null) {
+                    since = cursors.get(series.getKey());
+                }
+                long from = after;
+                if (since != null) {
+                    from = Math.max(since, after);
+                }
+                // The live session's newest points are kept in memory
+                boolean cached = tail != null && tail.read(series.getKey(),
+                    from, to, since != null ? 0 : size, visitor);
                 try {
-                    reader = new BufferedReader(new FileReader(content));
-                    String line;
-                    String[] lArray = null;
-
-                    while ((line = reader.readLine()) != null) {
-                        // Each line contains the timestamp and the value
-                        lArray = line.split(",");
-                        xArray.add(BrewDay.sFormat
-                                .format(new Date(Long.parseLong(lArray[0])))
-                                );
-                        dataArray.add(lArray[1].trim());
+                    if (!cached && since != null) {
+                        SeriesReader.readRange(series.getValue(), from, to,
+                            visitor);
+                    } else if (!cached) {
+                        // Use the coarsest data that keeps within the size
+                        SeriesQuery.read(directoryFile, series.getKey(),
+                            series.getValue(), after, to, size, visitor);
                     }
+                } catch (IOException e) {
+                    BrewServer.LOG.warning("Couldn't read series "
+                            + series.getKey() + ": " + e.getMessage());
+                }
 
-                    if (lArray != null && Long.parseLong(lArray[0]) != currentTime) {
+                if (lastTime[0] >= 0) {
+                    newCursors.put(series.getKey(), lastTime[0]);
+                } else if (since != null) {
+                    newCursors.put(series.getKey(), since);
+                }
+
+                if (cursors == null) {
+                    // Extend the line to now, clients using cursors
+                    // append the new points so they don't get this
+                    if (to == Long.MAX_VALUE && lastTime[0] >= 0
+                            && lastTime[0] != currentTime) {
                         xArray.add(BrewDay.sFormat
                                 .format(new Date(currentTime)));
-                        dataArray.add(lArray[1].trim());
-                    }
-
-                    dataBuffer.add(xArray);
-                    dataBuffer.add(dataArray);
-                } catch (Exception e) {
-                    // Do nothing
-                } finally {
-                    if (reader != null) {
-                        try {
-                            reader.close();
-                        } catch (Exception e) {
-                            BrewServer.LOG.warning("Couldn't close file: "
-                                    + content.getAbsolutePath());
-                        }
+                        dataArray.add(SegmentFormat.format(lastValue[0]));
                     }
+                } else if (xArray.size() == 1) {
+                    continue;
                 }
 
+                dataBuffer.add(xArray);
+                dataBuffer.add(dataArray);
             }
         }
 
         JSONObject dataContent = new JSONObject();
         dataContent.put("columns", dataBuffer);
+        if (cursors != null && !cursors.isEmpty()) {
+            dataContent.put("cursors", newCursors);
+            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                    dataContent.toJSONString());
+        }
         if (parms.containsKey("updates")
                 && Boolean.parseBoolean(parms.get("updates"))) {
             return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
@@ -2190,6 +2976,7 @@ public class BrewServer extends NanoHTTPD {
         JSONObject finalJSON = new JSONObject();
         finalJSON.put("data", dataContent);
         finalJSON.put("axis", axisContent);
+        finalJSON.put("cursors", newCursors);
 
         if (parms.containsKey("bindto")) {
             finalJSON.put("bindto", "#" + parms.get("bindto"));
@@ -2208,6 +2995,156 @@ public class BrewServer extends NanoHTTPD {
 
     }
 
+    /**
+     * Stream the series of a session as a zip of CSV files.
+     * The zip is written by a separate thread into a pipe as the series are
+     * read, and sent to the client in chunks, so nothing is stored on the
+     * disk and the response starts straight away.
+     *
+     * @param fileName
+     *            The name of the zip file for the client.
+     * @param seriesFiles
+     *            The files of each series in the session.
+     * @param vessel
+     *            Only the series starting with this are included.
+     * @param after
+     *            The start of the time range, exclusive.
+     * @param to
+     *            The end of the time range, inclusive.
+     * @return The chunked zip response.
+     */
+    private NanoHTTPD.Response streamGraphZip(final String fileName,
+            final Map<String, List<File>> seriesFiles, final String vessel,
+            final long after, final long to) {
+        final PipedOutputStream pipeOut = new PipedOutputStream();
+        PipedInputStream pipeIn;
+        try {
+            pipeIn = new PipedInputStream(pipeOut, EXPORT_BUFFER_SIZE);
+        } catch (IOException ioe) {
+            BrewServer.LOG.warning("Couldn't create the export pipe: "
+                    + ioe.getMessage());
+            return new NanoHTTPD.Response(Status.INTERNAL_ERROR,
+                    NanoHTTPD.MIME_PLAINTEXT, "Couldn't create zip file");
+        }
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ZipFile zipFile = new ZipFile(pipeOut);
+                try {
+                    for (Entry<String, List<File>> series
+                            : seriesFiles.entrySet()) {
+                        if (!series.getKey().toLowerCase()
+                                .startsWith(vessel.toLowerCase())) {
+                            continue;
+                        }
+                        // The CSV is generated from the series files
+                        SeriesReader.writeCsv(series.getValue(), after, to,
+                            zipFile.putNextEntry(series.getKey() + ".csv"));
+                        zipFile.closeEntry();
+                    }
+                    zipFile.closeZip();
+                } catch (IOException ioe) {
+                    // Usually the client went away and closed the pipe
+                    BrewServer.LOG.warning("Stopped exporting " + fileName
+                            + ": " + ioe.getMessage());
+                } finally {
+                    try {
+                        pipeOut.close();
+                    } catch (IOException ioe) {
+                        // Already closed
+                    }
+                }
+            }
+        }, "Graph export");
+        producer.setDaemon(true);
+        producer.start();
+
+        NanoHTTPD.Response response = new NanoHTTPD.Response(Status.OK,
+                MIME_TYPES.get("zip"), pipeIn);
+        response.setChunkedTransfer(true);
+        response.addHeader("Content-Disposition",
+                "attachment; filename=\"" + fileName + "\"");
+        return response;
+    }
+
+    /**
+     * Get the catalog of recorded sessions.
+     *
+     * @param params
+     *            "session" to get a single session, otherwise every session
+     *            is listed, newest first.
+     * @return the JSON Response data
+     */
+    @SuppressWarnings("unchecked")
+    private NanoHTTPD.Response getGraphSessions(
+            final Map<String, String> params) {
+        SessionCatalog catalog = getSessionCatalog();
+        if (params.containsKey("session")) {
+            JSONObject sessionJSON = null;
+            try {
+                sessionJSON = catalog.toJSON(
+                    Long.parseLong(params.get("session")));
+            } catch (NumberFormatException nfe) {
+                // Not a session ID
+            }
+            if (sessionJSON == null) {
+                return new NanoHTTPD.Response(Status.NOT_FOUND,
+                        NanoHTTPD.MIME_PLAINTEXT, "Unknown session: "
+                        + params.get("session"));
+            }
+            return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                    sessionJSON.toJSONString());
+        }
+        JSONObject sessionsJSON = new JSONObject();
+        sessionsJSON.put("sessions", catalog.toJSON());
+        return new NanoHTTPD.Response(Status.OK, MIME_TYPES.get("json"),
+                sessionsJSON.toJSONString());
+    }
+
+    /**
+     * @return The catalog kept by the running recorder, or the last one
+     *         used for the recorder directory while it is stopped.
+     */
+    private synchronized SessionCatalog getSessionCatalog() {
+        StatusRecorder recorder = LaunchControl.getRecorder();
+        if (recorder != null) {
+            // Kept once the recorder stops, it has every session in it
+            sessionCatalog = recorder.getCatalog();
+        } else if (sessionCatalog == null) {
+            sessionCatalog = new SessionCatalog(
+                new File(LaunchControl.getRecorderDirectory()));
+        }
+        return sessionCatalog;
+    }
+
+    /**
+     * Parse the graph cursors sent by the client.
+     *
+     * @param cursorString
+     *            The cursors as "series:time" pairs separated by commas.
+     * @return The time of the last point the client has for each series.
+     */
+    private Map<String, Long> parseCursors(final String cursorString) {
+        Map<String, Long> cursors = new HashMap<String, Long>();
+        if (cursorString == null) {
+            return cursors;
+        }
+        for (String cursor : cursorString.split(",")) {
+            int colon = cursor.lastIndexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            try {
+                cursors.put(cursor.substring(0, colon),
+                    Long.parseLong(cursor.substring(colon + 1).trim()));
+            } catch (NumberFormatException nfe) {
+                // Skip the bad cursor, the series is sent in full
+            }
+        }
+        return cursors;
+    }
+
     /**
      * Read the incoming parameters and update the name as appropriate.
      *
@@ -2427,6 +3364,124 @@ public class BrewServer extends NanoHTTPD {
                 usage.toJSONString());
     }
     
+    /**
+     * Get the run history for every compressor cooling output.
+     * @return The JSON String of the compressor histories, keyed by PID.
+     */
+    @SuppressWarnings("unchecked")
+    private String getCompressorHistory() {
+        JSONObject historyJSON = new JSONObject();
+        synchronized (LaunchControl.pidList) {
+            for (PID pid : LaunchControl.pidList) {
+                if (pid.outputControl != null && pid.outputControl.getCooler()
+                        instanceof CompressorDevice) {
+                    CompressorDevice compressor =
+                        (CompressorDevice) pid.outputControl.getCooler();
+                    JSONObject compressorJSON = new JSONObject();
+                    compressorJSON.putAll(compressor.getMapStatus());
+                    historyJSON.put(pid.getName(), compressorJSON);
+                }
+            }
+        }
+        return historyJSON.toJSONString();
+    }
+
+    /**
+     * Pick how requests are run from the http_runner system property:
+     * "pool" (the default) for a bounded thread pool, "virtual" for
+     * virtual threads where the JDK has them, or "thread" for a new
+     * thread per connection. http_threads and http_queue size the pool.
+     * <p/>
+     * <p>Every /events and /ws stream holds its thread for as long as it is
+     * open, so the pool has a thread for each subscriber the broadcaster
+     * allows on top of http_threads.</p>
+     * @return The async runner to use.
+     */
+    private static AsyncRunner createAsyncRunner() {
+        String runner = System.getProperty("http_runner", "pool");
+        int threads = Integer.getInteger("http_threads", HTTP_THREADS)
+            + StatusBroadcaster.MAX_SUBSCRIBERS;
+        int queue = Integer.getInteger("http_queue", HTTP_QUEUE);
+        if ("thread".equalsIgnoreCase(runner)) {
+            return new DefaultAsyncRunner();
+        }
+        if ("virtual".equalsIgnoreCase(runner)) {
+            try {
+                return new VirtualThreadAsyncRunner(threads + queue);
+            } catch (UnsupportedOperationException e) {
+                LOG.warning(e.getMessage() + ", using a thread pool.");
+            }
+        }
+        LOG.info("Running requests on " + threads + " threads with "
+            + queue + " waiting");
+        return new BoundedAsyncRunner(threads, queue);
+    }
+
+    /**
+     * @return A pool of daemon threads to send the WebSocket events on,
+     *         the threads go away while no sockets are open.
+     */
+    private static ExecutorService createWebSocketSenders() {
+        final AtomicLong threadCount = new AtomicLong();
+        ThreadPoolExecutor senders = new ThreadPoolExecutor(
+            StatusBroadcaster.MAX_SUBSCRIBERS,
+            StatusBroadcaster.MAX_SUBSCRIBERS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    t.setName("WebSocket events (#"
+                        + threadCount.incrementAndGet() + ")");
+                    return t;
+                }
+            });
+        senders.allowCoreThreadTimeOut(true);
+        return senders;
+    }
+
+    /**
+     * Get the output timing metrics for every PID, the recorder's
+     * write statistics and the request runner's counts.
+     * @return A JSON string of the metrics, keyed by PID name.
+     */
+    private String getMetrics() {
+        JSONObject metricsJSON = new JSONObject();
+        synchronized (LaunchControl.pidList) {
+            for (PID pid : LaunchControl.pidList) {
+                if (pid.outputControl != null) {
+                    JSONObject pidJSON = new JSONObject();
+                    pidJSON.putAll(pid.outputControl.getMetrics());
+                    metricsJSON.put(pid.getName(), pidJSON);
+                }
+            }
+        }
+        StatusRecorder recorder = LaunchControl.getRecorder();
+        if (recorder != null) {
+            JSONObject recorderJSON = new JSONObject();
+            recorderJSON.putAll(recorder.getWriterStatus());
+            metricsJSON.put("recorder", recorderJSON);
+        }
+        JSONObject eventsJSON = new JSONObject();
+        eventsJSON.putAll(StatusBroadcaster.getInstance().getMapStatus());
+        metricsJSON.put("events", eventsJSON);
+
+        JSONObject assetsJSON = new JSONObject();
+        assetsJSON.putAll(assetCache.getMapStatus());
+        metricsJSON.put("assets", assetsJSON);
+
+        JSONObject statusCacheJSON = new JSONObject();
+        statusCacheJSON.putAll(StatusCache.getInstance().getMapStatus());
+        metricsJSON.put("statusCache", statusCacheJSON);
+        if (getAsyncRunner() instanceof MeteredAsyncRunner) {
+            JSONObject httpJSON = new JSONObject();
+            httpJSON.putAll(
+                ((MeteredAsyncRunner) getAsyncRunner()).getMapStatus());
+            metricsJSON.put("http", httpJSON);
+        }
+        return metricsJSON.toJSONString();
+    }
+
     private String updateSystemSettings(Map<String, String> parms) {
         Map<String, String> params = ParseParams(parms);
         JSONObject usage = new JSONObject();
@@ -2434,6 +3489,15 @@ public class BrewServer extends NanoHTTPD {
         usage.put("recorder", "True/false to enable/disable the recorder.");
         usage.put("recorderDiff", "The tolerance to record data changes.");
         usage.put("recorderTime", "The time between sampling the data for recording.");
+        usage.put("recorderSync", "True/false to force the recorded data to the disk on each write.");
+        usage.put("recorderTailMinutes", "The minutes of recorded data to keep in memory for the live graph.");
+        usage.put("recorderTailPoints", "The most points of each series to keep in memory for the live graph.");
+        usage.put("recorderRelative", "The tolerance to record temperature changes as a fraction of the temperature.");
+        usage.put("recorderHeartbeat", "The longest time in milliseconds between recorded points, 0 for no limit.");
+        usage.put("recorderDoor", "The swinging door width to compress temperatures into lines, 0 to use the tolerance.");
+        usage.put("recorderSeriesName", "The series to change the recorder settings of, such as Mash_Tun-temp.");
+        usage.put("recorderSeriesSettings", "The recorder settings of the series as absolute=..;relative=..;heartbeat=..;door=.., empty to use the defaults.");
+        usage.put("statusInterval", "The shortest time in milliseconds between builds of the status shared by every browser.");
 
         if (params.containsKey("recorder")) {
             boolean recorderOn = params.get("recorder").equals("on");
@@ -2468,6 +3532,95 @@ public class BrewServer extends NanoHTTPD {
                             + LaunchControl.getMessage());
             }
         }
+
+        if (params.containsKey("recorderSync")) {
+            StatusRecorder.SYNC = Boolean.parseBoolean(params.get("recorderSync"));
+        }
+
+        if (params.containsKey("recorderTailMinutes")) {
+            try {
+                StatusRecorder.TAIL_MINUTES =
+                    Long.parseLong(params.get("recorderTailMinutes"));
+            } catch (Exception e) {
+                LaunchControl.setMessage(
+                    "Failed to parse Recorder tail minutes as a long\n" + e.getMessage()
+                            + LaunchControl.getMessage());
+            }
+        }
+
+        if (params.containsKey("recorderTailPoints")) {
+            try {
+                StatusRecorder.TAIL_POINTS =
+                    Integer.parseInt(params.get("recorderTailPoints"));
+            } catch (Exception e) {
+                LaunchControl.setMessage(
+                    "Failed to parse Recorder tail points as an integer\n" + e.getMessage()
+                            + LaunchControl.getMessage());
+            }
+        }
+
+        if (params.containsKey("recorderRelative")) {
+            try {
+                StatusRecorder.RELATIVE =
+                    Double.parseDouble(params.get("recorderRelative"));
+            } catch (Exception e) {
+                LaunchControl.setMessage(
+                    "Failed to parse Recorder relative diff as a double\n" + e.getMessage()
+                            + LaunchControl.getMessage());
+            }
+        }
+
+        if (params.containsKey("recorderHeartbeat")) {
+            try {
+                StatusRecorder.HEARTBEAT =
+                    Long.parseLong(params.get("recorderHeartbeat"));
+            } catch (Exception e) {
+                LaunchControl.setMessage(
+                    "Failed to parse Recorder heartbeat as a long\n" + e.getMessage()
+                            + LaunchControl.getMessage());
+            }
+        }
+
+        if (params.containsKey("recorderDoor")) {
+            try {
+                StatusRecorder.DOOR =
+                    Double.parseDouble(params.get("recorderDoor"));
+            } catch (Exception e) {
+                LaunchControl.setMessage(
+                    "Failed to parse Recorder door as a double\n" + e.getMessage()
+                            + LaunchControl.getMessage());
+            }
+        }
+
+        if (params.containsKey("statusInterval")) {
+            try {
+                StatusCache.setInterval(
+                    Long.parseLong(params.get("statusInterval")));
+            } catch (Exception e) {
+                LaunchControl.setMessage(
+                    "Failed to parse Status interval as a long\n" + e.getMessage()
+                            + LaunchControl.getMessage());
+            }
+        }
+
+        if (params.containsKey("recorderSeriesName")) {
+            String seriesName = params.get("recorderSeriesName");
+            String settings = params.get("recorderSeriesSettings");
+            if (settings == null || settings.trim().equals("")) {
+                StatusRecorder.SERIES_SETTINGS.remove(seriesName);
+            } else {
+                try {
+                    ChangeDetector.Settings.parse(settings,
+                        new ChangeDetector.Settings(0, 0, 0, 0));
+                    StatusRecorder.SERIES_SETTINGS.put(seriesName,
+                        settings.trim());
+                } catch (NumberFormatException e) {
+                    LaunchControl.setMessage(
+                        "Failed to parse Recorder settings for " + seriesName
+                            + "\n" + e.getMessage() + LaunchControl.getMessage());
+                }
+            }
+        }
         return usage.toJSONString();
     }
 }
\ No newline at end of file
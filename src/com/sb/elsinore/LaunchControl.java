@@ -1,5 +1,7 @@
 package com.sb.elsinore;
 
+import com.sb.elsinore.recorder.ChangeDetector;
+
 import jGPIO.GPIO;
 import jGPIO.InvalidGPIOException;
 
@@ -765,6 +767,16 @@ public final class LaunchControl {
         retVal.put("recorder", LaunchControl.recorder != null);
         retVal.put("recorderTime", StatusRecorder.SLEEP);
         retVal.put("recorderDiff", StatusRecorder.THRESHOLD);
+        retVal.put("recorderSync", StatusRecorder.SYNC);
+        retVal.put("recorderTailMinutes", StatusRecorder.TAIL_MINUTES);
+        retVal.put("recorderTailPoints", StatusRecorder.TAIL_POINTS);
+        retVal.put("recorderRelative", StatusRecorder.RELATIVE);
+        retVal.put("recorderHeartbeat", StatusRecorder.HEARTBEAT);
+        retVal.put("recorderDoor", StatusRecorder.DOOR);
+        JSONObject seriesSettings = new JSONObject();
+        seriesSettings.putAll(StatusRecorder.SERIES_SETTINGS);
+        retVal.put("recorderSeries", seriesSettings);
+        retVal.put("statusInterval", StatusCache.getInterval());
         return retVal.toJSONString();
     }
 
@@ -869,6 +881,108 @@ public final class LaunchControl {
                             + e.getMessage());
                 }
             }
+
+            tElement = getFirstElement(config, "recorderSync");
+            if (tElement != null) {
+                StatusRecorder.SYNC = Boolean.parseBoolean(tElement
+                        .getTextContent());
+            }
+
+            tElement = getFirstElement(config, "recorderTailMinutes");
+            if (tElement != null) {
+                try {
+                    StatusRecorder.TAIL_MINUTES = Long.parseLong(tElement
+                            .getTextContent());
+                } catch (Exception e) {
+                    LaunchControl.setMessage(LaunchControl.getMessage()
+                            + "\n Failed to parse recorder tail minutes as a long.\n"
+                            + e.getMessage());
+                }
+            }
+
+            tElement = getFirstElement(config, "recorderTailPoints");
+            if (tElement != null) {
+                try {
+                    StatusRecorder.TAIL_POINTS = Integer.parseInt(tElement
+                            .getTextContent());
+                } catch (Exception e) {
+                    LaunchControl.setMessage(LaunchControl.getMessage()
+                            + "\n Failed to parse recorder tail points as an integer.\n"
+                            + e.getMessage());
+                }
+            }
+
+            tElement = getFirstElement(config, "recorderRelative");
+            if (tElement != null) {
+                try {
+                    StatusRecorder.RELATIVE = Double.parseDouble(tElement
+                            .getTextContent());
+                } catch (Exception e) {
+                    LaunchControl.setMessage(LaunchControl.getMessage()
+                            + "\n Failed to parse recorder relative diff as a double.\n"
+                            + e.getMessage());
+                }
+            }
+
+            tElement = getFirstElement(config, "recorderHeartbeat");
+            if (tElement != null) {
+                try {
+                    StatusRecorder.HEARTBEAT = Long.parseLong(tElement
+                            .getTextContent());
+                } catch (Exception e) {
+                    LaunchControl.setMessage(LaunchControl.getMessage()
+                            + "\n Failed to parse recorder heartbeat as a long.\n"
+                            + e.getMessage());
+                }
+            }
+
+            tElement = getFirstElement(config, "recorderDoor");
+            if (tElement != null) {
+                try {
+                    StatusRecorder.DOOR = Double.parseDouble(tElement
+                            .getTextContent());
+                } catch (Exception e) {
+                    LaunchControl.setMessage(LaunchControl.getMessage()
+                            + "\n Failed to parse recorder door as a double.\n"
+                            + e.getMessage());
+                }
+            }
+
+            tElement = getFirstElement(config, "statusInterval");
+            if (tElement != null) {
+                try {
+                    StatusCache.setInterval(Long.parseLong(tElement
+                            .getTextContent()));
+                } catch (Exception e) {
+                    LaunchControl.setMessage(LaunchControl.getMessage()
+                            + "\n Failed to parse status interval as a long.\n"
+                            + e.getMessage());
+                }
+            }
+
+            tElement = getFirstElement(config, "recorderSeries");
+            if (tElement != null) {
+                StatusRecorder.SERIES_SETTINGS.clear();
+                NodeList seriesNodes = tElement.getChildNodes();
+                for (int i = 0; i < seriesNodes.getLength(); i++) {
+                    if (!(seriesNodes.item(i) instanceof Element)) {
+                        continue;
+                    }
+                    Element seriesElement = (Element) seriesNodes.item(i);
+                    String seriesName = seriesElement.getAttribute("name");
+                    String settings = seriesElement.getTextContent().trim();
+                    try {
+                        ChangeDetector.Settings.parse(settings,
+                            new ChangeDetector.Settings(0, 0, 0, 0));
+                        StatusRecorder.SERIES_SETTINGS.put(seriesName,
+                            settings);
+                    } catch (NumberFormatException e) {
+                        LaunchControl.setMessage(LaunchControl.getMessage()
+                                + "\n Failed to parse recorder settings for "
+                                + seriesName + ".\n" + e.getMessage());
+                    }
+                }
+            }
             String cosmAPIKey = null;
             Integer cosmFeedID = null;
 
@@ -1371,6 +1485,14 @@ public final class LaunchControl {
         }
     }
 
+    /**
+     * @return True if a brew day timer is running.
+     */
+    static boolean isTimerCounting() {
+        BrewDay day = brewDay;
+        return day != null && day.isCounting();
+    }
+
     /********
      * Get the BrewDay object. Create one if there is no brewday object.
      * 
@@ -1598,6 +1720,81 @@ public final class LaunchControl {
 
         tempElement.setTextContent(Long.toString(StatusRecorder.SLEEP));
 
+        tempElement = getFirstElement(generalElement, "recorderSync");
+
+        if (tempElement == null) {
+            tempElement = addNewElement(generalElement, "recorderSync");
+        }
+
+        tempElement.setTextContent(Boolean.toString(StatusRecorder.SYNC));
+
+        tempElement = getFirstElement(generalElement, "recorderTailMinutes");
+
+        if (tempElement == null) {
+            tempElement = addNewElement(generalElement, "recorderTailMinutes");
+        }
+
+        tempElement.setTextContent(Long.toString(StatusRecorder.TAIL_MINUTES));
+
+        tempElement = getFirstElement(generalElement, "recorderTailPoints");
+
+        if (tempElement == null) {
+            tempElement = addNewElement(generalElement, "recorderTailPoints");
+        }
+
+        tempElement.setTextContent(
+            Integer.toString(StatusRecorder.TAIL_POINTS));
+
+        tempElement = getFirstElement(generalElement, "recorderRelative");
+
+        if (tempElement == null) {
+            tempElement = addNewElement(generalElement, "recorderRelative");
+        }
+
+        tempElement.setTextContent(Double.toString(StatusRecorder.RELATIVE));
+
+        tempElement = getFirstElement(generalElement, "recorderHeartbeat");
+
+        if (tempElement == null) {
+            tempElement = addNewElement(generalElement, "recorderHeartbeat");
+        }
+
+        tempElement.setTextContent(Long.toString(StatusRecorder.HEARTBEAT));
+
+        tempElement = getFirstElement(generalElement, "recorderDoor");
+
+        if (tempElement == null) {
+            tempElement = addNewElement(generalElement, "recorderDoor");
+        }
+
+        tempElement.setTextContent(Double.toString(StatusRecorder.DOOR));
+
+        tempElement = getFirstElement(generalElement, "statusInterval");
+
+        if (tempElement == null) {
+            tempElement = addNewElement(generalElement, "statusInterval");
+        }
+
+        tempElement.setTextContent(
+            Long.toString(StatusCache.getInterval()));
+
+        tempElement = getFirstElement(generalElement, "recorderSeries");
+
+        if (tempElement == null) {
+            tempElement = addNewElement(generalElement, "recorderSeries");
+        }
+
+        while (tempElement.getFirstChild() != null) {
+            tempElement.removeChild(tempElement.getFirstChild());
+        }
+
+        for (Entry<String, String> entry
+                : StatusRecorder.SERIES_SETTINGS.entrySet()) {
+            Element seriesElement = addNewElement(tempElement, "series");
+            seriesElement.setAttribute("name", entry.getKey());
+            seriesElement.setTextContent(entry.getValue());
+        }
+
         if (breweryName != null && !breweryName.equals("")) {
             tempElement = getFirstElement(generalElement, "brewery_name");
 
@@ -3166,7 +3363,11 @@ public final class LaunchControl {
      *            The message to set.
      */
     static void setMessage(String message) {
-        LaunchControl.message = message;
+        if (message == null ? LaunchControl.message != null
+                : !message.equals(LaunchControl.message)) {
+            LaunchControl.message = message;
+            StatusVersion.bump();
+        }
     }
 
     /**
@@ -3195,6 +3396,7 @@ public final class LaunchControl {
         BrewServer.LOG.info("Updating brewery name from "
                 + LaunchControl.breweryName + " to " + newName);
         LaunchControl.breweryName = newName;
+        StatusVersion.bump();
     }
 
     /**
@@ -3254,11 +3456,13 @@ public final class LaunchControl {
     public static void lockPage() {
         LaunchControl.removeNonSetupDevices();
         LaunchControl.pageLock = true;
+        StatusVersion.bump();
     }
 
     public static void unlockPage() {
         LaunchControl.listOneWireSys(false);
         LaunchControl.pageLock = false;
+        StatusVersion.bump();
     }
 
     public static boolean setTempScales(String scale) {
@@ -3307,6 +3511,13 @@ public final class LaunchControl {
         return LaunchControl.recorder;
     }
 
+    /**
+     * @return The directory the recorder writes to, set on the command line.
+     */
+    public static String getRecorderDirectory() {
+        return LaunchControl.recorderDirectory;
+    }
+
     public static void enableRecorder() {
         if (LaunchControl.recorder != null) {
             return;
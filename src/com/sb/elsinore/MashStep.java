@@ -184,6 +184,7 @@ public class MashStep implements Comparable<MashStep> {
      */
     public final void activate() {
         this.active = true;
+        StatusVersion.bump();
     }
 
     /**
@@ -195,6 +196,7 @@ public class MashStep implements Comparable<MashStep> {
         if (clear && endTime == null) {
             setEnd(new Date());
         }
+        StatusVersion.bump();
     }
 
     /**
@@ -296,7 +298,7 @@ public class MashStep implements Comparable<MashStep> {
 
         // If it's null we can reset it
         this.startTime = newStart;
-
+        StatusVersion.bump();
     }
 
     /**
@@ -313,6 +315,7 @@ public class MashStep implements Comparable<MashStep> {
 
         // If it's null we can reset it
         this.endTime = newEnd;
+        StatusVersion.bump();
     }
 
     /**
@@ -330,6 +333,7 @@ public class MashStep implements Comparable<MashStep> {
         }
         BrewServer.LOG.info("Setting target time: " + newTarget);
         this.targetEndTime = newTarget;
+        StatusVersion.bump();
     }
 
     /**
@@ -22,9 +22,17 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
@@ -33,9 +41,19 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A simple, tiny, nicely embeddable HTTP server in Java
@@ -88,6 +106,28 @@ public abstract class NanoHTTPD {
      * block the socket reading thread forever (or as long the browser is open).
      */
     public static final int SOCKET_READ_TIMEOUT = 5000;
+    /**
+     * How long in milliseconds an idle keep-alive connection is held by the
+     * selector transport, where waiting costs no thread.
+     */
+    public static final int SELECTOR_KEEP_ALIVE_TIMEOUT = 60000;
+    /**
+     * The largest request, headers and body, the selector transport buffers.
+     */
+    public static final int SELECTOR_MAX_REQUEST_SIZE = 16 * 1024 * 1024;
+    /**
+     * The largest request body parsed in memory, a larger body such as an
+     * image upload is spooled to a temporary file.
+     */
+    public static final int MEMORY_BODY_SIZE = 64 * 1024;
+    /**
+     * The most request body buffers kept for reuse.
+     */
+    public static final int BODY_POOL_SIZE = 8;
+    /**
+     * Buffers of MEMORY_BODY_SIZE for parsing request bodies.
+     */
+    private static final BlockingQueue<byte[]> BODY_POOL = new ArrayBlockingQueue<byte[]>(BODY_POOL_SIZE);
     /**
      * Common mime type for dynamic content: plain text
      */
@@ -105,6 +145,11 @@ public abstract class NanoHTTPD {
     private ServerSocket myServerSocket;
     private Set<Socket> openConnections = new HashSet<Socket>();
     private Thread myThread;
+    /**
+     * Watch connections with a selector instead of a thread each.
+     */
+    private boolean useSelector = false;
+    private Selector mySelector;
     /**
      * Pluggable strategy for asynchronously executing requests.
      */
@@ -164,6 +209,14 @@ public abstract class NanoHTTPD {
      * @throws IOException if the socket is in use.
      */
     public void start() throws IOException {
+        if (useSelector) {
+            startSelector();
+            return;
+        }
+        // A plain socket: a socket with a channel is switched to
+        // non-blocking for each timed read before JDK 13, which makes a
+        // write from another thread, such as to a WebSocket, fail. Files
+        // are only sent straight to the socket by the selector transport.
         myServerSocket = new ServerSocket();
         myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
 
@@ -180,31 +233,35 @@ public abstract class NanoHTTPD {
                             safeClose(finalAccept);
                             unRegisterConnection(finalAccept);
                         } else {
-                            asyncRunner.exec(new Runnable() {
-                                @Override
-                                public void run() {
-                                    OutputStream outputStream = null;
-                                    try {
-                                        outputStream = finalAccept.getOutputStream();
-                                        TempFileManager tempFileManager = tempFileManagerFactory.create();
-                                        HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
-                                        while (!finalAccept.isClosed()) {
-                                            session.execute();
-                                        }
-                                    } catch (Exception e) {
-                                        // When the socket is closed by the client, we throw our own SocketException
-                                        // to break the  "keep alive" loop above.
-                                        if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
-                                            e.printStackTrace();
+                            try {
+                                asyncRunner.exec(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        OutputStream outputStream = null;
+                                        try {
+                                            outputStream = finalAccept.getOutputStream();
+                                            TempFileManager tempFileManager = tempFileManagerFactory.create();
+                                            HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
+                                            while (!finalAccept.isClosed()) {
+                                                session.execute();
+                                            }
+                                        } catch (Exception e) {
+                                            // When the socket is closed by the client, we throw our own SocketException
+                                            // to break the  "keep alive" loop above.
+                                            if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                                                e.printStackTrace();
+                                            }
+                                        } finally {
+                                            safeClose(outputStream);
+                                            safeClose(inputStream);
+                                            safeClose(finalAccept);
+                                            unRegisterConnection(finalAccept);
                                         }
-                                    } finally {
-                                        safeClose(outputStream);
-                                        safeClose(inputStream);
-                                        safeClose(finalAccept);
-                                        unRegisterConnection(finalAccept);
                                     }
-                                }
-                            });
+                                });
+                            } catch (RejectedExecutionException e) {
+                                rejectConnection(finalAccept);
+                            }
                         }
                     } catch (IOException e) {
                     }
@@ -216,12 +273,471 @@ public abstract class NanoHTTPD {
         myThread.start();
     }
 
+    /**
+     * Start the server with the selector transport: one thread watches every
+     * connection with non-blocking channels, and a request is handed to the
+     * async runner only once all of it has arrived. An idle keep-alive
+     * connection then holds no thread.
+     *
+     * @throws IOException if the socket is in use.
+     */
+    private void startSelector() throws IOException {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        myServerSocket = serverChannel.socket();
+        myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
+        serverChannel.configureBlocking(false);
+        mySelector = Selector.open();
+        serverChannel.register(mySelector, SelectionKey.OP_ACCEPT);
+
+        myThread = new Thread(new SelectorListener(mySelector, serverChannel));
+        myThread.setDaemon(true);
+        myThread.setName("NanoHttpd Main Listener");
+        myThread.start();
+    }
+
+    /**
+     * Use the selector transport instead of a thread per connection.
+     * Must be set before {@link #start()}.
+     *
+     * @param newUseSelector true for the selector transport.
+     */
+    public void setSelectorTransport(boolean newUseSelector) {
+        this.useSelector = newUseSelector;
+    }
+
+    /**
+     * Accepts connections and reads requests for the selector transport.
+     */
+    private class SelectorListener implements Runnable {
+        private final Selector selector;
+        private final ServerSocketChannel serverChannel;
+        /**
+         * Connections whose request has been answered, to be watched again.
+         */
+        private final Queue<ChannelConnection> resumed = new ConcurrentLinkedQueue<ChannelConnection>();
+        private long lastIdleCheck = 0;
+
+        private SelectorListener(Selector newSelector, ServerSocketChannel newServerChannel) {
+            this.selector = newSelector;
+            this.serverChannel = newServerChannel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (serverChannel.isOpen()) {
+                    selector.select(1000);
+                    ChannelConnection connection;
+                    while ((connection = resumed.poll()) != null) {
+                        connection.resume();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            ((ChannelConnection) key.attachment()).read();
+                        }
+                    }
+                    closeIdle();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof ChannelConnection) {
+                        ((ChannelConnection) key.attachment()).close();
+                    }
+                }
+                safeClose(serverChannel);
+                safeClose(selector);
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                registerConnection(channel.socket());
+                channel.configureBlocking(false);
+                ChannelConnection connection = new ChannelConnection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            }
+        }
+
+        /**
+         * Close keep-alive connections that have been idle too long.
+         */
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < 1000) {
+                return;
+            }
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof ChannelConnection) {
+                    ChannelConnection connection = (ChannelConnection) key.attachment();
+                    if (!connection.busy && now - connection.lastActive > SELECTOR_KEEP_ALIVE_TIMEOUT) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Watch a connection again once its request has been answered.
+         * Called from the request thread.
+         */
+        private void resume(ChannelConnection connection) {
+            resumed.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * A connection of the selector transport, which collects the bytes of a
+     * request until it is complete.
+     */
+    private class ChannelConnection {
+        private final SelectorListener listener;
+        private final SocketChannel channel;
+        private final ChannelOutputStream outputStream;
+        private SelectionKey key;
+        private byte[] buf = new byte[HTTPSession.BUFSIZE];
+        private int length = 0;
+        private long lastActive = System.currentTimeMillis();
+        private volatile boolean busy = false;
+
+        private ChannelConnection(SelectorListener newListener, SocketChannel newChannel) {
+            this.listener = newListener;
+            this.channel = newChannel;
+            this.outputStream = new ChannelOutputStream(newChannel);
+        }
+
+        /**
+         * Read what has arrived, called from the selector thread.
+         */
+        private void read() {
+            try {
+                int read = channel.read(ByteBuffer.wrap(buf, length, buf.length - length));
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                length += read;
+                lastActive = System.currentTimeMillis();
+                dispatchIfComplete();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Hand the first request in the buffer to the async runner if all
+         * of it is there, or make room for the rest of it.
+         */
+        private void dispatchIfComplete() throws IOException {
+            int headerEnd = findHeaderEnd(buf, length);
+            if (headerEnd == 0) {
+                if (length >= HTTPSession.BUFSIZE) {
+                    refuse(Response.Status.BAD_REQUEST, "BAD REQUEST: Header too large.");
+                }
+                return;
+            }
+            long requestLength = headerEnd + contentLength(buf, headerEnd);
+            if (requestLength > SELECTOR_MAX_REQUEST_SIZE) {
+                refuse(Response.Status.BAD_REQUEST, "BAD REQUEST: Request too large.");
+                return;
+            }
+            if (length < requestLength) {
+                if (buf.length < requestLength) {
+                    buf = Arrays.copyOf(buf, (int) requestLength);
+                }
+                return;
+            }
+
+            final byte[] request = Arrays.copyOf(buf, (int) requestLength);
+            // Keep any pipelined request for later
+            length -= (int) requestLength;
+            System.arraycopy(buf, (int) requestLength, buf, 0, length);
+            if (buf.length > HTTPSession.BUFSIZE && length <= HTTPSession.BUFSIZE) {
+                buf = Arrays.copyOf(buf, HTTPSession.BUFSIZE);
+            }
+
+            InputStream requestStream = new ByteArrayInputStream(request);
+            String upgrade = headerValue(request, headerEnd, "upgrade");
+            if (upgrade != null && upgrade.equalsIgnoreCase("websocket")) {
+                // The connection is handed over, it reads straight from the
+                // channel from now on
+                requestStream = new SequenceInputStream(requestStream, new SequenceInputStream(
+                    new ByteArrayInputStream(Arrays.copyOf(buf, length)), new ChannelInputStream(channel)));
+                length = 0;
+            }
+            final InputStream input = requestStream;
+
+            key.interestOps(0);
+            busy = true;
+            try {
+                asyncRunner.exec(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            TempFileManager tempFileManager = tempFileManagerFactory.create();
+                            HTTPSession session = new HTTPSession(tempFileManager, input, outputStream,
+                                channel.socket().getInetAddress());
+                            session.execute();
+                        } catch (Exception e) {
+                            if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                                e.printStackTrace();
+                            }
+                            close();
+                        } finally {
+                            if (channel.isOpen()) {
+                                listener.resume(ChannelConnection.this);
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                refuse(Response.Status.SERVICE_UNAVAILABLE, "Server busy, try again shortly.");
+            }
+        }
+
+        /**
+         * Watch the connection for the next request, called from the
+         * selector thread.
+         */
+        private void resume() {
+            busy = false;
+            lastActive = System.currentTimeMillis();
+            if (!key.isValid()) {
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            try {
+                dispatchIfComplete();
+            } catch (IOException e) {
+                close();
+            } catch (CancelledKeyException e) {
+                close();
+            }
+        }
+
+        /**
+         * Answer with an error and close the connection.
+         */
+        private void refuse(Response.Status status, String message) {
+            Response r = new Response(status, MIME_PLAINTEXT, message);
+            if (status == Response.Status.SERVICE_UNAVAILABLE) {
+                r.addHeader("Retry-After", "1");
+            }
+            r.addHeader("Connection", "close");
+            r.send(outputStream);
+            close();
+        }
+
+        private void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            safeClose(outputStream);
+            unRegisterConnection(channel.socket());
+        }
+    }
+
+    /**
+     * Find the end of the header in a request, 0 if it hasn't all arrived.
+     */
+    private static int findHeaderEnd(final byte[] buf, int rlen) {
+        int splitbyte = 0;
+        while (splitbyte + 3 < rlen) {
+            if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n') {
+                return splitbyte + 4;
+            }
+            splitbyte++;
+        }
+        return 0;
+    }
+
+    /**
+     * Read the Content-Length header of a request, 0 if there isn't one.
+     */
+    private static long contentLength(final byte[] buf, int headerEnd) throws UnsupportedEncodingException {
+        String value = headerValue(buf, headerEnd, "content-length");
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Read a header of a request.
+     *
+     * @param name the name of the header, matched ignoring case.
+     * @return the value, or null if there isn't one.
+     */
+    private static String headerValue(final byte[] buf, int headerEnd, String name) throws UnsupportedEncodingException {
+        BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, headerEnd), "ISO-8859-1"));
+        try {
+            String line;
+            while ((line = hin.readLine()) != null) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                    return line.substring(colon + 1).trim();
+                }
+            }
+        } catch (IOException e) {
+        }
+        return null;
+    }
+
+    /**
+     * Reads from a non-blocking channel, waiting up to the socket read
+     * timeout for data like a blocking socket would.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final SocketChannel channel;
+        private Selector readSelector;
+
+        private ChannelInputStream(SocketChannel newChannel) {
+            this.channel = newChannel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (true) {
+                int read = channel.read(buffer);
+                if (read != 0) {
+                    return read;
+                }
+                if (readSelector == null) {
+                    readSelector = Selector.open();
+                    channel.register(readSelector, SelectionKey.OP_READ);
+                }
+                readSelector.selectedKeys().clear();
+                if (readSelector.select(SOCKET_READ_TIMEOUT) == 0) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            safeClose(readSelector);
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes to a non-blocking channel, waiting for room when the socket
+     * buffer is full.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        private final SocketChannel channel;
+        private Selector writeSelector;
+
+        private ChannelOutputStream(SocketChannel newChannel) {
+            this.channel = newChannel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0) {
+                    awaitWritable();
+                }
+            }
+        }
+
+        /**
+         * Send part of a file straight from the file system cache to the
+         * socket, without copying it through the heap.
+         */
+        private synchronized void transferFrom(FileChannel file, long position, long count) throws IOException {
+            long end = position + count;
+            while (position < end) {
+                long sent = file.transferTo(position, end - position, channel);
+                if (sent == 0) {
+                    if (position >= file.size()) {
+                        throw new IOException("File ended before its length");
+                    }
+                    awaitWritable();
+                }
+                position += sent;
+            }
+        }
+
+        private void awaitWritable() throws IOException {
+            if (writeSelector == null) {
+                writeSelector = Selector.open();
+                channel.register(writeSelector, SelectionKey.OP_WRITE);
+            }
+            writeSelector.selectedKeys().clear();
+            if (writeSelector.select(SOCKET_READ_TIMEOUT) == 0) {
+                throw new SocketTimeoutException("Write timed out");
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            safeClose(writeSelector);
+            channel.close();
+        }
+    }
+
+    /**
+     * Turn a connection away with a 503 when the async runner is full.
+     * The response is small enough to go straight into the socket buffer,
+     * so this doesn't hold up the listener.
+     *
+     * @param socket the connection to turn away.
+     */
+    private void rejectConnection(Socket socket) {
+        try {
+            Response r = new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Server busy, try again shortly.");
+            r.addHeader("Retry-After", "1");
+            r.addHeader("Connection", "close");
+            r.send(socket.getOutputStream());
+        } catch (IOException e) {
+        } finally {
+            safeClose(socket);
+            unRegisterConnection(socket);
+        }
+    }
+
     /**
      * Stop the server.
      */
     public void stop() {
         try {
             safeClose(myServerSocket);
+            if (mySelector != null) {
+                mySelector.wakeup();
+            }
             closeAllConnections();
             myThread.join();
         } catch (Exception e) {
@@ -288,6 +804,21 @@ public abstract class NanoHTTPD {
         return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found");
     }
 
+    /**
+     * Override this to accept WebSocket connections.
+     * <p/>
+     * <p>Called for a request asking to upgrade to a WebSocket. The connection
+     * is taken over by the handler until it closes, on the request thread.
+     * An upgrade from a page of another origin is answered with a 403.</p>
+     *
+     * @param session The HTTP session of the upgrade request
+     * @return The handler for the socket, or null to serve the request as
+     *         normal.
+     */
+    protected WebSocket.Handler openWebSocket(IHTTPSession session) {
+        return null;
+    }
+
     /**
      * Override this to customize the server.
      * <p/>
@@ -385,6 +916,13 @@ public abstract class NanoHTTPD {
         this.asyncRunner = asyncRunner;
     }
 
+    /**
+     * @return the strategy used for handling threads.
+     */
+    public AsyncRunner getAsyncRunner() {
+        return asyncRunner;
+    }
+
     // ------------------------------------------------------------------------------- //
     //
     // Temp file handling strategy.
@@ -420,9 +958,24 @@ public abstract class NanoHTTPD {
      * Pluggable strategy for asynchronously executing requests.
      */
     public interface AsyncRunner {
+        /**
+         * @param code the request to run.
+         * @throws RejectedExecutionException if the runner is full, the
+         *  connection is then answered with a 503.
+         */
         void exec(Runnable code);
     }
 
+    /**
+     * An async runner that keeps counts of the work it has been given.
+     */
+    public interface MeteredAsyncRunner extends AsyncRunner {
+        /**
+         * @return the active, queued and rejected counts as a map.
+         */
+        Map<String, Object> getMapStatus();
+    }
+
     /**
      * Factory to create temp file managers.
      */
@@ -478,6 +1031,131 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Threading strategy that runs requests on a fixed pool of threads.
+     * <p/>
+     * <p>Connections wait in a bounded queue while every thread is busy and
+     * are turned away with a 503 once the queue is full, so a burst of
+     * connections can't run the server out of memory.</p>
+     */
+    public static class BoundedAsyncRunner implements MeteredAsyncRunner {
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong rejected = new AtomicLong();
+
+        /**
+         * @param threads the most requests to run at once.
+         * @param queueSize the most requests to hold waiting for a thread.
+         */
+        public BoundedAsyncRunner(int threads, int queueSize) {
+            final AtomicLong threadCount = new AtomicLong();
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setDaemon(true);
+                        t.setName("NanoHttpd Request Processor (#" + threadCount.incrementAndGet() + ")");
+                        return t;
+                    }
+                });
+            // Idle threads go away, a Pi doesn't need to hold their stacks
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void exec(Runnable code) {
+            try {
+                executor.execute(code);
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                throw e;
+            }
+        }
+
+        @Override
+        public Map<String, Object> getMapStatus() {
+            Map<String, Object> status = new HashMap<String, Object>();
+            status.put("runner", "pool");
+            status.put("threads", executor.getMaximumPoolSize());
+            status.put("active", executor.getActiveCount());
+            status.put("queued", executor.getQueue().size());
+            status.put("completed", executor.getCompletedTaskCount());
+            status.put("rejected", rejected.get());
+            return status;
+        }
+    }
+
+    /**
+     * Threading strategy that runs each request on a virtual thread, on a
+     * JDK that has them.
+     * <p/>
+     * <p>Virtual threads are looked up by reflection so the server still
+     * builds for older JDKs. The number of requests at once is still capped,
+     * past that connections are turned away with a 503.</p>
+     */
+    public static class VirtualThreadAsyncRunner implements MeteredAsyncRunner {
+        private final ThreadFactory factory;
+        private final Semaphore permits;
+        private final int maxActive;
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+
+        /**
+         * @param newMaxActive the most requests to run at once.
+         * @throws UnsupportedOperationException if the JDK has no virtual
+         *  threads.
+         */
+        public VirtualThreadAsyncRunner(int newMaxActive) {
+            this.maxActive = newMaxActive;
+            this.permits = new Semaphore(newMaxActive);
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, "NanoHttpd Request Processor #", 1L);
+                factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (Exception e) {
+                throw new UnsupportedOperationException("Virtual threads are not available: " + e, e);
+            }
+        }
+
+        @Override
+        public void exec(final Runnable code) {
+            if (!permits.tryAcquire()) {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("Too many requests");
+            }
+            try {
+                factory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            code.run();
+                        } finally {
+                            completed.incrementAndGet();
+                            permits.release();
+                        }
+                    }
+                }).start();
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public Map<String, Object> getMapStatus() {
+            Map<String, Object> status = new HashMap<String, Object>();
+            status.put("runner", "virtual");
+            status.put("threads", maxActive);
+            status.put("active", maxActive - permits.availablePermits());
+            status.put("queued", 0);
+            status.put("completed", completed.get());
+            status.put("rejected", rejected.get());
+            return status;
+        }
+    }
+
     /**
      * Default strategy for creating and cleaning up temporary files.
      * <p/>
@@ -575,6 +1253,18 @@ public abstract class NanoHTTPD {
          * Use chunkedTransfer
          */
         private boolean chunkedTransfer;
+        /**
+         * The file to send, may be null.
+         */
+        private FileChannel file;
+        /**
+         * The position in the file to send from.
+         */
+        private long fileOffset;
+        /**
+         * The number of bytes of the file to send.
+         */
+        private long fileLength;
 
         /**
          * Default constructor: response = HTTP_OK, mime = MIME_HTML and your supplied message
@@ -592,6 +1282,22 @@ public abstract class NanoHTTPD {
             this.data = data;
         }
 
+        /**
+         * Send part of a file, it goes to the socket with transferTo() rather
+         * than being copied through a buffer. The data is still readable as
+         * a stream starting at the offset.
+         */
+        public Response(Status status, String mimeType, File file, long offset, long length) throws IOException {
+            this.status = status;
+            this.mimeType = mimeType;
+            FileInputStream in = new FileInputStream(file);
+            this.file = in.getChannel();
+            this.file.position(offset);
+            this.data = in;
+            this.fileOffset = offset;
+            this.fileLength = length;
+        }
+
         /**
          * Convenience method that makes an InputStream out of given text.
          */
@@ -651,17 +1357,23 @@ public abstract class NanoHTTPD {
                     }
                 }
 
-                pw.print("Connection: keep-alive\r\n");
+                if (header == null || header.get("Connection") == null) {
+                    pw.print("Connection: keep-alive\r\n");
+                }
 
                 if (requestMethod != Method.HEAD && chunkedTransfer) {
                     sendAsChunked(outputStream, pw);
+                } else if (file != null) {
+                    sendFile(outputStream, pw);
                 } else {
                     sendAsFixedLength(outputStream, pw);
                 }
                 outputStream.flush();
-                safeClose(data);
             } catch (IOException ioe) {
                 // Couldn't write? No can do.
+            } finally {
+                // Always release the data, it may be feeding from a pipe
+                safeClose(data);
             }
         }
 
@@ -677,10 +1389,37 @@ public abstract class NanoHTTPD {
                 outputStream.write(String.format("%x\r\n", read).getBytes());
                 outputStream.write(buff, 0, read);
                 outputStream.write(CRLF);
+                // Let each chunk go, the stream may be buffered
+                outputStream.flush();
             }
             outputStream.write(String.format("0\r\n\r\n").getBytes());
         }
 
+        private void sendFile(OutputStream outputStream, PrintWriter pw) throws IOException {
+            pw.print("Content-Length: " + fileLength + "\r\n");
+            pw.print("\r\n");
+            pw.flush();
+            if (requestMethod == Method.HEAD) {
+                return;
+            }
+            if (outputStream instanceof ChannelOutputStream) {
+                ((ChannelOutputStream) outputStream).transferFrom(file, fileOffset, fileLength);
+                return;
+            }
+            // The blocking transport has no channel to send to, the JDK
+            // copies it through a buffer
+            WritableByteChannel target = Channels.newChannel(outputStream);
+            long position = fileOffset;
+            long end = fileOffset + fileLength;
+            while (position < end) {
+                long sent = file.transferTo(position, end - position, target);
+                if (sent <= 0) {
+                    throw new IOException("File ended before its length");
+                }
+                position += sent;
+            }
+        }
+
         private void sendAsFixedLength(OutputStream outputStream, PrintWriter pw) throws IOException {
             int pending = data != null ? data.available() : 0; // This is to support partial sends, see serveFile()
             pw.print("Content-Length: "+pending+"\r\n");
@@ -746,7 +1485,7 @@ public abstract class NanoHTTPD {
             OK(200, "OK"), CREATED(201, "Created"), ACCEPTED(202, "Accepted"), NO_CONTENT(204, "No Content"), PARTIAL_CONTENT(206, "Partial Content"), REDIRECT(301,
                 "Moved Permanently"), NOT_MODIFIED(304, "Not Modified"), BAD_REQUEST(400, "Bad Request"), UNAUTHORIZED(401,
                 "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), RANGE_NOT_SATISFIABLE(416,
-                "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error");
+                "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error"), SERVICE_UNAVAILABLE(503, "Service Unavailable");
             private final int requestStatus;
             private final String description;
 
@@ -916,6 +1655,25 @@ public abstract class NanoHTTPD {
 
                 cookies = new CookieHandler(headers);
 
+                if (WebSocket.isUpgrade(headers)) {
+                    WebSocket.Handler handler = openWebSocket(this);
+                    if (handler != null) {
+                        if (!WebSocket.isSameOrigin(headers)) {
+                            throw new ResponseException(Response.Status.FORBIDDEN, "FORBIDDEN: WebSocket from another origin.");
+                        }
+                        try {
+                            WebSocket.serve(headers, inputStream, outputStream, handler);
+                        } catch (IOException e) {
+                            // The client went away
+                        } finally {
+                            safeClose(inputStream);
+                            safeClose(outputStream);
+                        }
+                        // Nothing more can be read from the connection
+                        throw new SocketException("NanoHttpd Shutdown");
+                    }
+                }
+
                 // Ok, now do the serve()
                 Response r = serve(this);
                 if (r == null) {
@@ -945,21 +1703,52 @@ public abstract class NanoHTTPD {
 
         @Override
         public void parseBody(Map<String, String> files) throws IOException, ResponseException {
+            long size;
+            if (headers.containsKey("content-length")) {
+                size = Integer.parseInt(headers.get("content-length"));
+            } else if (splitbyte < rlen) {
+                size = rlen - splitbyte;
+            } else {
+                size = 0;
+            }
+
+            if (size <= 0) {
+                // Nothing to read, leave the pooled buffers to bodies
+                byte[] empty = new byte[0];
+                BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(empty)));
+                decodeBody(ByteBuffer.wrap(empty), in, files);
+                return;
+            }
+
+            if (size <= MEMORY_BODY_SIZE) {
+                // Small bodies, the control posts, never touch the disk
+                byte[] body = BODY_POOL.poll();
+                if (body == null) {
+                    body = new byte[MEMORY_BODY_SIZE];
+                }
+                try {
+                    int length = 0;
+                    while (length < size) {
+                        rlen = inputStream.read(body, length, (int) size - length);
+                        if (rlen < 0) {
+                            break;
+                        }
+                        length += rlen;
+                    }
+                    BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body, 0, length)));
+                    decodeBody(ByteBuffer.wrap(body, 0, length).slice(), in, files);
+                } finally {
+                    BODY_POOL.offer(body);
+                }
+                return;
+            }
+
             RandomAccessFile randomAccessFile = null;
             BufferedReader in = null;
             try {
 
                 randomAccessFile = getTmpBucket();
 
-                long size;
-                if (headers.containsKey("content-length")) {
-                    size = Integer.parseInt(headers.get("content-length"));
-                } else if (splitbyte < rlen) {
-                    size = rlen - splitbyte;
-                } else {
-                    size = 0;
-                }
-
                 // Now read all the body and write it to f
                 byte[] buf = new byte[512];
                 while (rlen >= 0 && size > 0) {
@@ -978,52 +1767,62 @@ public abstract class NanoHTTPD {
                 InputStream bin = new FileInputStream(randomAccessFile.getFD());
                 in = new BufferedReader(new InputStreamReader(bin));
 
-                // If the method is POST, there may be parameters
-                // in data section, too, read it:
-                if (Method.POST.equals(method)) {
-                    String contentType = "";
-                    String contentTypeHeader = headers.get("content-type");
-
-                    StringTokenizer st = null;
-                    if (contentTypeHeader != null) {
-                        st = new StringTokenizer(contentTypeHeader, ",; ");
-                        if (st.hasMoreTokens()) {
-                            contentType = st.nextToken();
-                        }
+                decodeBody(fbuf, in, files);
+            } finally {
+                safeClose(randomAccessFile);
+                safeClose(in);
+            }
+        }
+
+        /**
+         * Decode the parameters and files of a request body.
+         * @param fbuf the raw body.
+         * @param in the body to read as text.
+         * @param files map to add the uploaded files to.
+         */
+        private void decodeBody(ByteBuffer fbuf, BufferedReader in, Map<String, String> files) throws IOException, ResponseException {
+            // If the method is POST, there may be parameters
+            // in data section, too, read it:
+            if (Method.POST.equals(method)) {
+                String contentType = "";
+                String contentTypeHeader = headers.get("content-type");
+
+                StringTokenizer st = null;
+                if (contentTypeHeader != null) {
+                    st = new StringTokenizer(contentTypeHeader, ",; ");
+                    if (st.hasMoreTokens()) {
+                        contentType = st.nextToken();
                     }
+                }
 
-                    if ("multipart/form-data".equalsIgnoreCase(contentType)) {
-                        // Handle multipart/form-data
-                        if (!st.hasMoreTokens()) {
-                            throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
-                        }
+                if ("multipart/form-data".equalsIgnoreCase(contentType)) {
+                    // Handle multipart/form-data
+                    if (!st.hasMoreTokens()) {
+                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
+                    }
 
-                        String boundaryStartString = "boundary=";
-                        int boundaryContentStart = contentTypeHeader.indexOf(boundaryStartString) + boundaryStartString.length();
-                        String boundary = contentTypeHeader.substring(boundaryContentStart, contentTypeHeader.length());
-                        if (boundary.startsWith("\"") && boundary.endsWith("\"")) {
-                            boundary = boundary.substring(1, boundary.length() - 1);
-                        }
+                    String boundaryStartString = "boundary=";
+                    int boundaryContentStart = contentTypeHeader.indexOf(boundaryStartString) + boundaryStartString.length();
+                    String boundary = contentTypeHeader.substring(boundaryContentStart, contentTypeHeader.length());
+                    if (boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                        boundary = boundary.substring(1, boundary.length() - 1);
+                    }
 
-                        decodeMultipartData(boundary, fbuf, in, parms, files);
-                    } else {
-                        // Handle application/x-www-form-urlencoded
-                        String postLine = "";
-                        char pbuf[] = new char[512];
-                        int read = in.read(pbuf);
-                        while (read >= 0 && !postLine.endsWith("\r\n")) {
-                            postLine += String.valueOf(pbuf, 0, read);
-                            read = in.read(pbuf);
-                        }
-                        postLine = postLine.trim();
-                        decodeParms(postLine, parms);
+                    decodeMultipartData(boundary, fbuf, in, parms, files);
+                } else {
+                    // Handle application/x-www-form-urlencoded
+                    String postLine = "";
+                    char pbuf[] = new char[512];
+                    int read = in.read(pbuf);
+                    while (read >= 0 && !postLine.endsWith("\r\n")) {
+                        postLine += String.valueOf(pbuf, 0, read);
+                        read = in.read(pbuf);
                     }
-                } else if (Method.PUT.equals(method)) {
-                    files.put("content", saveTmpFile(fbuf, 0, fbuf.limit()));
+                    postLine = postLine.trim();
+                    decodeParms(postLine, parms);
                 }
-            } finally {
-                safeClose(randomAccessFile);
-                safeClose(in);
+            } else if (Method.PUT.equals(method)) {
+                files.put("content", saveTmpFile(fbuf, 0, fbuf.limit()));
             }
         }
 
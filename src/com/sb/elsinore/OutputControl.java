@@ -3,6 +3,8 @@ import com.sb.elsinore.devices.CompressorDevice;
 import com.sb.elsinore.devices.OutputDevice;
 
 import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
 
 import jGPIO.InvalidGPIOException;
 
@@ -27,6 +29,17 @@ public final class OutputControl implements Runnable {
 
     private String status = "off";
 
+    /**
+     * The number of times the output loop has been woken by an interrupt.
+     */
+    private long loopInterrupts = 0;
+
+    /**
+     * Extra time allowed past a full cycle before the watchdog trips.
+     */
+    private static final long WATCHDOG_GRACE = 10000;
+    private static final BigDecimal THOUSAND = new BigDecimal(1000);
+
     public OutputControl() {
     }
 
@@ -74,15 +87,18 @@ public final class OutputControl implements Runnable {
     */
    @Override
    public void run() {
+        OutputWatchdog.Heartbeat heartbeat =
+            OutputWatchdog.getInstance().register(getWatchdogName(), this);
         try {
              while (true) {
 
+                 heartbeat.beat(getLongestCycle() + WATCHDOG_GRACE);
                  try {
                      BrewServer.LOG.info("Fduty: " + this.fDuty);
                      switch(fDuty.compareTo(BigDecimal.ZERO))
                      {
                          case 0:
-                             status = "off";
+                             setStatus("off");
                              if (getHeater() != null) 
                                  getHeater().turnOff();
                              if (getCooler() != null)
@@ -91,14 +107,14 @@ public final class OutputControl implements Runnable {
                              Thread.sleep(1000);
                              break;
                          case -1: //Less than 0
-                             status = "cooling";
+                             setStatus("cooling");
                              if (getHeater() != null)
                                  getHeater().turnOff();
                              if (getCooler() != null)
                                  getCooler().runCycle(fDuty.negate());
                              break;
                          case 1: //Greater than 0
-                             status = "heating";
+                             setStatus("heating");
                              if (getCooler() != null)
                                  getCooler().turnOff();
                              if (getHeater() != null)
@@ -107,6 +123,7 @@ public final class OutputControl implements Runnable {
                      }
                  } catch (InterruptedException e) {
                      // Sleep interrupted, why did we wakeup
+                     loopInterrupts++;
                      if (this.shuttingDown) {
                          return;
                      }
@@ -124,27 +141,57 @@ public final class OutputControl implements Runnable {
              BrewServer.LOG.warning(e1.getMessage());
              e1.printStackTrace();
          } finally {
+         heartbeat.cancel();
          BrewServer.LOG.warning("Output Control turning off outputs");
              if (getHeater() != null) {
-                 getHeater().turnOff();
+                 getHeater().forceOff();
              }
              if (getCooler() != null) {
-                 getCooler().turnOff();
+                 getCooler().forceOff();
              }
         }
     }
 
+    /**
+     * @return The longest cycle time of the outputs in milliseconds.
+     */
+    private long getLongestCycle() {
+        long longest = 1000;
+        if (getHeater() != null) {
+            longest = Math.max(longest,
+                getHeater().getCycleTime().multiply(THOUSAND).longValue());
+        }
+        if (getCooler() != null) {
+            longest = Math.max(longest,
+                getCooler().getCycleTime().multiply(THOUSAND).longValue());
+        }
+        return longest;
+    }
+
+    /**
+     * @return The name to identify these outputs with in the watchdog log.
+     */
+    private String getWatchdogName() {
+        if (getHeater() != null) {
+            return getHeater().getName() + " outputs";
+        }
+        if (getCooler() != null) {
+            return getCooler().getName() + " outputs";
+        }
+        return "outputs";
+    }
+
     /**
      * Shutdown the thread.
      */
     public void shutdown() {
         BrewServer.LOG.info("Shutting down OC");
         if (getHeater() != null) {
-            getHeater().turnOff();
+            getHeater().forceOff();
             getHeater().disable();
         }
         if (getCooler() != null) {
-            getCooler().turnOff();
+            getCooler().forceOff();
             getCooler().disable();
         }
     }
@@ -156,6 +203,33 @@ public final class OutputControl implements Runnable {
         return status;
    }
 
+   /**
+    * @param newStatus The new status, a change is shown in the status.
+    */
+   private void setStatus(final String newStatus) {
+        if (!newStatus.equals(status)) {
+            status = newStatus;
+            StatusVersion.bump();
+        }
+   }
+
+   /**
+    * @return The timing metrics of the outputs as a map.
+    */
+   public Map<String, Object> getMetrics() {
+        Map<String, Object> statusMap = new HashMap<String, Object>();
+        statusMap.put("duty", getDuty());
+        statusMap.put("status", status);
+        statusMap.put("loopInterrupts", loopInterrupts);
+        if (getHeater() != null) {
+            statusMap.put("heater", getHeater().getMetrics().getMapStatus());
+        }
+        if (getCooler() != null) {
+            statusMap.put("cooler", getCooler().getMetrics().getMapStatus());
+        }
+        return statusMap;
+   }
+
    /**
     * @param duty The duty to set this control with.
     */
@@ -0,0 +1,175 @@
+package com.sb.elsinore;
+
+import java.math.BigDecimal;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * A failsafe that turns outputs off when the threads driving them stall.
+ * Every control loop registers a heartbeat and has to beat it before its
+ * deadline, if a deadline is missed the outputs are forced off until the
+ * loop recovers. All the heartbeats share one thread and one queue ordered
+ * by deadline, so only the earliest deadline is ever waited on.
+ */
+public final class OutputWatchdog implements Runnable {
+
+    /**
+     * The single watchdog instance.
+     */
+    private static OutputWatchdog instance = null;
+
+    /**
+     * The heartbeats that are waiting for a deadline, earliest first.
+     */
+    private final PriorityQueue<Heartbeat> deadlines =
+        new PriorityQueue<Heartbeat>(11, new Comparator<Heartbeat>() {
+            @Override
+            public int compare(final Heartbeat a, final Heartbeat b) {
+                if (a.deadline < b.deadline) {
+                    return -1;
+                }
+                return a.deadline > b.deadline ? 1 : 0;
+            }
+        });
+
+    private OutputWatchdog() {
+    }
+
+    /**
+     * Get the watchdog, starting its thread if needed.
+     * @return The watchdog.
+     */
+    public static synchronized OutputWatchdog getInstance() {
+        if (instance == null) {
+            instance = new OutputWatchdog();
+            Thread watchdogThread = new Thread(instance, "OutputWatchdog");
+            watchdogThread.setDaemon(true);
+            watchdogThread.setPriority(Thread.MAX_PRIORITY);
+            watchdogThread.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Register a new heartbeat for an output control.
+     * The heartbeat does not have a deadline until it is first beaten.
+     * @param name The name to log the heartbeat with.
+     * @param control The outputs to turn off if the heartbeat is missed.
+     * @return The new heartbeat.
+     */
+    public Heartbeat register(final String name, final OutputControl control) {
+        return new Heartbeat(name, control);
+    }
+
+    /**
+     * Wait for the earliest deadline and trip everything that has expired.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            Heartbeat expired = null;
+            synchronized (deadlines) {
+                try {
+                    Heartbeat first = deadlines.peek();
+                    if (first == null) {
+                        deadlines.wait();
+                        continue;
+                    }
+                    long wait = first.deadline - System.currentTimeMillis();
+                    if (wait > 0) {
+                        deadlines.wait(wait);
+                        continue;
+                    }
+                    expired = deadlines.poll();
+                    expired.tripped = true;
+                    expired.queued = false;
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            // Turn off the outputs outside the lock so a slow GPIO write
+            // doesn't hold up other heartbeats.
+            expired.trip();
+        }
+    }
+
+    /**
+     * A single heartbeat, owned by one control loop.
+     */
+    public final class Heartbeat {
+
+        private final String name;
+        private final OutputControl control;
+        private long deadline = 0;
+        private long lastBeat = 0;
+        private boolean tripped = false;
+        private boolean queued = false;
+
+        private Heartbeat(final String newName,
+                final OutputControl newControl) {
+            this.name = newName;
+            this.control = newControl;
+        }
+
+        /**
+         * Beat the heartbeat, pushing the deadline out.
+         * @param timeout The time in milliseconds until the next beat is due.
+         */
+        public void beat(final long timeout) {
+            long now = System.currentTimeMillis();
+            boolean recovered;
+            long stalled;
+            synchronized (deadlines) {
+                recovered = tripped;
+                stalled = now - lastBeat;
+                tripped = false;
+                lastBeat = now;
+                if (queued) {
+                    deadlines.remove(this);
+                }
+                deadline = now + timeout;
+                deadlines.add(this);
+                queued = true;
+                deadlines.notify();
+            }
+            if (recovered) {
+                BrewServer.LOG.warning("Watchdog: " + name
+                    + " recovered after stalling for " + stalled + "ms");
+            }
+        }
+
+        /**
+         * Stop watching this heartbeat.
+         */
+        public void cancel() {
+            synchronized (deadlines) {
+                if (queued) {
+                    deadlines.remove(this);
+                    queued = false;
+                }
+                tripped = false;
+            }
+        }
+
+        /**
+         * Force the outputs off after a missed deadline.
+         */
+        private void trip() {
+            BrewServer.LOG.warning("Watchdog: " + name + " missed its deadline by "
+                + (System.currentTimeMillis() - deadline)
+                + "ms, turning off the outputs");
+            try {
+                if (control.getHeater() != null) {
+                    control.getHeater().forceOff();
+                }
+                if (control.getCooler() != null) {
+                    control.getCooler().forceOff();
+                }
+                control.setDuty(BigDecimal.ZERO);
+            } catch (RuntimeException e) {
+                BrewServer.LOG.warning("Watchdog: could not turn off "
+                    + name + ": " + e.getMessage());
+            }
+        }
+    }
+}
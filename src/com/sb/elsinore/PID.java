@@ -1,5 +1,7 @@
 package com.sb.elsinore;
 import com.sb.elsinore.devices.OutputDevice;
+import com.sb.elsinore.recorder.Sample;
+import com.sb.elsinore.recorder.SampleFeed;
 import com.sb.util.MathUtil;
 
 import jGPIO.InvalidGPIOException;
@@ -31,6 +33,11 @@ public final class PID implements Runnable {
      * The Output control thread.
      */
     private Thread outputThread = null;
+    /**
+     * The time in milliseconds the main loop can stall before the watchdog
+     * turns off the outputs.
+     */
+    private static final long WATCHDOG_TIMEOUT = 30000;
     private boolean invertOutput = false;
     private BigDecimal duty_cycle = new BigDecimal(0);
     private BigDecimal calculatedDuty = new BigDecimal(0);
@@ -232,8 +239,13 @@ public final class PID implements Runnable {
             }
         }
 
+        // The outputs are turned off if this loop stalls
+        OutputWatchdog.Heartbeat heartbeat = OutputWatchdog.getInstance()
+            .register(fName + " PID", this.outputControl);
+
         // Main loop
         while (running) {
+            heartbeat.beat(WATCHDOG_TIMEOUT);
             try {
                 synchronized (this.fTemp) {
                     // do the bulk of the work here
@@ -251,8 +263,12 @@ public final class PID implements Runnable {
                         BigDecimal tempAvg = calcAverage();
                         // we have the current temperature
                         if (mode.equals("auto")) {
+                            BigDecimal lastDuty = this.calculatedDuty;
                             this.calculatedDuty =
                                 calculate(tempAvg, true);
+                            if (calculatedDuty.compareTo(lastDuty) != 0) {
+                                StatusVersion.bump();
+                            }
                             BrewServer.LOG.info(
                                     "Calculated: " + calculatedDuty);
                             this.outputControl.setDuty(calculatedDuty);
@@ -276,6 +292,7 @@ public final class PID implements Runnable {
                         BrewServer.LOG.info(mode + ": " + fName + " status: "
                             + fTempF + " duty cycle: "
                             + this.outputControl.getDuty());
+                        publishDuty();
                     }
                     //notify all waiters of the change of state
                 }
@@ -287,6 +304,21 @@ public final class PID implements Runnable {
                 Thread.currentThread().interrupt();
             }
         }
+        heartbeat.cancel();
+    }
+
+    /**
+     * Publish the duty the outputs are being asked for to the sample feed.
+     */
+    private void publishDuty() {
+        BigDecimal duty = BigDecimal.ZERO;
+        if (mode.contains("auto")) {
+            duty = calculatedDuty;
+        } else if (!mode.equals("off")) {
+            duty = getDuty();
+        }
+        SampleFeed.publish(fName, Sample.Kind.DUTY,
+            System.currentTimeMillis(), duty.doubleValue());
     }
 
     private boolean minTimePassed() {
@@ -314,6 +346,7 @@ public final class PID implements Runnable {
         }
 
         this.duty_cycle = duty;
+        StatusVersion.bump();
     }
 
     /****
@@ -325,6 +358,7 @@ public final class PID implements Runnable {
             temp = BigDecimal.ZERO;
         }
         this.set_point = temp;
+        StatusVersion.bump();
     }
 
     /*******
@@ -85,6 +85,7 @@ public class Pump implements Comparable<Pump> {
         } else {
             output.setValue(true);
         }
+        StatusVersion.bump();
     }
 
     /**
@@ -96,6 +97,7 @@ public class Pump implements Comparable<Pump> {
         } else {
             output.setValue(false);
         }
+        StatusVersion.bump();
     }
 
     /**
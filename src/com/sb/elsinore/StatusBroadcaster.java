@@ -0,0 +1,399 @@
+package com.sb.elsinore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Pushes the status to the browsers as Server-Sent Events or WebSocket
+ * messages, so they don't have to poll /getstatus.
+ * While anyone is listening, one thread checks the status version once a
+ * second. When the version has moved on it reads the shared status, and
+ * if that has changed it sends the top level entries that changed to
+ * every subscriber as a "delta" event. A new subscriber gets the whole
+ * status as a "status" event first, or the events it missed if it
+ * reconnects with a Last-Event-ID that is still held.
+ * Each subscriber has a bounded queue, a subscriber that can't keep up is
+ * dropped and its browser reconnects and catches up.
+ */
+public final class StatusBroadcaster implements Runnable {
+
+    /**
+     * The time in milliseconds between checks of the status.
+     */
+    public static final long POLL_INTERVAL = 1000;
+    /**
+     * The longest time in milliseconds a subscriber goes without being sent
+     * anything, which keeps proxies from closing the stream.
+     */
+    public static final long HEARTBEAT_INTERVAL = 15000;
+    /**
+     * The most events waiting to be sent to one subscriber.
+     */
+    public static final int SUBSCRIBER_QUEUE = 32;
+    /**
+     * The most events held to replay to a subscriber that reconnects.
+     */
+    public static final int REPLAY_SIZE = 128;
+    /**
+     * The most subscribers at once, each holds a thread.
+     */
+    public static final int MAX_SUBSCRIBERS = 8;
+
+    private static final byte[] HEARTBEAT = bytes(": keep-alive\n\n");
+
+    /**
+     * The single broadcaster instance.
+     */
+    private static StatusBroadcaster instance = null;
+
+    private final CopyOnWriteArrayList<Subscription> subscribers =
+        new CopyOnWriteArrayList<Subscription>();
+    /**
+     * The newest events, oldest first. Guards the events and the last
+     * status sent.
+     */
+    private final ArrayDeque<Event> replay = new ArrayDeque<Event>();
+    private String lastStatus = null;
+    private JSONObject lastJSON = null;
+    private long nextId = 1;
+    private long dropped = 0;
+
+    private StatusBroadcaster() {
+    }
+
+    /**
+     * Get the broadcaster, starting its thread if needed.
+     * @return The broadcaster.
+     */
+    public static synchronized StatusBroadcaster getInstance() {
+        if (instance == null) {
+            instance = new StatusBroadcaster();
+            Thread broadcastThread = new Thread(instance, "StatusBroadcaster");
+            broadcastThread.setDaemon(true);
+            broadcastThread.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Check the status once a second while there are subscribers.
+     */
+    @Override
+    public void run() {
+        String lastTag = null;
+        while (true) {
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (subscribers.isEmpty()) {
+                lastTag = null;
+                continue;
+            }
+            // Nothing to send unless the status version has moved on
+            String tag = StatusVersion.getTag();
+            if (tag.equals(lastTag)) {
+                continue;
+            }
+            try {
+                // The shared status may be a little older than the tag
+                StatusCache.Snapshot status = StatusCache.getInstance().get();
+                lastTag = status.getTag();
+                update(status.getJSON());
+            } catch (Exception e) {
+                BrewServer.LOG.warning("Couldn't build the status for the"
+                    + " event stream: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Send the parts of the status that have changed to every subscriber.
+     * @param status The status as JSON.
+     * @throws ParseException If the status isn't a JSON object.
+     */
+    @SuppressWarnings("unchecked")
+    private void update(final String status) throws ParseException {
+        JSONObject json = (JSONObject) new JSONParser().parse(status);
+        synchronized (replay) {
+            if (status.equals(lastStatus)) {
+                return;
+            }
+            JSONObject delta = new JSONObject();
+            for (Object key : json.keySet()) {
+                Object value = json.get(key);
+                Object lastValue = lastJSON == null ? null : lastJSON.get(key);
+                if (lastJSON == null || !lastJSON.containsKey(key)
+                        || (value == null ? lastValue != null
+                            : !value.equals(lastValue))) {
+                    delta.put(key, value);
+                }
+            }
+            if (lastJSON != null) {
+                for (Object key : lastJSON.keySet()) {
+                    if (!json.containsKey(key)) {
+                        delta.put(key, null);
+                    }
+                }
+            }
+            lastStatus = status;
+            lastJSON = json;
+
+            Event event = new Event(nextId++, "delta", delta.toJSONString());
+            replay.addLast(event);
+            if (replay.size() > REPLAY_SIZE) {
+                replay.removeFirst();
+            }
+            for (Subscription subscription : subscribers) {
+                if (!subscription.queue.offer(event)) {
+                    // Too slow, it will catch up when it reconnects
+                    dropped++;
+                    subscription.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a subscriber.
+     * @param lastEventId The id of the last event the subscriber saw, or
+     *            null for a new subscriber.
+     * @return The subscription, or null if there are too many subscribers.
+     */
+    public Subscription subscribe(final String lastEventId) {
+        Subscription subscription = new Subscription();
+        String status = null;
+        synchronized (replay) {
+            if (subscribers.size() >= MAX_SUBSCRIBERS) {
+                return null;
+            }
+            long lastId = -1;
+            if (lastEventId != null) {
+                try {
+                    lastId = Long.parseLong(lastEventId.trim());
+                } catch (NumberFormatException e) {
+                    lastId = -1;
+                }
+            }
+            Event oldest = replay.peekFirst();
+            long missed = nextId - 1 - lastId;
+            if (lastId >= 0 && missed >= 0 && missed < SUBSCRIBER_QUEUE
+                    && oldest != null && lastId >= oldest.id - 1) {
+                // Everything it missed is held and fits in its queue,
+                // replay it
+                for (Event event : replay) {
+                    if (event.id > lastId) {
+                        subscription.queue.offer(event);
+                    }
+                }
+                subscribers.add(subscription);
+                return subscription;
+            }
+            status = lastStatus;
+            if (status != null) {
+                subscription.queue.offer(
+                    new Event(nextId - 1, "status", status));
+                subscribers.add(subscription);
+                return subscription;
+            }
+        }
+        // Nothing has been sent yet, start everyone off from now
+        status = StatusCache.getInstance().get().getJSON();
+        JSONObject json;
+        try {
+            json = (JSONObject) new JSONParser().parse(status);
+        } catch (ParseException e) {
+            json = null;
+        }
+        synchronized (replay) {
+            if (lastStatus == null) {
+                lastStatus = status;
+                lastJSON = json;
+            }
+            subscription.queue.offer(
+                new Event(nextId - 1, "status", lastStatus));
+            subscribers.add(subscription);
+        }
+        return subscription;
+    }
+
+    /**
+     * Add a subscriber that reads the events as a Server-Sent Events
+     * stream, to be sent as the body of a chunked response.
+     * @param lastEventId The id of the last event the subscriber saw, or
+     *            null for a new subscriber.
+     * @return The stream, or null if there are too many subscribers.
+     */
+    public InputStream subscribeStream(final String lastEventId) {
+        Subscription subscription = subscribe(lastEventId);
+        return subscription == null ? null : new EventStream(subscription);
+    }
+
+    /**
+     * @return The subscriber and event counts as a map.
+     */
+    public Map<String, Object> getMapStatus() {
+        Map<String, Object> status = new HashMap<String, Object>();
+        synchronized (replay) {
+            status.put("subscribers", subscribers.size());
+            status.put("lastEventId", nextId - 1);
+            status.put("replayEvents", replay.size());
+            status.put("dropped", dropped);
+        }
+        return status;
+    }
+
+    private static byte[] bytes(final String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * An event, encoded once for every subscriber.
+     */
+    public static final class Event {
+        private final long id;
+        private final String type;
+        private final String data;
+        private byte[] encoded = null;
+        private byte[] frame = null;
+
+        private Event(final long newId, final String newType,
+                final String newData) {
+            this.id = newId;
+            this.type = newType;
+            this.data = newData;
+        }
+
+        /**
+         * @return The event as Server-Sent Events text.
+         */
+        private synchronized byte[] getEncoded() {
+            if (encoded == null) {
+                // JSON from json-simple has its newlines escaped, so the
+                // data fits on one line
+                encoded = bytes("id: " + id + "\nevent: " + type
+                    + "\ndata: " + data + "\n\n");
+            }
+            return encoded;
+        }
+
+        /**
+         * @return The event as a WebSocket text frame of
+         *         {"event": type, "id": id, "data": status}.
+         */
+        public synchronized byte[] getFrame() {
+            if (frame == null) {
+                frame = WebSocket.textFrame("{\"event\":\"" + type
+                    + "\",\"id\":" + id + ",\"data\":" + data + "}");
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * The events waiting to be sent to one subscriber.
+     */
+    public final class Subscription {
+        private final BlockingQueue<Event> queue =
+            new ArrayBlockingQueue<Event>(SUBSCRIBER_QUEUE);
+        private volatile boolean closed = false;
+
+        /**
+         * Wait for the next event.
+         * @param timeout The longest time to wait in milliseconds.
+         * @return The event, or null if none came or the subscription has
+         *         been closed.
+         * @throws InterruptedException If the thread is interrupted.
+         */
+        public Event poll(final long timeout) throws InterruptedException {
+            if (closed) {
+                return null;
+            }
+            Event event = queue.poll(timeout, TimeUnit.MILLISECONDS);
+            return closed ? null : event;
+        }
+
+        /**
+         * @return True once the subscription has been closed or dropped.
+         */
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Stop receiving events.
+         */
+        public void close() {
+            closed = true;
+            subscribers.remove(this);
+            // Wake the thread waiting for an event
+            queue.clear();
+            queue.offer(new Event(-1, "closed", "null"));
+        }
+    }
+
+    /**
+     * The events of a subscription as a Server-Sent Events stream. It
+     * blocks until an event is due, sends a heartbeat comment if none
+     * comes, and ends once the subscription is closed.
+     */
+    private static final class EventStream extends InputStream {
+        private final Subscription subscription;
+        private byte[] current = null;
+        private int position = 0;
+
+        private EventStream(final Subscription newSubscription) {
+            this.subscription = newSubscription;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset,
+                final int length) throws IOException {
+            if (current == null || position == current.length) {
+                try {
+                    Event event = subscription.poll(HEARTBEAT_INTERVAL);
+                    if (subscription.isClosed()) {
+                        return -1;
+                    }
+                    current = event == null ? HEARTBEAT : event.getEncoded();
+                } catch (InterruptedException e) {
+                    subscription.close();
+                    return -1;
+                }
+                position = 0;
+            }
+            int count = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            subscription.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.sb.elsinore;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the last status built, so every browser polling /getstatus and
+ * the event stream share one build of it.
+ * The status is built again once the status version has moved on, but
+ * not more than once per interval. Callers that ask while a build is
+ * running wait for it and share its result instead of building their own.
+ */
+public final class StatusCache {
+
+    /**
+     * The default shortest time in milliseconds between builds.
+     */
+    public static final long DEFAULT_INTERVAL = 500;
+    /**
+     * The longest time in milliseconds a status is served for, to pick up
+     * anything read straight from the hardware.
+     */
+    public static final long MAX_AGE = 5000;
+
+    /**
+     * The single cache instance.
+     */
+    private static StatusCache instance = null;
+
+    /**
+     * The shortest time in milliseconds between builds of the status, a
+     * status up to this old is served even when the version has moved on.
+     */
+    private static volatile long interval = DEFAULT_INTERVAL;
+
+    private volatile Snapshot snapshot = null;
+    /**
+     * Held while the status is being built.
+     */
+    private final Object buildLock = new Object();
+    private long builds = 0;
+    private long hits = 0;
+    private long coalesced = 0;
+
+    private StatusCache() {
+    }
+
+    /**
+     * @return The cache.
+     */
+    public static synchronized StatusCache getInstance() {
+        if (instance == null) {
+            instance = new StatusCache();
+        }
+        return instance;
+    }
+
+    /**
+     * @return The shortest time in milliseconds between builds.
+     */
+    public static long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @param newInterval The shortest time in milliseconds between builds,
+     *  0 to build the status whenever its version has moved on.
+     */
+    public static void setInterval(final long newInterval) {
+        interval = Math.max(0, newInterval);
+    }
+
+    /**
+     * Get the status, building it if the cached one is out of date.
+     * @return The status.
+     */
+    public Snapshot get() {
+        String tag = StatusVersion.getTag();
+        Snapshot current = snapshot;
+        if (isFresh(current, tag)) {
+            synchronized (this) {
+                hits++;
+            }
+            return current;
+        }
+        synchronized (buildLock) {
+            // Another caller may have built it while this one waited
+            current = snapshot;
+            tag = StatusVersion.getTag();
+            if (isFresh(current, tag)) {
+                synchronized (this) {
+                    coalesced++;
+                }
+                return current;
+            }
+            current = new Snapshot(tag, LaunchControl.getJSONStatus());
+            snapshot = current;
+            synchronized (this) {
+                builds++;
+            }
+            return current;
+        }
+    }
+
+    private static boolean isFresh(final Snapshot current, final String tag) {
+        if (current == null) {
+            return false;
+        }
+        long age = System.currentTimeMillis() - current.built;
+        if (age < 0 || age >= MAX_AGE) {
+            return false;
+        }
+        return current.tag.equals(tag) || age < interval;
+    }
+
+    /**
+     * @return The build and hit counts as a map.
+     */
+    public synchronized Map<String, Object> getMapStatus() {
+        Map<String, Object> status = new HashMap<String, Object>();
+        status.put("interval", interval);
+        status.put("builds", builds);
+        status.put("hits", hits);
+        status.put("coalesced", coalesced);
+        return status;
+    }
+
+    /**
+     * A status as it was built.
+     */
+    public static final class Snapshot {
+        private final String tag;
+        private final String json;
+        private final byte[] bytes;
+        private final long built = System.currentTimeMillis();
+
+        private Snapshot(final String newTag, final String newJSON) {
+            this.tag = newTag;
+            this.json = newJSON;
+            try {
+                this.bytes = newJSON.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return The status version tag it was built for, quoted.
+         */
+        public String getTag() {
+            return tag;
+        }
+
+        /**
+         * @return The status as JSON.
+         */
+        public String getJSON() {
+            return json;
+        }
+
+        /**
+         * @return The status as UTF-8 JSON, read without being copied.
+         */
+        public InputStream getStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+}
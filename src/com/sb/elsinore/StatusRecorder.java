@@ -1,33 +1,109 @@
 package com.sb.elsinore;
 
+import com.sb.elsinore.recorder.ChangeDetector;
+import com.sb.elsinore.recorder.Journal;
+import com.sb.elsinore.recorder.Sample;
+import com.sb.elsinore.recorder.SampleFeed;
+import com.sb.elsinore.recorder.Rollup;
+import com.sb.elsinore.recorder.SampleListener;
+import com.sb.elsinore.recorder.SegmentAppender;
+import com.sb.elsinore.recorder.SeriesWriter;
+import com.sb.elsinore.recorder.SessionCatalog;
+import com.sb.elsinore.recorder.TailCache;
+
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.math.BigDecimal;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 
 /**
- *
- *
+ * Records the temperature and duty of each vessel to binary segment files,
+ * one series per file with an index of its blocks next to it.
+ * Samples arrive from the {@link SampleFeed} as they are read and are
+ * written from the recorder thread, so the devices never wait on the disk.
  */
-public class StatusRecorder implements Runnable {
+public class StatusRecorder implements Runnable, SampleListener {
 
+    /**
+     * The absolute deadband of temperature series.
+     */
     public static double THRESHOLD = .15d;
+    /**
+     * The deadband of temperature series as a fraction of the value.
+     */
+    public static double RELATIVE = 0;
+    /**
+     * The longest time in milliseconds between recorded points of a series,
+     * 0 for no limit.
+     */
+    public static long HEARTBEAT = 0;
+    /**
+     * The swinging door width of temperature series, 0 to use the deadband.
+     */
+    public static double DOOR = 0;
+    /**
+     * Change detection settings of single series, keyed by series name,
+     * as "absolute=..;relative=..;heartbeat=..;door=..".
+     */
+    public static final Map<String, String> SERIES_SETTINGS =
+        new ConcurrentHashMap<String, String>();
+    /**
+     * The minimum time between recorded points of a series.
+     */
     public static long SLEEP = 1000 * 5; // 5 seconds - is this too fast?
-    private JSONObject lastStatus = null;
-    private long lastStatusTime = 0;
+    /**
+     * Force the series files to the disk after every write.
+     */
+    public static boolean SYNC = false;
+    /**
+     * How many minutes of points to keep in memory for the live graph.
+     */
+    public static long TAIL_MINUTES = 4 * 60;
+    /**
+     * The most points of one series to keep in memory for the live graph.
+     */
+    public static int TAIL_POINTS = 4096;
+    /**
+     * The number of samples that can be waiting to be written.
+     */
+    private static final int QUEUE_SIZE = 1024;
+    /**
+     * The longest time in milliseconds to wait for the recorder thread to
+     * write out what it holds when stopping.
+     */
+    private static final long STOP_TIMEOUT = 15000;
     private String logFile = null;
     private Thread thread;
+    /**
+     * Cleared to stop the recorder thread. It isn't interrupted, as an
+     * interrupt during a write closes the file channel and the files then
+     * couldn't be written out.
+     */
+    private volatile boolean running = false;
     private long startTime = 0;
     private String recorderDirectory = StatusRecorder.defaultDirectory;
-    private HashMap<String, Status> temperatureMap;
-    private HashMap<String, Status> dutyMap;
+    private final HashMap<String, RecordedSeries> recordedSeries =
+        new HashMap<String, RecordedSeries>();
+    private final HashMap<String, SegmentAppender> appenders =
+        new HashMap<String, SegmentAppender>();
+    private final HashMap<String, Rollup[]> rollups =
+        new HashMap<String, Rollup[]>();
+    private final BlockingQueue<Sample> samples =
+        new LinkedBlockingQueue<Sample>(QUEUE_SIZE);
+    private long droppedSamples = 0;
+    private final SeriesWriter writer = new SeriesWriter(SYNC);
+    private final SessionCatalog catalog;
+    private Journal journal = null;
+    private Map<String, Object> recovery = null;
+    private final TailCache tail =
+        new TailCache(TAIL_MINUTES * 60 * 1000, TAIL_POINTS);
     boolean writeRawLog = false;
     public static String defaultDirectory = "graph-data/";
     public static String DIRECTORY_PROPERTY = "recorder_directory";
@@ -35,6 +111,7 @@ public class StatusRecorder implements Runnable {
     
     public StatusRecorder(String recorderDirectory) {
         this.recorderDirectory = recorderDirectory;
+        this.catalog = new SessionCatalog(new File(recorderDirectory));
     }
 
     /**
@@ -42,8 +119,11 @@ public class StatusRecorder implements Runnable {
      */
     public final void start() {
         if (thread == null || !thread.isAlive()) {
-            temperatureMap = new HashMap();
-            dutyMap = new HashMap();
+            recordedSeries.clear();
+            appenders.clear();
+            rollups.clear();
+            tail.reset();
+            running = true;
             thread = new Thread(this);
             thread.setDaemon(true);
             thread.start();
@@ -51,17 +131,43 @@ public class StatusRecorder implements Runnable {
     }
 
     /**
-     * Stop the thread.
+     * Stop the thread, waiting for it to write out the open blocks,
+     * rollups and buffers and close the session.
      */
     public final void stop() {
+        SampleFeed.removeListener(this);
+        running = false;
         if (thread != null) {
-            thread.interrupt();
+            try {
+                thread.join(STOP_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                BrewServer.LOG.warning("Status Recorder didn't stop in "
+                    + STOP_TIMEOUT + "ms");
+            }
             thread = null;
         }
     }
 
     /**
-     * Main runnable, updates the files every five seconds.
+     * Queue a sample for the recorder thread.
+     * @param sample The new sample.
+     */
+    @Override
+    public final synchronized void onSample(final Sample sample) {
+        if (!samples.offer(sample)) {
+            droppedSamples++;
+            if (droppedSamples % QUEUE_SIZE == 1) {
+                BrewServer.LOG.warning("Status Recorder is behind, dropped "
+                    + droppedSamples + " samples");
+            }
+        }
+    }
+
+    /**
+     * Main runnable, writes the samples as they come in.
      */
     @Override
     public final void run() {
@@ -73,10 +179,26 @@ public class StatusRecorder implements Runnable {
         //Keep checking the status until all the temperature sensors are initialized
         try {
             
-            while( ! checkInitialized() ){
+            while (running && !checkInitialized()) {
                 Thread.sleep(1000);
             }
+            if (!running) {
+                return;
+            }
         
+            // Replay the journal of the last session if it didn't stop cleanly
+            long lastSession = catalog.newest();
+            if (lastSession > 0) {
+                Journal.Recovery recovered =
+                    Journal.recover(catalog.sessionDirectory(lastSession));
+                if (recovered != null) {
+                    // The catalog was saved before the torn blocks were cut
+                    // off and without the points the journal put back
+                    catalog.rescan(lastSession, recovered.getNewest());
+                    recovery = recovered.getMapStatus();
+                }
+            }
+
             startTime = System.currentTimeMillis();
 
             String directory = recorderDirectory + startTime + "/";
@@ -84,6 +206,8 @@ public class StatusRecorder implements Runnable {
             directoryFile.mkdirs();
             LaunchControl.setFileOwner(directoryFile.getParentFile());
             LaunchControl.setFileOwner(directoryFile);
+            catalog.startSession(startTime);
+            journal = new Journal(directoryFile);
 
             //Generate a new log file under the current directory
             logFile = directory + "raw.log";
@@ -92,286 +216,358 @@ public class StatusRecorder implements Runnable {
             boolean fileExists = file.exists();
             LaunchControl.setFileOwner(file);
 
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-
-        
-            while (true) {
-                //Just going to record when something changes
-                String status = LaunchControl.getJSONStatus();
-                JSONObject newStatus = (JSONObject) JSONValue.parse(status);
-
-                if (lastStatus == null || isDifferent(lastStatus, newStatus)) {
-                    //For now just log the whole status
-                    //Eventually we may want multiple logs, etc.
+            SampleFeed.addListener(this);
+            while (running) {
+                Sample sample = samples.poll(1, TimeUnit.SECONDS);
+                if (sample != null) {
+                    rollupSample(sample, directory);
+                }
+                if (sample != null && recordSample(sample, directory)) {
                     if (writeRawLog) {
-                        writeToLog(newStatus, fileExists);
+                        writeToLog(sample, fileExists);
+                        fileExists = true;
                     }
-
-                    Date now = new Date();
-
-//                    if (lastStatus != null
-//                            && now.getTime() - lastStatusTime > SLEEP) {
-//                        //Print out a point before now to make sure
-//                        // the plot lines are correct
-//                        printJsonToCsv(new Date(now.getTime() - SLEEP),
-//                                lastStatus, directory);
-//                    }
-
-                    printJsonToCsv(now, newStatus, directory);
-                    lastStatus = newStatus;
-                    lastStatusTime = now.getTime();
-
-                    fileExists = true;
                 }
-
-                Thread.sleep(SLEEP);
-
+                if (!running) {
+                    // Keep what was queued before the recorder was stopped
+                    SampleFeed.removeListener(this);
+                    while ((sample = samples.poll()) != null) {
+                        rollupSample(sample, directory);
+                        recordSample(sample, directory);
+                    }
+                    BrewServer.LOG.warning("Status Recorder shutting down");
+                    break;
+                }
+                writeAgedBlocks();
+                journal.checkpointDue(writer, System.currentTimeMillis());
+                journal.syncDue(writer, System.currentTimeMillis());
+                writer.setSync(SYNC);
+                tail.configure(TAIL_MINUTES * 60 * 1000, TAIL_POINTS);
+                writer.flushDue();
+                catalog.saveDue();
             }
         } catch (InterruptedException ex) {
             BrewServer.LOG.warning("Status Recorder shutting down");
             return;
             //Don't do anything, this is how we close this out.
+        } finally {
+            SampleFeed.removeListener(this);
+            finishRollups();
+            flushDetectors();
+            finishAppenders();
+            if (journal != null) {
+                // Everything is in the segments now
+                writer.flushAll();
+                journal.close(writer);
+                journal = null;
+            }
+            writer.close();
+            if (startTime > 0) {
+                catalog.finishSession();
+            }
         }
 
     }
     
+    /**
+     * @return True once every temperature probe has a reading.
+     */
     protected boolean checkInitialized()
     {
-        String status = LaunchControl.getJSONStatus();
-        JSONObject newStatus = (JSONObject) JSONValue.parse(status);
-        JSONArray vessels = (JSONArray) newStatus.get("vessels");
         boolean initialized = true;
-        for (int x = 0; x < vessels.size(); x++) {
-            JSONObject vessel = (JSONObject) vessels.get(x);
-               if (vessel.containsKey("tempprobe")) {
-                    String temp = ((JSONObject) vessel.get("tempprobe"))
-                            .get("temp").toString();
-                    initialized &= !temp.equals("0.0");
-                        
-                }
+        synchronized (LaunchControl.tempList) {
+            for (Temp temp : LaunchControl.tempList) {
+                initialized &= temp.getTemp().compareTo(BigDecimal.ZERO) != 0;
+            }
         }
         return initialized;
-             
     }
 
     /**
-     * Save the status to the directory.
+     * Save a sample to the directory if it is a change worth recording.
      *
-     * @param now The current date to save the datapoint for.
-     * @param newStatus The JSON Status object to dump
+     * @param sample The sample to save.
      * @param directory The graph data directory.
+     * @return True if the sample was written.
      */
-    protected final void printJsonToCsv(final Date nowDate,
-            final JSONObject newStatus, final String directory) {
-        //Now look for differences in the temperature and duty
-        long now = nowDate.getTime();
-        JSONArray vessels = (JSONArray) newStatus.get("vessels");
-        for (int x = 0; x < vessels.size(); x++) {
-            JSONObject vessel = (JSONObject) vessels.get(x);
-            if (vessel.containsKey("name")) {
-                String name = vessel.get("name").toString();
-
-                if (vessel.containsKey("tempprobe")) {
-                    String temp = ((JSONObject) vessel.get("tempprobe"))
-                            .get("temp").toString();
-
-
-                    Status lastStatus = temperatureMap.get(name);
-                    if (lastStatus == null) {
-                        lastStatus = new Status("-999", now);
-                    }
-
-                    if (lastStatus.isDifferentEnough(temp)) {
-                        File tempFile = new File(directory + name + "-temp.csv");
-                        if (now - lastStatus.timestamp > SLEEP * 1.5) {
-                            appendToLog(tempFile, now - SLEEP + "," + lastStatus.value + "\r\n");
-                        }
-                        appendToLog(tempFile, now + "," + temp + "\r\n");
-                        
-                        temperatureMap.put(name, new Status(temp, now));
-                    }
-                }
-
-                if (vessel.containsKey("pidstatus")) {
-                    JSONObject pid = (JSONObject) vessel.get("pidstatus");
-                    String duty = "0";
-                    if (pid.containsKey("actualduty")) {
-                        duty = pid.get("actualduty").toString();
-                    } else if (!pid.get("mode").equals("off")) {
-                        duty = pid.get("duty").toString();
-                    }
-
-                    Status lastStatus = dutyMap.get(name);
-                    if (lastStatus == null) {
-                        lastStatus = new Status("-999", now);
-                    }
-
-                    if (!duty.equals(lastStatus.value)) {
-                        File dutyFile = new File(directory + name + "-duty.csv");
-                        if (now - lastStatus.timestamp > SLEEP * 1.5) {
-                            appendToLog(dutyFile, now - SLEEP + "," + lastStatus.value + "\r\n");
-                        }
-                        appendToLog(dutyFile, now + "," + duty + "\r\n");
-                        dutyMap.put(name, new Status(duty, now));
-                    }
-                }
-
-            }
+    protected final boolean recordSample(final Sample sample,
+            final String directory) {
+        String series = seriesName(sample);
+        RecordedSeries recorded = recordedSeries.get(series);
+        if (recorded == null) {
+            recorded = new RecordedSeries(sample.getVessel(), series,
+                new File(directory));
+            recordedSeries.put(series, recorded);
+        }
+        recorded.updateSettings(sample.getKind());
+        try {
+            return recorded.detector.offer(sample.getTimestamp(),
+                sample.getValue(), SLEEP, recorded);
+        } catch (IOException ex) {
+            BrewServer.LOG.warning("Could not save " + series + ": "
+                + ex.getMessage());
+            return false;
         }
     }
 
     /**
-     * Save the string to the log file.
+     * Work out the change detection settings of a series from the
+     * defaults for its kind and any settings for the series itself.
      *
-     * @param file The file object to save to
-     * @param toAppend The string to add to the file
+     * @param kind The kind of the series.
+     * @param override The settings of the series itself, or null.
+     * @return The settings to use.
      */
-    protected final void appendToLog(final File file, final String toAppend) {
-        FileWriter fileWriter = null;
+    private static ChangeDetector.Settings settingsFor(
+            final Sample.Kind kind, final String override) {
+        ChangeDetector.Settings defaults;
+        if (kind == Sample.Kind.TEMP) {
+            defaults = new ChangeDetector.Settings(THRESHOLD, RELATIVE,
+                HEARTBEAT, DOOR);
+        } else {
+            // Any change in the duty is recorded
+            defaults = new ChangeDetector.Settings(0, 0, HEARTBEAT, 0);
+        }
+        if (override == null) {
+            return defaults;
+        }
         try {
-            fileWriter = new FileWriter(file, true);
-            fileWriter.write(toAppend);
-        } catch (IOException ex) {
-            BrewServer.LOG.warning("Could not save to file: "
-                    + file.getAbsolutePath() + file.getName());
-        } finally {
+            return ChangeDetector.Settings.parse(override, defaults);
+        } catch (NumberFormatException e) {
+            return defaults;
+        }
+    }
+
+    /**
+     * Store the last sample of every series that hasn't been stored.
+     */
+    private void flushDetectors() {
+        for (RecordedSeries recorded : recordedSeries.values()) {
             try {
-                if (fileWriter != null) {
-                    fileWriter.close();
-                }
+                recorded.detector.flush(recorded);
             } catch (IOException ex) {
-                BrewServer.LOG.warning("Could not close filewriter: "
-                        + file.getAbsolutePath() + file.getName());
+                BrewServer.LOG.warning("Could not save " + recorded.series
+                    + ": " + ex.getMessage());
             }
         }
     }
 
     /**
-     * Write a JSON object to the log file.
+     * Add every sample to the rollups of its series, before the changes
+     * are filtered out so the minimum and maximum are right.
      *
-     * @param status The JSON Object to log
-     * @param fileExists If the file exists, prepend a "," otherwise an open
-     * brace "["
+     * @param sample The sample to add.
+     * @param directory The graph data directory.
      */
-    protected final void writeToLog(final JSONObject status,
-            final boolean fileExists) {
-        String append = fileExists ? "," : "[" + status.toJSONString();
-        appendToLog(new File(this.logFile), append);
+    protected final void rollupSample(final Sample sample,
+            final String directory) {
+        String series = seriesName(sample);
+        Rollup[] tiers = rollups.get(series);
+        if (tiers == null) {
+            tiers = new Rollup[Rollup.TIERS.length];
+            for (int i = 0; i < tiers.length; i++) {
+                tiers[i] = new Rollup(new File(directory), series,
+                    Rollup.TIERS[i]);
+            }
+            rollups.put(series, tiers);
+        }
+        try {
+            for (Rollup tier : tiers) {
+                tier.add(writer, sample.getTimestamp(),
+                    (float) sample.getValue());
+            }
+        } catch (IOException ex) {
+            BrewServer.LOG.warning("Could not save rollup for " + series
+                + ": " + ex.getMessage());
+        }
     }
 
     /**
-     * Check to see if the objects are different.
-     *
-     * @param previous The first object to check.
-     * @param current The second object to check
-     * @return True if the objects are different
-     */
-    protected final boolean isDifferent(final JSONObject previous,
-            final JSONObject current) {
-        if (previous.size() != current.size()) {
-            return true;
-        }
-
-        for (Iterator<Object> it = previous.keySet().iterator(); it.hasNext();) {
-            Object key = it.next();
-            if (!"elapsed".equals(key)) {
-                Object previousValue = previous.get(key);
-                Object currentValue = current.get(key);
-
-                if (compare(previousValue, currentValue)) {
-                    return true;
+     * Write out the partial buckets of every rollup.
+     */
+    private void finishRollups() {
+        for (Map.Entry<String, Rollup[]> entry : rollups.entrySet()) {
+            try {
+                for (Rollup tier : entry.getValue()) {
+                    tier.finish(writer);
                 }
+            } catch (IOException ex) {
+                BrewServer.LOG.warning("Could not save rollup for "
+                    + entry.getKey() + ": " + ex.getMessage());
             }
         }
-        return false;
     }
 
     /**
-     * Check to see if the JSONArrays are different.
-     *
-     * @param previous The first JSONArray to check
-     * @param current The second JSONArray to check.
-     * @return True if the JSONArrays are different
+     * Write out the blocks of the series that haven't had a point for
+     * a while.
      */
-    protected final boolean isDifferent(final JSONArray previous,
-            final JSONArray current) {
-
-        if (previous.size() != current.size()) {
-            return true;
+    private void writeAgedBlocks() {
+        long now = System.currentTimeMillis();
+        for (SegmentAppender appender : appenders.values()) {
+            try {
+                catalog.addBytes(appender.getSeries(),
+                    appender.writeAged(writer, now));
+            } catch (IOException ex) {
+                BrewServer.LOG.warning("Could not save "
+                    + appender.getSeries() + ": " + ex.getMessage());
+            }
         }
+    }
 
-        for (int x = 0; x < previous.size(); x++) {
-            Object previousValue = previous.get(x);
-            Object currentValue = current.get(x);
-
-            if (compare(previousValue, currentValue)) {
-                return true;
+    /**
+     * Write out the open block of every series.
+     */
+    private void finishAppenders() {
+        for (SegmentAppender appender : appenders.values()) {
+            try {
+                catalog.addBytes(appender.getSeries(),
+                    appender.finish(writer));
+            } catch (IOException ex) {
+                BrewServer.LOG.warning("Could not save "
+                    + appender.getSeries() + ": " + ex.getMessage());
             }
         }
-        return false;
     }
 
     /**
-     * Compare two generic objects.
-     *
-     * @param previousValue First object to check
-     * @param currentValue Second object to check
-     * @return True if the objects are different, false if the same.
-     */
-    protected final boolean compare(final Object previousValue,
-            final Object currentValue) {
-        if (previousValue == null && currentValue == null) {
-            return true;
+     * @param sample The sample.
+     * @return The name of the series the sample belongs to.
+     */
+    private static String seriesName(final Sample sample) {
+        String name = sample.getVessel().replaceAll(" ", "_");
+        if (sample.getKind() == Sample.Kind.TEMP) {
+            return name + "-temp";
         }
+        return name + "-duty";
+    }
 
-        if (previousValue == null || currentValue == null) {
-            return false;
+    /**
+     * Save the string to the log file.
+     * The string is buffered and written out with the rest of the file.
+     *
+     * @param file The file object to save to
+     * @param toAppend The string to add to the file
+     */
+    protected final void appendToLog(final File file, final String toAppend) {
+        try {
+            writer.append(file, toAppend);
+        } catch (IOException ex) {
+            BrewServer.LOG.warning("Could not save to file: "
+                    + file.getAbsolutePath() + ": " + ex.getMessage());
         }
+    }
 
-        if (previousValue instanceof JSONObject
-                && currentValue instanceof JSONObject) {
-            if (isDifferent((JSONObject) previousValue,
-                    (JSONObject) currentValue)) {
-                return true;
-            }
-        } else if (previousValue instanceof JSONArray
-                && currentValue instanceof JSONArray) {
-            if (isDifferent((JSONArray) previousValue,
-                    (JSONArray) currentValue)) {
-                return true;
-            }
-        } else {
-            if (!previousValue.equals(currentValue)) {
-                return true;
-            }
+    /**
+     * @return The write statistics of the series files as a map.
+     */
+    public Map<String, Object> getWriterStatus() {
+        Map<String, Object> status = writer.getMapStatus();
+        status.put("tail", tail.getMapStatus());
+        if (recovery != null) {
+            status.put("recovery", recovery);
         }
+        return status;
+    }
+
+    /**
+     * @return The newest points of each series of the live session.
+     */
+    public TailCache getTail() {
+        return tail;
+    }
 
-        return false;
+    /**
+     * @return The ID of the session being recorded, 0 before it starts.
+     */
+    public long getSessionId() {
+        return startTime;
     }
 
-    private class Status {
+    /**
+     * @return The catalog of the sessions in the recorder directory.
+     */
+    public SessionCatalog getCatalog() {
+        return catalog;
+    }
 
-        public long timestamp;
-        public String value;
-        public int count = 0;
+    /**
+     * Write a sample to the raw log file.
+     *
+     * @param sample The sample to log
+     * @param fileExists If the file exists, prepend a "," otherwise an open
+     * brace "["
+     */
+    protected final void writeToLog(final Sample sample,
+            final boolean fileExists) {
+        JSONObject sampleJSON = new JSONObject();
+        sampleJSON.put("vessel", sample.getVessel());
+        sampleJSON.put("kind", sample.getKind().toString());
+        sampleJSON.put("time", sample.getTimestamp());
+        sampleJSON.put("value", sample.getValue());
+        String append = (fileExists ? "," : "[") + sampleJSON.toJSONString();
+        appendToLog(new File(this.logFile), append);
+    }
 
-        public Status(String value, long timestamp) {
-            this.value = value;
-            this.timestamp = timestamp;
+    /**
+     * A series being recorded, which stores the points its change detector
+     * picks out.
+     */
+    private final class RecordedSeries implements ChangeDetector.Output {
+        private final String vessel;
+        private final String series;
+        private final SegmentAppender appender;
+        private ChangeDetector detector = null;
+        /**
+         * What the settings of the detector were worked out from.
+         */
+        private String override = null;
+        private double threshold;
+        private double relative;
+        private long heartbeat;
+        private double door;
+
+        private RecordedSeries(final String newVessel, final String newSeries,
+                final File directory) {
+            this.vessel = newVessel;
+            this.series = newSeries;
+            this.appender = new SegmentAppender(directory, newSeries);
+            appenders.put(newSeries, appender);
         }
 
-        public boolean isDifferentEnough(String newValue) {
-            boolean retVal = false;
-
-            try {
-                double oldVal = Double.valueOf(value);
-                double newVal = Double.valueOf(newValue);
-                retVal = Math.abs(oldVal - newVal) > THRESHOLD;
-            } catch (Throwable t) {
+        /**
+         * Work out the settings of the detector again if the recorder or
+         * series settings have changed since they were last worked out.
+         * @param kind The kind of the series.
+         */
+        private void updateSettings(final Sample.Kind kind) {
+            String newOverride = SERIES_SETTINGS.get(series);
+            if (detector != null && threshold == THRESHOLD
+                    && relative == RELATIVE && heartbeat == HEARTBEAT
+                    && door == DOOR && (newOverride == null
+                        ? override == null : newOverride.equals(override))) {
+                return;
             }
+            override = newOverride;
+            threshold = THRESHOLD;
+            relative = RELATIVE;
+            heartbeat = HEARTBEAT;
+            door = DOOR;
+            ChangeDetector.Settings settings = settingsFor(kind, override);
+            if (detector == null) {
+                detector = new ChangeDetector(settings);
+            } else {
+                detector.setSettings(settings);
+            }
+        }
 
-            return retVal;
-
+        @Override
+        public void point(final long time, final double value)
+                throws IOException {
+            journal.append(writer, series, time, (float) value);
+            catalog.addPoint(vessel, series, time,
+                appender.append(writer, time, (float) value));
+            tail.add(series, time, (float) value);
         }
     }
 
@@ -0,0 +1,46 @@
+package com.sb.elsinore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The version of the status served at /getstatus.
+ * Anything that changes what the status shows bumps the version, so a
+ * browser that already has the status for a version can be answered with
+ * 304 Not Modified without the status being built again.
+ */
+public final class StatusVersion {
+
+    private static final AtomicLong VERSION = new AtomicLong(1);
+
+    private StatusVersion() {
+    }
+
+    /**
+     * Note that the status has changed.
+     */
+    public static void bump() {
+        VERSION.incrementAndGet();
+    }
+
+    /**
+     * @return The current version, it only ever goes up.
+     */
+    public static long get() {
+        return VERSION.get();
+    }
+
+    /**
+     * Read the tag before building the status, so a change made while it
+     * is being built gives a new tag.
+     * @return The entity tag of the status, quoted. The seconds of a
+     *         running timer are worked out when the status is built, so
+     *         while one runs the tag changes every second as well.
+     */
+    public static String getTag() {
+        String tag = "s" + get();
+        if (LaunchControl.isTimerCounting()) {
+            tag += "-" + System.currentTimeMillis() / 1000;
+        }
+        return "\"" + tag + "\"";
+    }
+}
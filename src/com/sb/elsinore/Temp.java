@@ -1,4 +1,6 @@
 package com.sb.elsinore;
+import com.sb.elsinore.recorder.Sample;
+import com.sb.elsinore.recorder.SampleFeed;
 import com.sb.util.MathUtil;
 
 import jGPIO.GPIO.Direction;
@@ -438,6 +440,8 @@ public final class Temp implements Runnable {
 
         if (result.equals(ERROR_TEMP)) {
             badTemp = true;
+            // The error shows in the status
+            StatusVersion.bump();
             return result;
         }
 
@@ -454,6 +458,9 @@ public final class Temp implements Runnable {
         currentTemp = result;
         currentTime = System.currentTimeMillis();
         currentError = null;
+        StatusVersion.bump();
+        SampleFeed.publish(getName(), Sample.Kind.TEMP, currentTime,
+            currentTemp.doubleValue());
 
         if (!cutoffTemp.equals(ERROR_TEMP)
                 && currentTemp.compareTo(cutoffTemp) >= 0) {
@@ -804,6 +811,7 @@ public final class Temp implements Runnable {
             } else {
                 this.currentVolume = tVolume;
             }
+            StatusVersion.bump();
 
             return pinValue;
         } catch (NumberFormatException e) {
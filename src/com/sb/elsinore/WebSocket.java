@@ -0,0 +1,469 @@
+package com.sb.elsinore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A server side WebSocket connection (RFC 6455) over the streams of an
+ * upgraded HTTP connection.
+ * The thread that upgraded the connection reads the frames and passes
+ * whole text messages to a {@link Handler}, any thread can send.
+ * Frames are built and read in buffers from a shared pool, so a message
+ * only allocates when it is bigger than a pooled buffer.
+ */
+public final class WebSocket {
+
+    /**
+     * The GUID the client key is hashed with, from the RFC.
+     */
+    private static final String ACCEPT_GUID =
+        "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    /**
+     * The size of a pooled frame buffer.
+     */
+    public static final int BUFFER_SIZE = 8 * 1024;
+    /**
+     * The most buffers kept in the pool.
+     */
+    public static final int POOL_SIZE = 16;
+    /**
+     * The largest message accepted from a client.
+     */
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024;
+    /**
+     * The most read timeouts in a row, each sending a ping, before a
+     * silent client is given up on.
+     */
+    public static final int MAX_MISSED_PINGS = 6;
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private static final BlockingQueue<byte[]> POOL =
+        new ArrayBlockingQueue<byte[]>(POOL_SIZE);
+
+    private static final char[] BASE64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    /**
+     * Receives the events of a WebSocket.
+     */
+    public interface Handler {
+        /**
+         * @param socket The socket that has been opened.
+         */
+        void onOpen(WebSocket socket);
+
+        /**
+         * @param socket The socket the message came in on.
+         * @param message A whole text message.
+         */
+        void onMessage(WebSocket socket, String message);
+
+        /**
+         * @param socket The socket that has closed.
+         */
+        void onClose(WebSocket socket);
+    }
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final Handler handler;
+    private final byte[] header = new byte[14];
+    private volatile boolean open = true;
+    private volatile boolean closeSent = false;
+
+    private WebSocket(final InputStream newIn, final OutputStream newOut,
+            final Handler newHandler) {
+        this.in = newIn;
+        this.out = newOut;
+        this.handler = newHandler;
+    }
+
+    /**
+     * @param headers The headers of a request, with lower case names.
+     * @return True if the request asks to upgrade to a WebSocket.
+     */
+    public static boolean isUpgrade(final Map<String, String> headers) {
+        String upgrade = headers.get("upgrade");
+        String connection = headers.get("connection");
+        return upgrade != null && upgrade.equalsIgnoreCase("websocket")
+            && connection != null
+            && connection.toLowerCase().contains("upgrade")
+            && headers.get("sec-websocket-key") != null;
+    }
+
+    /**
+     * Browsers send the Origin of the page that opened a WebSocket and don't
+     * apply the same origin policy to it, so a page from anywhere could
+     * otherwise drive the server. Clients that aren't browsers don't send
+     * an Origin and are let through.
+     * @param headers The headers of the upgrade request, with lower case
+     *            names.
+     * @return True if there is no Origin, or its host and port are the
+     *         ones the request was sent to.
+     */
+    public static boolean isSameOrigin(final Map<String, String> headers) {
+        String origin = headers.get("origin");
+        if (origin == null) {
+            return true;
+        }
+        String host = headers.get("host");
+        if (host == null) {
+            return false;
+        }
+        try {
+            URI originUri = new URI(origin.trim());
+            URI hostUri = new URI("http://" + host.trim());
+            if (originUri.getHost() == null || hostUri.getHost() == null
+                    || !originUri.getHost().equalsIgnoreCase(hostUri.getHost())) {
+                return false;
+            }
+            int defaultPort =
+                "https".equalsIgnoreCase(originUri.getScheme()) ? 443 : 80;
+            int originPort = originUri.getPort() < 0
+                ? defaultPort : originUri.getPort();
+            int hostPort = hostUri.getPort() < 0
+                ? defaultPort : hostUri.getPort();
+            return originPort == hostPort;
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Answer an upgrade request and run the connection until it closes,
+     * on the calling thread.
+     * @param headers The headers of the upgrade request.
+     * @param in The stream of the connection to read from.
+     * @param out The stream of the connection to write to.
+     * @param handler The handler to pass the events to.
+     * @throws IOException If the connection fails.
+     */
+    public static void serve(final Map<String, String> headers,
+            final InputStream in, final OutputStream out,
+            final Handler handler) throws IOException {
+        String accept = acceptKey(headers.get("sec-websocket-key").trim());
+        out.write(bytes("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n"));
+        out.flush();
+
+        WebSocket socket = new WebSocket(in, out, handler);
+        try {
+            handler.onOpen(socket);
+            socket.readMessages();
+        } finally {
+            socket.open = false;
+            handler.onClose(socket);
+        }
+    }
+
+    /**
+     * @param key The Sec-WebSocket-Key of the request.
+     * @return The Sec-WebSocket-Accept to answer with.
+     */
+    static String acceptKey(final String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest(bytes(key + ACCEPT_GUID)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Base64 encode bytes, javax.xml.bind isn't there on every JDK.
+     * @param data The bytes to encode.
+     * @return The encoded string, padded.
+     */
+    static String base64(final byte[] data) {
+        StringBuilder encoded = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int remaining = Math.min(3, data.length - i);
+            int bits = (data[i] & 0xff) << 16;
+            if (remaining > 1) {
+                bits |= (data[i + 1] & 0xff) << 8;
+            }
+            if (remaining > 2) {
+                bits |= data[i + 2] & 0xff;
+            }
+            encoded.append(BASE64[(bits >>> 18) & 0x3f]);
+            encoded.append(BASE64[(bits >>> 12) & 0x3f]);
+            encoded.append(remaining > 1 ? BASE64[(bits >>> 6) & 0x3f] : '=');
+            encoded.append(remaining > 2 ? BASE64[bits & 0x3f] : '=');
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * @return True until the connection closes.
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Send a text message.
+     * @param message The message.
+     * @throws IOException If the connection fails.
+     */
+    public void send(final String message) throws IOException {
+        byte[] payload = bytes(message);
+        sendFrame(OP_TEXT, payload, 0, payload.length);
+    }
+
+    /**
+     * Send a frame that has already been built with {@link #textFrame}, so
+     * one message can go to many sockets without building it again.
+     * @param frame The whole frame.
+     * @throws IOException If the connection fails.
+     */
+    public void sendFrame(final byte[] frame) throws IOException {
+        synchronized (out) {
+            out.write(frame);
+            out.flush();
+        }
+    }
+
+    /**
+     * Build a whole unmasked text frame.
+     * @param message The message.
+     * @return The frame.
+     */
+    public static byte[] textFrame(final String message) {
+        byte[] payload = bytes(message);
+        byte[] frame = new byte[headerLength(payload.length) + payload.length];
+        int start = putHeader(frame, OP_TEXT, payload.length);
+        System.arraycopy(payload, 0, frame, start, payload.length);
+        return frame;
+    }
+
+    /**
+     * Send a close frame, the connection ends once the client answers.
+     */
+    public void close() {
+        if (!open || closeSent) {
+            return;
+        }
+        closeSent = true;
+        try {
+            sendFrame(OP_CLOSE, new byte[0], 0, 0);
+        } catch (IOException e) {
+            open = false;
+        }
+    }
+
+    private void sendFrame(final int opcode, final byte[] payload,
+            final int offset, final int length) throws IOException {
+        int headerLength = headerLength(length);
+        byte[] buffer = acquire(headerLength + length);
+        try {
+            int start = putHeader(buffer, opcode, length);
+            System.arraycopy(payload, offset, buffer, start, length);
+            synchronized (out) {
+                out.write(buffer, 0, start + length);
+                out.flush();
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    private static int headerLength(final int length) {
+        if (length < 126) {
+            return 2;
+        }
+        return length <= 0xffff ? 4 : 10;
+    }
+
+    /**
+     * Write a final, unmasked frame header.
+     * @return The length of the header.
+     */
+    private static int putHeader(final byte[] frame, final int opcode,
+            final int length) {
+        frame[0] = (byte) (0x80 | opcode);
+        if (length < 126) {
+            frame[1] = (byte) length;
+            return 2;
+        }
+        if (length <= 0xffff) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            return 4;
+        }
+        frame[1] = 127;
+        long longLength = length;
+        for (int i = 0; i < 8; i++) {
+            frame[2 + i] = (byte) (longLength >>> (56 - 8 * i));
+        }
+        return 10;
+    }
+
+    /**
+     * Read frames until the connection closes, passing on text messages
+     * and answering pings and close frames.
+     */
+    private void readMessages() throws IOException {
+        ByteArrayOutputStream fragments = null;
+        int missedPings = 0;
+        while (open) {
+            try {
+                readFully(header, 0, 2, true);
+            } catch (SocketTimeoutException e) {
+                if (++missedPings > MAX_MISSED_PINGS) {
+                    return;
+                }
+                sendFrame(OP_PING, header, 0, 0);
+                continue;
+            }
+            missedPings = 0;
+            boolean fin = (header[0] & 0x80) != 0;
+            int opcode = header[0] & 0x0f;
+            boolean masked = (header[1] & 0x80) != 0;
+            long length = header[1] & 0x7f;
+            if (length == 126) {
+                readFully(header, 2, 2, false);
+                length = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+            } else if (length == 127) {
+                readFully(header, 2, 8, false);
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | (header[2 + i] & 0xff);
+                }
+            }
+            if (!masked || length > MAX_MESSAGE_SIZE) {
+                // Clients must mask, and big messages aren't wanted
+                sendFrame(OP_CLOSE, new byte[] {0x03, (byte) 0xf0}, 0, 2);
+                return;
+            }
+            readFully(header, 10, 4, false);
+
+            byte[] payload = acquire((int) length);
+            try {
+                readFully(payload, 0, (int) length, false);
+                for (int i = 0; i < length; i++) {
+                    payload[i] ^= header[10 + (i & 3)];
+                }
+                switch (opcode) {
+                case OP_PING:
+                    sendFrame(OP_PONG, payload, 0, (int) length);
+                    break;
+                case OP_PONG:
+                    break;
+                case OP_CLOSE:
+                    if (!closeSent) {
+                        closeSent = true;
+                        sendFrame(OP_CLOSE, payload, 0, Math.min(2,
+                            (int) length));
+                    }
+                    open = false;
+                    return;
+                case OP_TEXT:
+                case OP_BINARY:
+                case OP_CONTINUATION:
+                    if (opcode != OP_CONTINUATION) {
+                        fragments = null;
+                    }
+                    if (fin && fragments == null) {
+                        if (opcode == OP_TEXT) {
+                            handler.onMessage(this,
+                                new String(payload, 0, (int) length, "UTF-8"));
+                        }
+                        break;
+                    }
+                    if (fragments == null) {
+                        fragments = new ByteArrayOutputStream();
+                    }
+                    fragments.write(payload, 0, (int) length);
+                    if (fragments.size() > MAX_MESSAGE_SIZE) {
+                        sendFrame(OP_CLOSE, new byte[] {0x03, (byte) 0xf1},
+                            0, 2);
+                        return;
+                    }
+                    if (fin) {
+                        handler.onMessage(this, fragments.toString("UTF-8"));
+                        fragments = null;
+                    }
+                    break;
+                default:
+                    return;
+                }
+            } finally {
+                release(payload);
+            }
+        }
+    }
+
+    /**
+     * Read exactly length bytes, retrying read timeouts part way through a
+     * frame.
+     * @param idle True if nothing of the frame has been read yet, a
+     *  timeout is then passed on so a ping can be sent.
+     */
+    private void readFully(final byte[] buffer, final int offset,
+            final int length, final boolean idle) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count;
+            try {
+                count = in.read(buffer, offset + read, length - read);
+            } catch (SocketTimeoutException e) {
+                if (idle && read == 0) {
+                    throw e;
+                }
+                continue;
+            }
+            if (count < 0) {
+                throw new EOFException("WebSocket closed");
+            }
+            read += count;
+        }
+    }
+
+    /**
+     * @param size The size needed.
+     * @return A buffer of at least the size, from the pool if it fits.
+     */
+    private static byte[] acquire(final int size) {
+        if (size > BUFFER_SIZE) {
+            return new byte[size];
+        }
+        byte[] buffer = POOL.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    private static void release(final byte[] buffer) {
+        if (buffer.length == BUFFER_SIZE) {
+            POOL.offer(buffer);
+        }
+    }
+
+    private static byte[] bytes(final String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
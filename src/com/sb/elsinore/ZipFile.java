@@ -1,17 +1,24 @@
 package com.sb.elsinore;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 public class ZipFile {
 
+    /**
+     * The size of the buffer files are copied into the archive with.
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
     private ZipOutputStream zos = null;
-    private FileOutputStream fos = null;
+    private OutputStream fos = null;
 
     /**
      * Protected constructor, use {@link #ZipFile(String) String Constructor}.
@@ -25,8 +32,18 @@ public class ZipFile {
      * @throws FileNotFoundException If the file could not be created.
      */
     public ZipFile(final String filename) throws FileNotFoundException {
-        fos = new FileOutputStream(filename);
-        zos = new ZipOutputStream(fos);
+        this(new FileOutputStream(filename));
+    }
+
+    /**
+     * Write a new Zip archive to a stream.
+     * The stream is closed with the archive.
+     * @param out The stream to write the archive to.
+     */
+    public ZipFile(final OutputStream out) {
+        fos = out;
+        zos = new ZipOutputStream(new BufferedOutputStream(out,
+            COPY_BUFFER_SIZE));
     }
 
     /**
@@ -48,7 +65,7 @@ public class ZipFile {
         ZipEntry zipEntry = new ZipEntry(fileName);
         zos.putNextEntry(zipEntry);
 
-        byte[] bytes = new byte[1024];
+        byte[] bytes = new byte[COPY_BUFFER_SIZE];
         int length;
         while ((length = fis.read(bytes)) >= 0) {
             zos.write(bytes, 0, length);
@@ -58,6 +75,31 @@ public class ZipFile {
         fis.close();
     }
 
+    /**
+     * Start a new entry in the archive.
+     * Write the contents to the returned stream then call
+     * {@link #closeEntry()}.
+     * @param entryName The name of the entry in the archive.
+     * @return The stream to write the contents of the entry to.
+     * @throws IOException If the entry couldn't be started.
+     */
+    public final OutputStream putNextEntry(final String entryName)
+            throws IOException {
+        if (zos == null) {
+            throw new IOException("Zip file has not been opened");
+        }
+        zos.putNextEntry(new ZipEntry(entryName));
+        return zos;
+    }
+
+    /**
+     * Finish the current entry.
+     * @throws IOException If the entry couldn't be finished.
+     */
+    public final void closeEntry() throws IOException {
+        zos.closeEntry();
+    }
+
     /**
      * Close the archive.
      * @throws IOException If the archive couldn't be closed.
@@ -3,25 +3,63 @@ package com.sb.elsinore.devices;
 import com.sb.elsinore.BrewServer;
 import jGPIO.InvalidGPIOException;
 import java.math.BigDecimal;
+import java.util.Map;
 
 /**
  * This class represents a compressor based device that needs a pause between
  * run cycles.
  *
+ * Rather than only running at 100% duty, the requested duty is accumulated
+ * into a bank of owed cooling time. The compressor is started once the
+ * minimum off time has passed and the owed cooling (plus what the current
+ * duty trend predicts will be asked for) covers at least a minimum run, and
+ * it is stopped once the owed cooling has been delivered and the minimum run
+ * time has passed.
+ * The scheduler state is only changed while holding the device's lock, as
+ * the output watchdog can force the compressor off from its own thread.
+ *
  * @author Andy
  */
 public class CompressorDevice extends OutputDevice {
 
+    /**
+     * The number of individual runs to keep in the history.
+     */
+    private static final int HISTORY_SIZE = 32;
+    /**
+     * Weighting of the newest sample in the duty trend average.
+     */
+    private static final double TREND_WEIGHT = 0.2d;
+
     protected long lastStopTime = -1L;
     protected long lastStartTime = -1L;
     protected boolean running = false;
     protected long delayBetweenRuns = 1000 * 60 * 3; // 3 Minutes
+    protected long minRunTime = delayBetweenRuns;
+
+    /**
+     * Milliseconds of full power cooling that have been asked for
+     * but not delivered yet.
+     */
+    protected double demandBank = 0;
+    /**
+     * The most recent duty, and its trend in % per millisecond.
+     * The duty follows the temperature error, so the trend is used as the
+     * predicted drift of the temperature.
+     */
+    protected double lastDuty = 0;
+    protected double dutyTrend = 0;
+    protected long lastUpdateTime = -1L;
+    protected boolean lockedOut = false;
+
+    private final CompressorHistory history =
+            new CompressorHistory(HISTORY_SIZE);
 
     public CompressorDevice(String name, String gpio, BigDecimal cycleTimeSeconds) {
         super(name, gpio, cycleTimeSeconds);
     }
 
-    
+
     /**
      * Run through a cycle and turn the device on/off as appropriate based on the input duty.
      * @param duty The percentage of time / power to run.  This will only run if the duty
@@ -30,40 +68,185 @@ public class CompressorDevice extends OutputDevice {
     @Override
     public void runCycle(BigDecimal duty) throws InterruptedException, InvalidGPIOException {
         // Run if the duty is not null and is between 0 and 100 inclusive.
-        if (duty != null && 
+        if (duty != null &&
             duty.compareTo(BigDecimal.ZERO) > -1 &&
             duty.compareTo(HUNDRED) < 1) {
             initializeSSR();
+            metrics.startCycle();
+            schedule(duty.doubleValue());
+
+            boolean interrupted = true;
+            try {
+                timedSleep(cycleTime.intValue());
+                interrupted = false;
+            } finally {
+                long requestedOn = (long) (duty.doubleValue()
+                        / HUNDRED.doubleValue() * cycleTime.longValue());
+                metrics.recordCycle(requestedOn, cycleTime.longValue(),
+                        interrupted);
+            }
+        }
+    }
 
-            if (duty.compareTo(HUNDRED) == 0) {
-                if (System.currentTimeMillis() - lastStopTime > delayBetweenRuns) {
-                    if (!running) {
-                        BrewServer.LOG.warning("Starting compressor device.");
-                        lastStartTime = System.currentTimeMillis();
+    /**
+     * Bank the duty and start or stop the compressor as needed.
+     * @param duty The current duty in percent.
+     */
+    private synchronized void schedule(final double duty) {
+        long now = System.currentTimeMillis();
+        long elapsed = accumulate(duty, now);
+
+        if (!running) {
+            if (now - lastStopTime < delayBetweenRuns) {
+                if (predictedDemand() >= minRunTime) {
+                    history.recordLockout(elapsed, !lockedOut);
+                    if (!lockedOut) {
+                        BrewServer.LOG.warning("Need to wait before starting compressor again.: "
+                            + (delayBetweenRuns - (now - lastStopTime)));
                     }
-                    running = true;
-                    setValue(true);
-                } else {
-                    BrewServer.LOG.warning("Need to wait before starting compressor again.: "+(delayBetweenRuns - (System.currentTimeMillis() - lastStopTime)));
+                    lockedOut = true;
+                }
+            } else {
+                // The wait is over, the next one is a new lockout
+                lockedOut = false;
+                if (predictedDemand() >= minRunTime) {
+                    start(now);
                 }
             }
-            Thread.sleep(cycleTime.intValue());
+        } else if (now - lastStartTime >= minRunTime
+                && demandBank <= 0 && lastDuty < HUNDRED.doubleValue()) {
+            stop(now);
+        }
+
+        if (running) {
+            setValue(true);
         }
     }
 
+    /**
+     * Turn off the compressor once it has completed the minimum run time.
+     */
     @Override
-    public void turnOff() {
+    public synchronized void turnOff() {
+        long now = System.currentTimeMillis();
+        accumulate(0, now);
+        if (running && now - lastStartTime < minRunTime) {
+            // Avoid short cycling, the next call will stop it.
+            return;
+        }
+        stop(now);
+    }
+
+    /**
+     * Turn off the compressor without waiting for the minimum run time.
+     */
+    @Override
+    public synchronized void forceOff() {
+        stop(System.currentTimeMillis());
+    }
+
+    @Override
+    public void disable() {
+        forceOff();
+        super.disable();
+    }
+
+    /**
+     * Add the demand since the last update to the demand bank.
+     * @param duty The current duty in percent.
+     * @param now The current time.
+     * @return The time since the last update in milliseconds.
+     */
+    private long accumulate(final double duty, final long now) {
+        long elapsed = 0;
+        if (lastUpdateTime > 0) {
+            elapsed = now - lastUpdateTime;
+        }
+        lastUpdateTime = now;
+
+        if (elapsed > 0) {
+            demandBank += duty / HUNDRED.doubleValue() * elapsed;
+            if (running) {
+                demandBank -= elapsed;
+            }
+
+            // Don't let one long period dominate the decisions
+            if (demandBank > delayBetweenRuns + minRunTime) {
+                demandBank = delayBetweenRuns + minRunTime;
+            } else if (demandBank < -minRunTime) {
+                demandBank = -minRunTime;
+            }
+
+            double trend = (duty - lastDuty) / elapsed;
+            dutyTrend = dutyTrend * (1 - TREND_WEIGHT) + trend * TREND_WEIGHT;
+        }
+        lastDuty = duty;
+        return elapsed;
+    }
+
+    /**
+     * @return The owed cooling plus the cooling the current duty and its
+     *  trend predict over the next minimum run, in milliseconds.
+     */
+    private double predictedDemand() {
+        double futureDuty = lastDuty + dutyTrend * minRunTime;
+        futureDuty = Math.max(0, Math.min(HUNDRED.doubleValue(), futureDuty));
+        double averageDuty = (lastDuty + futureDuty) / 2;
+        return Math.max(0, demandBank)
+                + averageDuty / HUNDRED.doubleValue() * minRunTime;
+    }
+
+    /**
+     * Start the compressor.
+     * @param now The current time.
+     */
+    private void start(final long now) {
+        BrewServer.LOG.warning("Starting compressor device.");
+        lastStartTime = now;
+        running = true;
+        history.recordStart();
+        setValue(true);
+    }
+
+    /**
+     * Stop the compressor.
+     * @param now The current time.
+     */
+    private void stop(final long now) {
         if (running) {
-            lastStopTime = System.currentTimeMillis();
+            lastStopTime = now;
             BrewServer.LOG.warning("Stopping compressor device.");
             BrewServer.LOG.warning("Ran for " + (lastStopTime - lastStartTime) / 60000f + " minutes");
+            history.recordRun(lastStartTime, lastStopTime - lastStartTime);
         }
         running = false;
         setValue(false);
     }
-    
-    public void setDelay(BigDecimal delay)
+
+    public synchronized void setDelay(BigDecimal delay)
     {
         delayBetweenRuns = delay.longValue() * 1000 * 60;
+        minRunTime = delayBetweenRuns;
+    }
+
+    /**
+     * @return The run history of this compressor.
+     */
+    public CompressorHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * @return The current scheduler state and run history as a map.
+     */
+    public synchronized Map<String, Object> getMapStatus() {
+        Map<String, Object> statusMap = history.getMapStatus();
+        statusMap.put("running", running);
+        statusMap.put("demand", (long) demandBank);
+        statusMap.put("minOff", delayBetweenRuns);
+        statusMap.put("minOn", minRunTime);
+        statusMap.put("lastStart", lastStartTime);
+        statusMap.put("lastStop", lastStopTime);
+        return statusMap;
     }
 }
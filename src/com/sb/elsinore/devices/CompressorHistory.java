@@ -0,0 +1,130 @@
+package com.sb.elsinore.devices;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact in-memory history of compressor runs.
+ * The most recent runs are kept in fixed size ring buffers, everything else
+ * is folded into running totals so the memory use never grows.
+ */
+public class CompressorHistory {
+
+    /** Start times of the most recent runs. */
+    private final long[] runStarts;
+    /** Lengths in milliseconds of the most recent runs. */
+    private final long[] runLengths;
+    /** The next slot to write in the ring buffers. */
+    private int next = 0;
+    /** The number of valid slots in the ring buffers. */
+    private int stored = 0;
+
+    private long startCount = 0;
+    private long totalRunTime = 0;
+    private long totalLockoutTime = 0;
+    private long lockoutCount = 0;
+    private long shortestRun = -1L;
+    private long longestRun = -1L;
+
+    /**
+     * Create a new history.
+     * @param size The number of individual runs to remember.
+     */
+    public CompressorHistory(final int size) {
+        this.runStarts = new long[size];
+        this.runLengths = new long[size];
+    }
+
+    /**
+     * Record that the compressor started.
+     */
+    public synchronized void recordStart() {
+        startCount++;
+    }
+
+    /**
+     * Record a completed run.
+     * @param start The time the run started at.
+     * @param length The length of the run in milliseconds.
+     */
+    public synchronized void recordRun(final long start, final long length) {
+        runStarts[next] = start;
+        runLengths[next] = length;
+        next = (next + 1) % runStarts.length;
+        if (stored < runStarts.length) {
+            stored++;
+        }
+
+        totalRunTime += length;
+        if (shortestRun < 0 || length < shortestRun) {
+            shortestRun = length;
+        }
+        if (length > longestRun) {
+            longestRun = length;
+        }
+    }
+
+    /**
+     * Record time spent wanting to run but held off by the minimum off time.
+     * @param length The amount of time in milliseconds.
+     * @param newLockout True if this is the start of a new lockout period.
+     */
+    public synchronized void recordLockout(final long length,
+            final boolean newLockout) {
+        if (newLockout) {
+            lockoutCount++;
+        }
+        totalLockoutTime += length;
+    }
+
+    /**
+     * @return The number of times the compressor has been started.
+     */
+    public synchronized long getStartCount() {
+        return startCount;
+    }
+
+    /**
+     * @return The status of the history as a map.
+     */
+    public synchronized Map<String, Object> getMapStatus() {
+        Map<String, Object> statusMap = new HashMap<String, Object>();
+        statusMap.put("starts", startCount);
+        statusMap.put("totalRunTime", totalRunTime);
+        statusMap.put("lockouts", lockoutCount);
+        statusMap.put("totalLockoutTime", totalLockoutTime);
+        statusMap.put("shortestRun", shortestRun);
+        statusMap.put("longestRun", longestRun);
+
+        int completed = stored;
+        if (completed > 0) {
+            statusMap.put("averageRun", sumRuns() / completed);
+        }
+
+        // Oldest first
+        List<Map<String, Object>> runs = new ArrayList<Map<String, Object>>();
+        int slot = (next - stored + runStarts.length) % runStarts.length;
+        for (int i = 0; i < stored; i++) {
+            Map<String, Object> run = new HashMap<String, Object>();
+            run.put("start", runStarts[slot]);
+            run.put("length", runLengths[slot]);
+            runs.add(run);
+            slot = (slot + 1) % runStarts.length;
+        }
+        statusMap.put("runs", runs);
+        return statusMap;
+    }
+
+    /**
+     * @return The total length of the runs stored in the ring buffer.
+     */
+    private long sumRuns() {
+        long total = 0;
+        for (int i = 0; i < stored; i++) {
+            total += runLengths[i];
+        }
+        return total;
+    }
+}
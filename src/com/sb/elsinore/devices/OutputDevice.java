@@ -22,6 +22,7 @@ public class OutputDevice {
     protected OutPin ssr = null;    //The output pin.
     protected String name;    //The name of this device
     private String gpio;    //The gpio pin
+    protected final OutputMetrics metrics = new OutputMetrics();
 
     public OutputDevice(String name, String gpio, BigDecimal cycleTimeSeconds) {
         // Check for inverted outputs using a property.
@@ -59,6 +60,13 @@ public class OutputDevice {
         setValue(false);
     }
 
+    /**
+     * Turn off the output immediately, ignoring any minimum run times.
+     */
+    public void forceOff() {
+        turnOff();
+    }
+
     protected void initializeSSR() throws InvalidGPIOException {
         if (ssr == null) {
             if (gpio != null && gpio.length() > 0) {
@@ -84,6 +92,7 @@ public class OutputDevice {
             duty.compareTo(BigDecimal.ZERO) > -1 &&
             duty.compareTo(HUNDRED) < 1) {
             initializeSSR();
+            metrics.startCycle();
 
             duty = MathUtil.divide(duty, HUNDRED);
             BigDecimal onTime = duty.multiply(cycleTime);
@@ -91,21 +100,40 @@ public class OutputDevice {
             BrewServer.LOG.info("On: " + onTime
                     + " Off; " + offTime);
 
-            if( onTime.intValue() > 0 )
-            {
-                setValue(true);
-                Thread.sleep(onTime.intValue());
-            }
+            boolean interrupted = true;
+            try {
+                if( onTime.intValue() > 0 )
+                {
+                    setValue(true);
+                    timedSleep(onTime.intValue());
+                }
 
-            if (duty.compareTo(HUNDRED) < 0 && offTime.intValue() > 0 ) {
-                setValue(false);
-                Thread.sleep(offTime.intValue());
+                if (duty.compareTo(HUNDRED) < 0 && offTime.intValue() > 0 ) {
+                    setValue(false);
+                    timedSleep(offTime.intValue());
+                }
+                interrupted = false;
+            } finally {
+                metrics.recordCycle(Math.max(0, onTime.longValue()),
+                        cycleTime.longValue(), interrupted);
             }
         }
     }
 
+    /**
+     * Sleep for the time an edge should take, recording how late it was.
+     * @param millis The time to sleep for.
+     * @throws InterruptedException If the sleep was interrupted.
+     */
+    protected void timedSleep(final long millis) throws InterruptedException {
+        long start = System.nanoTime();
+        Thread.sleep(millis);
+        metrics.recordEdge(millis, System.nanoTime() - start);
+    }
+
     protected void setValue(boolean value) {
         if (this.ssr != null) {
+            metrics.recordState(value);
             synchronized (this.ssr) {
                 // invert the output if needed
                 if (this.invertOutput) {
@@ -116,6 +144,13 @@ public class OutputDevice {
         }
     }
 
+    /**
+     * @return The timing metrics for this device.
+     */
+    public OutputMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * @return the name
      */
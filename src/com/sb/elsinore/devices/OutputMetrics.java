@@ -0,0 +1,181 @@
+package com.sb.elsinore.devices;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timing instrumentation for a single output device.
+ * Tracks the duty that was requested against the time the output pin was
+ * actually on, how late each timed edge was, and how many cycles were cut
+ * short by an interrupt.
+ * All the storage is allocated up front so recording never allocates.
+ */
+public class OutputMetrics {
+
+    /**
+     * The number of cycles kept for the rolling windows.
+     */
+    private static final int HISTORY_SIZE = 120;
+    /**
+     * The rolling windows (in cycles) to report the duty over.
+     */
+    private static final int[] WINDOWS = {10, 60, HISTORY_SIZE};
+    /**
+     * Upper bounds (inclusive, in ms) of the edge timing error buckets.
+     * Anything later than the last bound goes into the final bucket.
+     */
+    private static final long[] EDGE_BUCKETS = {0, 1, 2, 5, 10, 20, 50, 100, 500};
+    private static final long NANOS_PER_MS = 1000000L;
+
+    private final long[] requestedOn = new long[HISTORY_SIZE];
+    private final long[] requestedLength = new long[HISTORY_SIZE];
+    private final long[] achievedOn = new long[HISTORY_SIZE];
+    private final long[] achievedLength = new long[HISTORY_SIZE];
+    private int next = 0;
+    private int stored = 0;
+
+    private final long[] edgeErrors = new long[EDGE_BUCKETS.length + 1];
+    private long maxEdgeError = 0;
+    private long totalCycles = 0;
+    private long interruptedCycles = 0;
+
+    /** Current pin state and when it last changed. */
+    private boolean outputOn = false;
+    private long stateChanged = System.nanoTime();
+    /** Pin on time accumulated since the last cycle boundary. */
+    private long onSinceBoundary = 0;
+    private long lastBoundary = System.nanoTime();
+
+    /**
+     * Record a change to the output pin.
+     * @param on True if the output has been turned on.
+     */
+    public synchronized void recordState(final boolean on) {
+        long now = System.nanoTime();
+        if (outputOn) {
+            onSinceBoundary += now - stateChanged;
+        }
+        stateChanged = now;
+        outputOn = on;
+    }
+
+    /**
+     * Record how long a timed edge actually took.
+     * @param requestedMs The time the edge was meant to take.
+     * @param actualNanos The time the edge actually took.
+     */
+    public synchronized void recordEdge(final long requestedMs,
+            final long actualNanos) {
+        long error = actualNanos / NANOS_PER_MS - requestedMs;
+        if (error < 0) {
+            error = 0;
+        }
+        if (error > maxEdgeError) {
+            maxEdgeError = error;
+        }
+        int bucket = 0;
+        while (bucket < EDGE_BUCKETS.length && error > EDGE_BUCKETS[bucket]) {
+            bucket++;
+        }
+        edgeErrors[bucket]++;
+    }
+
+    /**
+     * Start a cycle. Any time since the last cycle ended, such as while
+     * the duty was 0 or the other output was running, isn't a cycle of
+     * this output and would otherwise count against the next one.
+     */
+    public synchronized void startCycle() {
+        long now = System.nanoTime();
+        onSinceBoundary = 0;
+        stateChanged = now;
+        lastBoundary = now;
+    }
+
+    /**
+     * Close off a cycle.
+     * @param requestedOnMs The on time that was requested for the cycle.
+     * @param requestedLengthMs The length that was requested for the cycle.
+     * @param interrupted True if the cycle was cut short.
+     */
+    public synchronized void recordCycle(final long requestedOnMs,
+            final long requestedLengthMs, final boolean interrupted) {
+        long now = System.nanoTime();
+        long onNanos = onSinceBoundary;
+        if (outputOn) {
+            onNanos += now - stateChanged;
+            stateChanged = now;
+        }
+
+        requestedOn[next] = requestedOnMs;
+        requestedLength[next] = requestedLengthMs;
+        achievedOn[next] = onNanos / NANOS_PER_MS;
+        achievedLength[next] = (now - lastBoundary) / NANOS_PER_MS;
+        next = (next + 1) % HISTORY_SIZE;
+        if (stored < HISTORY_SIZE) {
+            stored++;
+        }
+
+        totalCycles++;
+        if (interrupted) {
+            interruptedCycles++;
+        }
+        onSinceBoundary = 0;
+        lastBoundary = now;
+    }
+
+    /**
+     * @return The current metrics as a map.
+     */
+    public synchronized Map<String, Object> getMapStatus() {
+        Map<String, Object> statusMap = new HashMap<String, Object>();
+        statusMap.put("cycles", totalCycles);
+        statusMap.put("interruptedCycles", interruptedCycles);
+        statusMap.put("maxEdgeError", maxEdgeError);
+
+        List<Map<String, Object>> windows = new ArrayList<Map<String, Object>>();
+        for (int window : WINDOWS) {
+            int count = Math.min(window, stored);
+            long reqOn = 0, reqLength = 0, actOn = 0, actLength = 0;
+            int slot = next;
+            for (int i = 0; i < count; i++) {
+                slot = (slot - 1 + HISTORY_SIZE) % HISTORY_SIZE;
+                reqOn += requestedOn[slot];
+                reqLength += requestedLength[slot];
+                actOn += achievedOn[slot];
+                actLength += achievedLength[slot];
+            }
+            Map<String, Object> windowMap = new HashMap<String, Object>();
+            windowMap.put("cycles", count);
+            windowMap.put("requestedDuty", percent(reqOn, reqLength));
+            windowMap.put("achievedDuty", percent(actOn, actLength));
+            windowMap.put("requestedTime", reqLength);
+            windowMap.put("achievedTime", actLength);
+            windows.add(windowMap);
+        }
+        statusMap.put("windows", windows);
+
+        Map<String, Object> histogram = new HashMap<String, Object>();
+        for (int i = 0; i < EDGE_BUCKETS.length; i++) {
+            histogram.put("<=" + EDGE_BUCKETS[i] + "ms", edgeErrors[i]);
+        }
+        histogram.put(">" + EDGE_BUCKETS[EDGE_BUCKETS.length - 1] + "ms",
+                edgeErrors[EDGE_BUCKETS.length]);
+        statusMap.put("edgeErrors", histogram);
+        return statusMap;
+    }
+
+    /**
+     * @param part The numerator.
+     * @param total The denominator.
+     * @return The percentage, or 0 if the total is 0.
+     */
+    private static double percent(final long part, final long total) {
+        if (total <= 0) {
+            return 0;
+        }
+        return Math.round(part * 1000d / total) / 10d;
+    }
+}
@@ -0,0 +1,260 @@
+package com.sb.elsinore.recorder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes and decodes the compressed blocks of a version 2 segment.
+ *
+ * Each block can be decoded on its own, it starts with a header of:
+ * <pre>
+ *   int   payload length in bytes
+ *   int   number of points
+ *   long  time of the first point (epoch milliseconds)
+ *   float value of the first point
+ * </pre>
+ * followed by a bit stream of the rest of the points, in the style of
+ * Facebook's Gorilla. Timestamps are stored as the difference between
+ * successive deltas, which is zero for a steady sample rate:
+ * <pre>
+ *   '0'                      same delta as before
+ *   '10'   + 7 bits          within -63 to 64
+ *   '110'  + 9 bits          within -255 to 256
+ *   '1110' + 12 bits         within -2047 to 2048
+ *   '1111' + 64 bits         anything else
+ * </pre>
+ * Values are stored as the XOR of their bits with the previous value:
+ * <pre>
+ *   '0'                      same value as before
+ *   '10' + meaningful bits   within the previous leading and trailing zeros
+ *   '11' + 5 bits leading zeros + 5 bits length - 1 + meaningful bits
+ * </pre>
+ * A duty sitting at 0 or 100 and a steady temperature cost two bits a point.
+ */
+public final class BlockCodec {
+
+    public static final int BLOCK_HEADER_SIZE = 20;
+    /**
+     * The most points in one block.
+     */
+    public static final int MAX_BLOCK_POINTS = 256;
+    /**
+     * The largest encoded block, a point takes at most 68 + 44 bits.
+     */
+    public static final int MAX_BLOCK_SIZE =
+        BLOCK_HEADER_SIZE + MAX_BLOCK_POINTS * 14 + 8;
+
+    private BlockCodec() {
+    }
+
+    /**
+     * Encode a block of points.
+     * @param times The times of the points.
+     * @param values The values of the points.
+     * @param count The number of points, at least one.
+     * @param out The array to encode into, at least {@link #MAX_BLOCK_SIZE}.
+     * @return The length of the encoded block.
+     */
+    public static int encode(final long[] times, final float[] values,
+            final int count, final byte[] out) {
+        Arrays.fill(out, BLOCK_HEADER_SIZE, out.length, (byte) 0);
+        BitOutput bits = new BitOutput(out, BLOCK_HEADER_SIZE);
+
+        long lastDelta = 0;
+        int lastBits = Float.floatToRawIntBits(values[0]);
+        int lastLeading = -1;
+        int lastTrailing = 0;
+        for (int i = 1; i < count; i++) {
+            long delta = times[i] - times[i - 1];
+            long deltaOfDelta = delta - lastDelta;
+            lastDelta = delta;
+            if (deltaOfDelta == 0) {
+                bits.write(0, 1);
+            } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+                bits.write(0x2, 2);
+                bits.write(deltaOfDelta + 63, 7);
+            } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+                bits.write(0x6, 3);
+                bits.write(deltaOfDelta + 255, 9);
+            } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+                bits.write(0xE, 4);
+                bits.write(deltaOfDelta + 2047, 12);
+            } else {
+                bits.write(0xF, 4);
+                bits.write(deltaOfDelta, 64);
+            }
+
+            int valueBits = Float.floatToRawIntBits(values[i]);
+            int xor = valueBits ^ lastBits;
+            lastBits = valueBits;
+            if (xor == 0) {
+                bits.write(0, 1);
+                continue;
+            }
+            int leading = Integer.numberOfLeadingZeros(xor);
+            int trailing = Integer.numberOfTrailingZeros(xor);
+            if (lastLeading >= 0 && leading >= lastLeading
+                    && trailing >= lastTrailing) {
+                bits.write(0x2, 2);
+                bits.write(xor >>> lastTrailing,
+                    32 - lastLeading - lastTrailing);
+            } else {
+                int length = 32 - leading - trailing;
+                bits.write(0x3, 2);
+                bits.write(leading, 5);
+                bits.write(length - 1, 5);
+                bits.write(xor >>> trailing, length);
+                lastLeading = leading;
+                lastTrailing = trailing;
+            }
+        }
+
+        int payload = bits.length();
+        ByteBuffer header = ByteBuffer.wrap(out, 0, BLOCK_HEADER_SIZE);
+        header.putInt(payload);
+        header.putInt(count);
+        header.putLong(times[0]);
+        header.putFloat(values[0]);
+        return BLOCK_HEADER_SIZE + payload;
+    }
+
+    /**
+     * @param buffer The segment.
+     * @param position The start of a block.
+     * @return The length of the block including its header.
+     */
+    public static int blockSize(final ByteBuffer buffer, final int position) {
+        return BLOCK_HEADER_SIZE + buffer.getInt(position);
+    }
+
+    /**
+     * @param buffer The segment.
+     * @param position The start of a block.
+     * @return The number of points in the block.
+     */
+    public static int blockCount(final ByteBuffer buffer, final int position) {
+        return buffer.getInt(position + 4);
+    }
+
+    /**
+     * @param buffer The segment.
+     * @param position The start of a block.
+     * @return The time of the first point in the block.
+     */
+    public static long blockStart(final ByteBuffer buffer,
+            final int position) {
+        return buffer.getLong(position + 8);
+    }
+
+    /**
+     * Decode the points of a block in a time range.
+     * @param buffer The segment, which must hold the whole block.
+     * @param position The start of the block.
+     * @param after The start of the range, exclusive.
+     * @param to The end of the range, inclusive.
+     * @param visitor The visitor to pass the points to.
+     * @return False if a point after the range was reached.
+     */
+    public static boolean decode(final ByteBuffer buffer, final int position,
+            final long after, final long to,
+            final SeriesReader.Visitor visitor) {
+        int count = blockCount(buffer, position);
+        long time = blockStart(buffer, position);
+        int lastBits = buffer.getInt(position + 16);
+        BitInput bits = new BitInput(buffer, position + BLOCK_HEADER_SIZE);
+
+        long lastDelta = 0;
+        int lastLeading = 0;
+        int lastTrailing = 0;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                long deltaOfDelta;
+                if (bits.read(1) == 0) {
+                    deltaOfDelta = 0;
+                } else if (bits.read(1) == 0) {
+                    deltaOfDelta = bits.read(7) - 63;
+                } else if (bits.read(1) == 0) {
+                    deltaOfDelta = bits.read(9) - 255;
+                } else if (bits.read(1) == 0) {
+                    deltaOfDelta = bits.read(12) - 2047;
+                } else {
+                    deltaOfDelta = bits.read(64);
+                }
+                lastDelta += deltaOfDelta;
+                time += lastDelta;
+
+                if (bits.read(1) != 0) {
+                    if (bits.read(1) != 0) {
+                        lastLeading = (int) bits.read(5);
+                        int length = (int) bits.read(5) + 1;
+                        lastTrailing = 32 - lastLeading - length;
+                    }
+                    int meaningful = 32 - lastLeading - lastTrailing;
+                    lastBits ^= (int) bits.read(meaningful) << lastTrailing;
+                }
+            }
+            if (time <= after) {
+                continue;
+            }
+            if (time > to) {
+                return false;
+            }
+            visitor.point(time, Float.intBitsToFloat(lastBits));
+        }
+        return true;
+    }
+
+    /**
+     * Writes bits most significant first into a zeroed array.
+     */
+    private static final class BitOutput {
+        private final byte[] bytes;
+        private final int start;
+        private int bit = 0;
+
+        private BitOutput(final byte[] newBytes, final int newStart) {
+            this.bytes = newBytes;
+            this.start = newStart;
+        }
+
+        private void write(final long value, final int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                if (((value >>> i) & 1L) != 0) {
+                    bytes[start + (bit >>> 3)] |= (byte) (0x80 >>> (bit & 7));
+                }
+                bit++;
+            }
+        }
+
+        /**
+         * @return The number of bytes written, rounded up.
+         */
+        private int length() {
+            return (bit + 7) >>> 3;
+        }
+    }
+
+    /**
+     * Reads bits most significant first from a buffer.
+     */
+    private static final class BitInput {
+        private final ByteBuffer buffer;
+        private final int start;
+        private int bit = 0;
+
+        private BitInput(final ByteBuffer newBuffer, final int newStart) {
+            this.buffer = newBuffer;
+            this.start = newStart;
+        }
+
+        private long read(final int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                int current = buffer.get(start + (bit >>> 3));
+                value = (value << 1) | ((current >>> (7 - (bit & 7))) & 1);
+                bit++;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.sb.elsinore.recorder;
+
+import java.io.IOException;
+
+/**
+ * Decides which samples of one series are worth storing.
+ *
+ * By default a sample is stored when it moves outside a deadband around
+ * the last stored value, the larger of an absolute band and a fraction of
+ * the stored value, and not sooner than a minimum interval after it. The
+ * last value seen inside the band is stored first, so the line holds flat
+ * until the change.
+ *
+ * With a swinging door width set, the series is compressed into straight
+ * lines instead: each stored point is kept for as long as every sample
+ * since it lies within the door width of a single line from it, and the
+ * sample before the one that breaks that is stored.
+ *
+ * Either way a heartbeat interval stores a point even when nothing has
+ * changed, so a quiet series still shows up.
+ */
+public class ChangeDetector {
+
+    /**
+     * Receives the points to store.
+     */
+    public interface Output {
+        /**
+         * @param time The time of the point.
+         * @param value The value of the point.
+         * @throws IOException If the point couldn't be stored.
+         */
+        void point(long time, double value) throws IOException;
+    }
+
+    private Settings settings;
+    private boolean started = false;
+    private long storedTime;
+    private double storedValue;
+    private long lastTime;
+    private double lastValue;
+    private boolean lastStored = true;
+    private double upperSlope;
+    private double lowerSlope;
+
+    /**
+     * @param newSettings The settings to start with.
+     */
+    public ChangeDetector(final Settings newSettings) {
+        this.settings = newSettings;
+    }
+
+    /**
+     * @param newSettings The settings to use from the next sample.
+     */
+    public void setSettings(final Settings newSettings) {
+        if (newSettings.door != settings.door) {
+            resetDoor();
+        }
+        this.settings = newSettings;
+    }
+
+    /**
+     * Offer a sample.
+     * @param time The time of the sample.
+     * @param value The value of the sample.
+     * @param minInterval The shortest time between points stored for a
+     *  deadband change.
+     * @param out Receives the points to store.
+     * @return True if anything was stored.
+     * @throws IOException If a point couldn't be stored.
+     */
+    public boolean offer(final long time, final double value,
+            final long minInterval, final Output out) throws IOException {
+        if (!started) {
+            started = true;
+            store(time, value, out);
+            return true;
+        }
+        if (time <= storedTime) {
+            // The clock went backwards
+            return false;
+        }
+        boolean heartbeat = settings.heartbeat > 0
+            && time - storedTime >= settings.heartbeat;
+        if (settings.door > 0) {
+            return swingDoor(time, value, heartbeat, out);
+        }
+
+        double band = Math.max(settings.absolute,
+            settings.relative * Math.abs(storedValue));
+        boolean changed = Math.abs(value - storedValue) > band;
+        if (band <= 0) {
+            changed = value != storedValue;
+        }
+        if (changed && time - storedTime < minInterval) {
+            return false;
+        }
+        if (!changed && !heartbeat) {
+            seen(time, value);
+            return false;
+        }
+        if (changed && !lastStored && lastTime > storedTime) {
+            // Hold the stored value up to the last time it was seen
+            store(lastTime, storedValue, out);
+        }
+        store(time, changed ? value : storedValue, out);
+        return true;
+    }
+
+    /**
+     * Store the last sample if it hasn't been, so the series runs up to it.
+     * @param out Receives the point to store.
+     * @return True if anything was stored.
+     * @throws IOException If the point couldn't be stored.
+     */
+    public boolean flush(final Output out) throws IOException {
+        if (!started || lastStored || lastTime <= storedTime) {
+            return false;
+        }
+        store(lastTime, settings.door > 0 ? lastValue : storedValue, out);
+        return true;
+    }
+
+    private boolean swingDoor(final long time, final double value,
+            final boolean heartbeat, final Output out) throws IOException {
+        boolean stored = false;
+        widenDoor(time, value);
+        if (upperSlope > lowerSlope && !lastStored
+                && lastTime > storedTime) {
+            // The door has opened past parallel, end the line at the
+            // sample before and start a new one from there
+            store(lastTime, lastValue, out);
+            widenDoor(time, value);
+            stored = true;
+        }
+        if (heartbeat || upperSlope > lowerSlope) {
+            store(time, value, out);
+            return true;
+        }
+        seen(time, value);
+        return stored;
+    }
+
+    /**
+     * Turn the sides of the door to take in a sample.
+     */
+    private void widenDoor(final long time, final double value) {
+        double elapsed = time - storedTime;
+        upperSlope = Math.max(upperSlope,
+            (value - (storedValue + settings.door)) / elapsed);
+        lowerSlope = Math.min(lowerSlope,
+            (value - (storedValue - settings.door)) / elapsed);
+    }
+
+    private void resetDoor() {
+        upperSlope = Double.NEGATIVE_INFINITY;
+        lowerSlope = Double.POSITIVE_INFINITY;
+    }
+
+    private void seen(final long time, final double value) {
+        lastTime = time;
+        lastValue = value;
+        lastStored = false;
+    }
+
+    private void store(final long time, final double value, final Output out)
+            throws IOException {
+        storedTime = time;
+        storedValue = value;
+        lastTime = time;
+        lastValue = value;
+        lastStored = true;
+        resetDoor();
+        out.point(time, value);
+    }
+
+    /**
+     * The change detection settings of a series.
+     */
+    public static final class Settings {
+        private final double absolute;
+        private final double relative;
+        private final long heartbeat;
+        private final double door;
+
+        /**
+         * @param newAbsolute The absolute deadband.
+         * @param newRelative The deadband as a fraction of the stored value.
+         * @param newHeartbeat The longest time in milliseconds between
+         *  stored points, 0 for no limit.
+         * @param newDoor The swinging door width, 0 to use the deadband.
+         */
+        public Settings(final double newAbsolute, final double newRelative,
+                final long newHeartbeat, final double newDoor) {
+            this.absolute = Math.max(0, newAbsolute);
+            this.relative = Math.max(0, newRelative);
+            this.heartbeat = Math.max(0, newHeartbeat);
+            this.door = Math.max(0, newDoor);
+        }
+
+        /**
+         * Parse settings written by {@link #toString()}, anything missing
+         * is taken from the defaults.
+         * @param text The settings as "key=value" pairs separated by ";".
+         * @param defaults The settings to start from.
+         * @return The settings.
+         * @throws NumberFormatException If a value isn't a number.
+         */
+        public static Settings parse(final String text,
+                final Settings defaults) {
+            double absolute = defaults.absolute;
+            double relative = defaults.relative;
+            long heartbeat = defaults.heartbeat;
+            double door = defaults.door;
+            for (String pair : text.split(";")) {
+                int equals = pair.indexOf('=');
+                if (equals <= 0) {
+                    continue;
+                }
+                String key = pair.substring(0, equals).trim();
+                String value = pair.substring(equals + 1).trim();
+                if (key.equals("absolute")) {
+                    absolute = Double.parseDouble(value);
+                } else if (key.equals("relative")) {
+                    relative = Double.parseDouble(value);
+                } else if (key.equals("heartbeat")) {
+                    heartbeat = Long.parseLong(value);
+                } else if (key.equals("door")) {
+                    door = Double.parseDouble(value);
+                }
+            }
+            return new Settings(absolute, relative, heartbeat, door);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Settings)) {
+                return false;
+            }
+            Settings settings = (Settings) other;
+            return absolute == settings.absolute
+                && relative == settings.relative
+                && heartbeat == settings.heartbeat
+                && door == settings.door;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(absolute)
+                ^ Double.doubleToLongBits(relative) * 31
+                ^ heartbeat * 961
+                ^ Double.doubleToLongBits(door) * 29791;
+            return (int) (bits ^ (bits >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return "absolute=" + absolute + ";relative=" + relative
+                + ";heartbeat=" + heartbeat + ";door=" + door;
+        }
+    }
+}
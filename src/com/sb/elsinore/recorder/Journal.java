@@ -0,0 +1,504 @@
+package com.sb.elsinore.recorder;
+
+import com.sb.elsinore.BrewServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A write ahead journal of the points written to a session, so the points
+ * still in the open blocks aren't lost if the power goes.
+ *
+ * Each record is an int payload length and the CRC32 of the payload,
+ * followed by the payload of a short series name length, the UTF-8 series
+ * name, a long time and a float value.
+ *
+ * The journal is forced to the disk at least every
+ * {@link #SYNC_INTERVAL}, so at most that much is lost with the power.
+ * The journal is split into files named {@code journal.<sequence>.wal}.
+ * At every checkpoint the series files are forced to the disk and a new
+ * journal file is started, and any journal file from before the previous
+ * checkpoint is deleted. A checkpoint comes at least
+ * {@link SegmentAppender#MAX_BLOCK_AGE} after the one before, so every
+ * point in those files has been written out in a block and only the
+ * newest two files ever need replaying.
+ * The journal is deleted when the recorder stops cleanly.
+ */
+public class Journal {
+
+    public static final String PREFIX = "journal.";
+    public static final String SUFFIX = ".wal";
+    public static final int RECORD_HEADER_SIZE = 8;
+    /**
+     * The time in milliseconds between checkpoints.
+     */
+    public static final long CHECKPOINT_INTERVAL =
+        SegmentAppender.MAX_BLOCK_AGE + 60 * 1000L;
+    /**
+     * The longest time in milliseconds a journal record is held before
+     * being forced to the disk.
+     */
+    public static final long SYNC_INTERVAL = 1000;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    /**
+     * The longest series name that can be journaled.
+     */
+    private static final int MAX_NAME_LENGTH = 1024;
+
+    private final File directory;
+    private final Map<String, byte[]> names = new HashMap<String, byte[]>();
+    private final ByteBuffer scratch = ByteBuffer.allocate(
+        RECORD_HEADER_SIZE + 2 + MAX_NAME_LENGTH + 12);
+    private final CRC32 crc = new CRC32();
+    private File current = null;
+    private File previous = null;
+    private int sequence = 0;
+    private long lastCheckpoint = 0;
+    private long lastSync = 0;
+    private boolean unsynced = false;
+
+    /**
+     * @param newDirectory The session directory.
+     */
+    public Journal(final File newDirectory) {
+        this.directory = newDirectory;
+    }
+
+    /**
+     * Journal a point before it is added to its series.
+     * @param writer The writer to append through.
+     * @param series The name of the series.
+     * @param time The time of the point.
+     * @param value The value of the point.
+     * @throws IOException If the record couldn't be written.
+     */
+    public void append(final SeriesWriter writer, final String series,
+            final long time, final float value) throws IOException {
+        if (current == null) {
+            start(System.currentTimeMillis());
+        }
+        byte[] name = names.get(series);
+        if (name == null) {
+            name = series.getBytes(CHARSET);
+            if (name.length > MAX_NAME_LENGTH) {
+                name = Arrays.copyOf(name, MAX_NAME_LENGTH);
+            }
+            names.put(series, name);
+        }
+
+        scratch.clear();
+        scratch.position(RECORD_HEADER_SIZE);
+        scratch.putShort((short) name.length);
+        scratch.put(name);
+        scratch.putLong(time);
+        scratch.putFloat(value);
+        int payload = scratch.position() - RECORD_HEADER_SIZE;
+        crc.reset();
+        crc.update(scratch.array(), RECORD_HEADER_SIZE, payload);
+        scratch.putInt(0, payload);
+        scratch.putInt(4, (int) crc.getValue());
+        writer.append(current, scratch.array(), 0, scratch.position());
+        unsynced = true;
+    }
+
+    /**
+     * Force the journal to the disk if it has records that aren't and the
+     * sync interval has passed.
+     * @param writer The writer the journal is written through.
+     * @param now The current time.
+     */
+    public void syncDue(final SeriesWriter writer, final long now) {
+        if (!unsynced || now - lastSync < SYNC_INTERVAL) {
+            return;
+        }
+        lastSync = now;
+        try {
+            writer.force(current);
+            unsynced = false;
+        } catch (IOException e) {
+            BrewServer.LOG.warning("Could not force "
+                + current.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Take a checkpoint if one is due: force the series files to the disk,
+     * start a new journal file and delete the journal files that are no
+     * longer needed.
+     * @param writer The writer the series files are written through.
+     * @param now The current time.
+     */
+    public void checkpointDue(final SeriesWriter writer, final long now) {
+        if (current == null || now - lastCheckpoint < CHECKPOINT_INTERVAL) {
+            return;
+        }
+        try {
+            writer.forceAll();
+        } catch (IOException e) {
+            // Keep every journal file until the segments are on the disk
+            lastCheckpoint = now;
+            return;
+        }
+        unsynced = false;
+        if (previous != null) {
+            writer.close(previous);
+            if (!previous.delete()) {
+                BrewServer.LOG.warning("Could not delete "
+                    + previous.getAbsolutePath());
+            }
+        }
+        previous = current;
+        start(now);
+    }
+
+    /**
+     * Delete the journal after the recorder has written out every block.
+     * @param writer The writer the journal was written through.
+     */
+    public void close(final SeriesWriter writer) {
+        for (File file : new File[] {previous, current}) {
+            if (file != null) {
+                writer.close(file);
+                file.delete();
+            }
+        }
+        previous = null;
+        current = null;
+    }
+
+    private void start(final long now) {
+        sequence++;
+        current = new File(directory, PREFIX + sequence + SUFFIX);
+        lastCheckpoint = now;
+    }
+
+    /**
+     * Recover a session that wasn't closed cleanly.
+     * Torn blocks at the end of the newest segments are cut off, then the
+     * journaled points that are newer than the last whole block of each
+     * series are written into a new segment. Journal records after the
+     * first one that is torn or fails its checksum are discarded.
+     * @param directory The session directory.
+     * @return What was recovered, or null if there was no journal.
+     */
+    public static Recovery recover(final File directory) {
+        File[] journals = directory.listFiles();
+        if (journals == null) {
+            return null;
+        }
+        List<File> files = new ArrayList<File>();
+        for (File file : journals) {
+            if (file.getName().startsWith(PREFIX)
+                    && file.getName().endsWith(SUFFIX)) {
+                files.add(file);
+            }
+        }
+        if (files.isEmpty()) {
+            return null;
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File a, final File b) {
+                return Integer.valueOf(sequenceOf(a))
+                    .compareTo(sequenceOf(b));
+            }
+        });
+
+        Recovery recovery = new Recovery(directory);
+        Map<String, List<long[]>> points =
+            new LinkedHashMap<String, List<long[]>>();
+        for (File file : files) {
+            try {
+                readJournal(file, points, recovery);
+            } catch (IOException e) {
+                BrewServer.LOG.warning("Could not read "
+                    + file.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+
+        Map<String, List<File>> seriesFiles =
+            SeriesReader.listSeries(directory);
+        SeriesWriter writer = new SeriesWriter(true);
+        try {
+            for (Map.Entry<String, List<long[]>> entry : points.entrySet()) {
+                List<File> segments = seriesFiles.get(entry.getKey());
+                long durable = Long.MIN_VALUE;
+                if (segments != null && !segments.isEmpty()) {
+                    durable = repairTail(segments.get(segments.size() - 1),
+                        entry.getValue().get(0)[0], recovery);
+                }
+                SegmentAppender appender =
+                    new SegmentAppender(directory, entry.getKey());
+                for (long[] point : entry.getValue()) {
+                    if (point[0] > durable) {
+                        appender.append(writer, point[0],
+                            Float.intBitsToFloat((int) point[1]));
+                        recovery.recovered++;
+                        recovery.newest = Math.max(recovery.newest, point[0]);
+                    }
+                }
+                appender.finish(writer);
+            }
+        } catch (IOException e) {
+            BrewServer.LOG.warning("Could not recover "
+                + directory.getAbsolutePath() + ": " + e.getMessage());
+        } finally {
+            writer.close();
+        }
+        for (File file : files) {
+            file.delete();
+        }
+        BrewServer.LOG.warning("Recovered " + directory.getAbsolutePath()
+            + ": " + recovery.getMapStatus());
+        return recovery;
+    }
+
+    private static int sequenceOf(final File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(),
+                name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Read the good records of a journal file.
+     * @param file The journal file.
+     * @param points The points read so far, by series, as time and bits.
+     * @param recovery The counts to update.
+     * @throws IOException If the file couldn't be read.
+     */
+    private static void readJournal(final File file,
+            final Map<String, List<long[]>> points, final Recovery recovery)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            int size = (int) channel.size();
+            if (size == 0) {
+                return;
+            }
+            MappedByteBuffer map =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            byte[] payload = new byte[2 + MAX_NAME_LENGTH + 12];
+            int position = 0;
+            while (position < size) {
+                int length = -1;
+                if (position + RECORD_HEADER_SIZE <= size) {
+                    length = map.getInt(position);
+                }
+                if (length < 14 || length > payload.length
+                        || position + RECORD_HEADER_SIZE + length > size) {
+                    break;
+                }
+                map.position(position + RECORD_HEADER_SIZE);
+                map.get(payload, 0, length);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != map.getInt(position + 4)) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(payload, 0, length);
+                int nameLength = record.getShort();
+                if (nameLength < 0 || nameLength + 14 != length) {
+                    break;
+                }
+                String series = new String(payload, 2, nameLength, CHARSET);
+                record.position(2 + nameLength);
+                long time = record.getLong();
+                int bits = Float.floatToRawIntBits(record.getFloat());
+                List<long[]> seriesPoints = points.get(series);
+                if (seriesPoints == null) {
+                    seriesPoints = new ArrayList<long[]>();
+                    points.put(series, seriesPoints);
+                }
+                seriesPoints.add(new long[] {time, bits});
+                position += RECORD_HEADER_SIZE + length;
+            }
+            if (position < size) {
+                recovery.discarded++;
+                recovery.discardedBytes += size - position;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Cut a torn block off the end of a segment.
+     * Only the blocks after the last index entry are walked.
+     * @param segment The newest segment of a series.
+     * @param journaled The time of the first journaled point of the series.
+     * @param recovery The counts to update.
+     * @return The time of the last point in a whole block.
+     * @throws IOException If the segment couldn't be read or cut.
+     */
+    private static long repairTail(final File segment, final long journaled,
+            final Recovery recovery) throws IOException {
+        long start = SegmentFormat.HEADER_SIZE;
+        try {
+            start = Math.max(start, SeriesIndex.seek(segment, Long.MAX_VALUE));
+        } catch (IOException e) {
+            // Walk the whole segment instead
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            long size = raf.length();
+            if (size < SegmentFormat.HEADER_SIZE) {
+                raf.close();
+                segment.delete();
+                SeriesIndex.indexFile(segment).delete();
+                return Long.MIN_VALUE;
+            }
+            raf.seek(4);
+            if (raf.readShort() != SegmentFormat.BLOCK_VERSION) {
+                return Long.MAX_VALUE;
+            }
+            if (start > size) {
+                // The index got further than the segment
+                start = SegmentFormat.HEADER_SIZE;
+            }
+
+            // Read the tail after the last index entry into memory
+            ByteBuffer tail = readTail(raf, start, size);
+            int position = 0;
+            int lastBlock = lastBlock(tail);
+            if (lastBlock < 0 && start > SegmentFormat.HEADER_SIZE) {
+                // The indexed block is torn, walk the whole segment
+                start = SegmentFormat.HEADER_SIZE;
+                tail = readTail(raf, start, size);
+                lastBlock = lastBlock(tail);
+            }
+            if (lastBlock >= 0) {
+                position = lastBlock + BlockCodec.blockSize(tail, lastBlock);
+            }
+
+            final long[] last = {Long.MIN_VALUE};
+            if (lastBlock >= 0) {
+                BlockCodec.decode(tail, lastBlock, Long.MIN_VALUE,
+                    Long.MAX_VALUE, new SeriesReader.Visitor() {
+                        @Override
+                        public void point(final long time,
+                                final float value) {
+                            last[0] = time;
+                        }
+                    });
+            }
+            if (lastBlock < 0) {
+                recovery.truncatedBytes += size - SegmentFormat.HEADER_SIZE;
+                raf.seek(8);
+                if (raf.readLong() >= journaled) {
+                    // The journal has every point of the segment
+                    raf.close();
+                    segment.delete();
+                } else {
+                    // Points older than the journal went in the torn blocks
+                    raf.setLength(SegmentFormat.HEADER_SIZE);
+                }
+                SeriesIndex.indexFile(segment).delete();
+                return Long.MIN_VALUE;
+            }
+            if (position < tail.capacity()) {
+                raf.setLength(start + position);
+                recovery.truncatedBytes += tail.capacity() - position;
+                // The index is rebuilt from the segment when it is next read
+                SeriesIndex.indexFile(segment).delete();
+            }
+            return last[0];
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param raf The segment.
+     * @param start The position to read from.
+     * @param size The size of the segment.
+     * @return The segment from the position to the end.
+     * @throws IOException If the segment couldn't be read.
+     */
+    private static ByteBuffer readTail(final RandomAccessFile raf,
+            final long start, final long size) throws IOException {
+        ByteBuffer tail = ByteBuffer.allocate((int) (size - start));
+        FileChannel channel = raf.getChannel();
+        while (tail.hasRemaining()
+                && channel.read(tail, start + tail.position()) >= 0) {
+            continue;
+        }
+        return tail;
+    }
+
+    /**
+     * @param tail Whole blocks followed by any torn block.
+     * @return The position of the last whole block, or -1 if there isn't
+     *  one.
+     */
+    private static int lastBlock(final ByteBuffer tail) {
+        int position = 0;
+        int lastBlock = -1;
+        while (position + BlockCodec.BLOCK_HEADER_SIZE <= tail.capacity()) {
+            int blockSize = BlockCodec.blockSize(tail, position);
+            if (blockSize < BlockCodec.BLOCK_HEADER_SIZE
+                    || position + blockSize > tail.capacity()) {
+                break;
+            }
+            lastBlock = position;
+            position += blockSize;
+        }
+        return lastBlock;
+    }
+
+    /**
+     * The counts from recovering a session.
+     */
+    public static final class Recovery {
+        private final File directory;
+        private long recovered = 0;
+        private long discarded = 0;
+        private long discardedBytes = 0;
+        private long truncatedBytes = 0;
+        private long newest = Long.MIN_VALUE;
+
+        private Recovery(final File newDirectory) {
+            this.directory = newDirectory;
+        }
+
+        /**
+         * @return The time of the newest recovered point.
+         */
+        public long getNewest() {
+            return newest;
+        }
+
+        /**
+         * @return The counts as a map.
+         */
+        public Map<String, Object> getMapStatus() {
+            Map<String, Object> status = new HashMap<String, Object>();
+            status.put("session", directory.getName());
+            status.put("recovered", recovered);
+            status.put("discarded", discarded);
+            status.put("discardedBytes", discardedBytes);
+            status.put("truncatedBytes", truncatedBytes);
+            return status;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.sb.elsinore.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Maintains one rollup tier of a series as the samples arrive.
+ * The series is treated as a step function, each value holds until the
+ * next sample, so the average of a bucket is weighted by how long each
+ * value was held for in it. A bucket is written once a sample arrives
+ * after its end, buckets with no samples in them are skipped.
+ * Buckets are aligned to multiples of the bucket size.
+ */
+public class Rollup {
+
+    /**
+     * The bucket sizes in milliseconds of the rollup tiers, finest first.
+     */
+    public static final long[] TIERS = {60 * 1000L, 15 * 60 * 1000L};
+
+    private final File file;
+    private final long bucketSize;
+    private final ByteBuffer scratch = ByteBuffer.allocate(
+        SegmentFormat.ROLLUP_HEADER_SIZE + SegmentFormat.ROLLUP_RECORD_SIZE);
+    private long base = -1L;
+
+    /** The start of the current bucket, -1 before the first sample. */
+    private long bucketStart = -1L;
+    private float min;
+    private float max;
+    private double weightedSum;
+    private long weight;
+    private long lastTime;
+    private float lastValue;
+
+    /**
+     * @param directory The session directory.
+     * @param series The name of the series.
+     * @param newBucketSize The size of the buckets in milliseconds.
+     */
+    public Rollup(final File directory, final String series,
+            final long newBucketSize) {
+        this.bucketSize = newBucketSize;
+        this.file = new File(directory,
+            SegmentFormat.rollupName(series, newBucketSize));
+    }
+
+    /**
+     * Add a sample to the rollup.
+     * @param writer The writer to write completed buckets through.
+     * @param time The time of the sample.
+     * @param value The value of the sample.
+     * @throws IOException If a completed bucket couldn't be written.
+     */
+    public void add(final SeriesWriter writer, final long time,
+            final float value) throws IOException {
+        if (bucketStart < 0) {
+            startBucket(time - time % bucketSize, value, time);
+            return;
+        }
+        if (time < lastTime) {
+            // The clock went backwards, don't weight anything
+            lastTime = time;
+        }
+
+        long bucketEnd = bucketStart + bucketSize;
+        if (time >= bucketEnd || time < bucketStart) {
+            // Hold the last value to the end of the bucket and write it
+            accumulate(lastValue, bucketEnd - lastTime);
+            writeBucket(writer);
+            // Any empty buckets are skipped, the last value carries over
+            long newStart = time - time % bucketSize;
+            startBucket(newStart, lastValue, newStart);
+        }
+
+        accumulate(lastValue, time - lastTime);
+        include(value);
+        lastTime = time;
+        lastValue = value;
+    }
+
+    /**
+     * Write out the partially filled current bucket.
+     * @param writer The writer to write the bucket through.
+     * @throws IOException If the bucket couldn't be written.
+     */
+    public void finish(final SeriesWriter writer) throws IOException {
+        if (bucketStart >= 0) {
+            writeBucket(writer);
+        }
+        bucketStart = -1L;
+    }
+
+    /**
+     * Start a new bucket with a value already being held.
+     * @param start The start of the bucket.
+     * @param value The value held at the start.
+     * @param time The time the value applies from.
+     */
+    private void startBucket(final long start, final float value,
+            final long time) {
+        bucketStart = start;
+        min = value;
+        max = value;
+        weightedSum = 0;
+        weight = 0;
+        lastTime = time;
+        lastValue = value;
+    }
+
+    private void include(final float value) {
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    private void accumulate(final float value, final long duration) {
+        if (duration > 0) {
+            weightedSum += (double) value * duration;
+            weight += duration;
+        }
+    }
+
+    /**
+     * Write the current bucket to the rollup file.
+     * @param writer The writer to write through.
+     * @throws IOException If the bucket couldn't be written.
+     */
+    private void writeBucket(final SeriesWriter writer) throws IOException {
+        scratch.clear();
+        if (base < 0) {
+            base = bucketStart;
+            scratch.putInt(SegmentFormat.ROLLUP_MAGIC);
+            scratch.putShort(SegmentFormat.VERSION);
+            scratch.putShort((short) 0);
+            scratch.putLong(base);
+            scratch.putLong(bucketSize);
+        }
+        float average = lastValue;
+        if (weight > 0) {
+            average = (float) (weightedSum / weight);
+        }
+        scratch.putInt((int) ((bucketStart - base) / bucketSize));
+        scratch.putFloat(min);
+        scratch.putFloat(max);
+        scratch.putFloat(average);
+        writer.append(file, scratch.array(), 0, scratch.position());
+    }
+}
@@ -0,0 +1,65 @@
+package com.sb.elsinore.recorder;
+
+/**
+ * A single reading from a vessel.
+ */
+public final class Sample {
+
+    /**
+     * The type of value a sample holds.
+     */
+    public enum Kind {
+        /** A temperature in the scale of the probe. */
+        TEMP,
+        /** An output duty in percent, negative when cooling. */
+        DUTY
+    }
+
+    private final String vessel;
+    private final Kind kind;
+    private final long timestamp;
+    private final double value;
+
+    /**
+     * Create a new sample.
+     * @param newVessel The name of the vessel the sample came from.
+     * @param newKind The type of value.
+     * @param newTimestamp The time the value was read at.
+     * @param newValue The value that was read.
+     */
+    public Sample(final String newVessel, final Kind newKind,
+            final long newTimestamp, final double newValue) {
+        this.vessel = newVessel;
+        this.kind = newKind;
+        this.timestamp = newTimestamp;
+        this.value = newValue;
+    }
+
+    /**
+     * @return The name of the vessel the sample came from.
+     */
+    public String getVessel() {
+        return vessel;
+    }
+
+    /**
+     * @return The type of value.
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return The time the value was read at.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return The value that was read.
+     */
+    public double getValue() {
+        return value;
+    }
+}
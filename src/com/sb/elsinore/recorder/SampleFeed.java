@@ -0,0 +1,50 @@
+package com.sb.elsinore.recorder;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The in-process feed of readings from the temperature probes and PIDs.
+ * Devices publish every reading they take, listeners get them straight away
+ * on the publishing thread.
+ */
+public final class SampleFeed {
+
+    private static final List<SampleListener> LISTENERS =
+        new CopyOnWriteArrayList<SampleListener>();
+
+    private SampleFeed() {
+    }
+
+    /**
+     * @param listener The listener to start sending samples to.
+     */
+    public static void addListener(final SampleListener listener) {
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * @param listener The listener to stop sending samples to.
+     */
+    public static void removeListener(final SampleListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    /**
+     * Publish a new reading.
+     * @param vessel The name of the vessel the reading is from.
+     * @param kind The type of reading.
+     * @param timestamp The time the reading was taken at.
+     * @param value The reading.
+     */
+    public static void publish(final String vessel, final Sample.Kind kind,
+            final long timestamp, final double value) {
+        if (LISTENERS.isEmpty()) {
+            return;
+        }
+        Sample sample = new Sample(vessel, kind, timestamp, value);
+        for (SampleListener listener : LISTENERS) {
+            listener.onSample(sample);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.sb.elsinore.recorder;
+
+/**
+ * Receives samples published to the {@link SampleFeed}.
+ */
+public interface SampleListener {
+
+    /**
+     * Called on the publishing thread for each new sample.
+     * This must not block, hand the sample off if there's real work to do.
+     * @param sample The new sample.
+     */
+    void onSample(Sample sample);
+}
@@ -0,0 +1,222 @@
+package com.sb.elsinore.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Appends the points of one series to its segment files,
+ * starting a new segment whenever the current one is full.
+ * Points are collected into a block which is compressed and written once
+ * it is full or old enough, until then readers get the points of the open
+ * block through {@link #readOpenBlock}.
+ * The sparse index of each segment is written alongside it. A closed
+ * block is written out to the segment straight away, before its index
+ * entry, so readers find it in the file as soon as it leaves the open
+ * block and the index never points past the end of the segment.
+ */
+public class SegmentAppender {
+
+    /**
+     * The longest time in milliseconds a block is held open before being
+     * written, which bounds what is lost if the power goes.
+     */
+    public static final long MAX_BLOCK_AGE = 10 * 60 * 1000L;
+
+    /**
+     * The appenders with an open block, keyed by the path of the segment.
+     */
+    private static final Map<String, SegmentAppender> OPEN_SEGMENTS =
+        new ConcurrentHashMap<String, SegmentAppender>();
+
+    private final File directory;
+    private final String series;
+    private final ByteBuffer scratch =
+        ByteBuffer.allocate(SegmentFormat.HEADER_SIZE);
+    private final ByteBuffer indexScratch =
+        ByteBuffer.allocate(SeriesIndex.HEADER_SIZE);
+    private final byte[] blockScratch = new byte[BlockCodec.MAX_BLOCK_SIZE];
+    private final long[] blockTimes = new long[BlockCodec.MAX_BLOCK_POINTS];
+    private final float[] blockValues =
+        new float[BlockCodec.MAX_BLOCK_POINTS];
+    private int blockCount = 0;
+    private File segment = null;
+    private File index = null;
+    private long base = 0;
+    private long size = 0;
+    private int records = 0;
+
+    /**
+     * @param newDirectory The session directory to write to.
+     * @param newSeries The name of the series.
+     */
+    public SegmentAppender(final File newDirectory, final String newSeries) {
+        this.directory = newDirectory;
+        this.series = newSeries;
+    }
+
+    /**
+     * Append a point to the series.
+     * @param writer The writer to append through.
+     * @param time The time of the point.
+     * @param value The value of the point.
+     * @return The number of bytes written to the segment.
+     * @throws IOException If the point couldn't be written.
+     */
+    public synchronized int append(final SeriesWriter writer, final long time,
+            final float value) throws IOException {
+        int written = 0;
+        long offset = time - base;
+        if (segment == null || offset > Integer.MAX_VALUE
+                || offset < Integer.MIN_VALUE
+                || records >= SegmentFormat.MAX_RECORDS) {
+            if (segment != null) {
+                written += finish(writer);
+            }
+            base = time;
+            records = 0;
+            segment = new File(directory,
+                SegmentFormat.segmentName(series, base));
+            index = SeriesIndex.indexFile(segment);
+            scratch.clear();
+            SegmentFormat.putHeader(scratch, base,
+                SegmentFormat.BLOCK_VERSION);
+            writer.append(segment, scratch.array(), 0, scratch.position());
+            size = scratch.position();
+            written += scratch.position();
+
+            indexScratch.clear();
+            SeriesIndex.putHeader(indexScratch, BlockCodec.MAX_BLOCK_POINTS,
+                SegmentFormat.BLOCK_VERSION);
+            writer.append(index, indexScratch.array(), 0,
+                indexScratch.position());
+            OPEN_SEGMENTS.put(segment.getAbsolutePath(), this);
+        }
+
+        blockTimes[blockCount] = time;
+        blockValues[blockCount] = value;
+        blockCount++;
+        records++;
+        if (blockCount == BlockCodec.MAX_BLOCK_POINTS
+                || time - blockTimes[0] >= MAX_BLOCK_AGE) {
+            written += writeBlock(writer);
+        }
+        return written;
+    }
+
+    /**
+     * Write out the open block if it has been open too long, for a series
+     * that hasn't had a point for a while.
+     * @param writer The writer to write through.
+     * @param now The current time.
+     * @return The number of bytes written to the segment.
+     * @throws IOException If the block couldn't be written.
+     */
+    public synchronized int writeAged(final SeriesWriter writer,
+            final long now) throws IOException {
+        if (blockCount > 0 && now - blockTimes[0] >= MAX_BLOCK_AGE) {
+            return writeBlock(writer);
+        }
+        return 0;
+    }
+
+    /**
+     * Write out the open block and close the segment.
+     * @param writer The writer to write through.
+     * @return The number of bytes written to the segment.
+     * @throws IOException If the block couldn't be written.
+     */
+    public synchronized int finish(final SeriesWriter writer)
+            throws IOException {
+        if (segment == null) {
+            return 0;
+        }
+        try {
+            int written = writeBlock(writer);
+            // The journal is only trimmed for what is on the disk
+            writer.force(segment);
+            writer.force(index);
+            return written;
+        } finally {
+            OPEN_SEGMENTS.remove(segment.getAbsolutePath());
+            writer.close(segment);
+            writer.close(index);
+            segment = null;
+        }
+    }
+
+    /**
+     * Compress the open block and write it out with its index entry.
+     * @param writer The writer to write through.
+     * @return The number of bytes written to the segment.
+     * @throws IOException If the block couldn't be written.
+     */
+    private int writeBlock(final SeriesWriter writer) throws IOException {
+        if (blockCount == 0) {
+            return 0;
+        }
+        int length = BlockCodec.encode(blockTimes, blockValues, blockCount,
+            blockScratch);
+        writer.append(segment, blockScratch, 0, length);
+        writer.flush(segment);
+        long offset = size;
+        int count = blockCount;
+        size += length;
+        blockCount = 0;
+        indexScratch.clear();
+        SeriesIndex.putBlockEntry(indexScratch, blockTimes[0], offset, count);
+        writer.append(index, indexScratch.array(), 0,
+            indexScratch.position());
+        writer.flush(index);
+        return length;
+    }
+
+    /**
+     * Pass on the points of a segment's open block that are in a range.
+     * @param segment The segment file.
+     * @param after The start of the range, exclusive.
+     * @param to The end of the range, inclusive.
+     * @param visitor The visitor to pass the points to.
+     */
+    public static void readOpenBlock(final File segment, final long after,
+            final long to, final SeriesReader.Visitor visitor) {
+        SegmentAppender appender =
+            OPEN_SEGMENTS.get(segment.getAbsolutePath());
+        if (appender == null) {
+            return;
+        }
+        long[] times;
+        float[] values;
+        int count;
+        synchronized (appender) {
+            if (appender.segment == null
+                    || !appender.segment.getAbsolutePath()
+                        .equals(segment.getAbsolutePath())) {
+                return;
+            }
+            count = appender.blockCount;
+            times = new long[count];
+            values = new float[count];
+            System.arraycopy(appender.blockTimes, 0, times, 0, count);
+            System.arraycopy(appender.blockValues, 0, values, 0, count);
+        }
+        for (int i = 0; i < count; i++) {
+            if (times[i] <= after) {
+                continue;
+            }
+            if (times[i] > to) {
+                break;
+            }
+            visitor.point(times[i], values[i]);
+        }
+    }
+
+    /**
+     * @return The name of the series.
+     */
+    public String getSeries() {
+        return series;
+    }
+}
@@ -0,0 +1,141 @@
+package com.sb.elsinore.recorder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * The layout of the binary series segment files.
+ *
+ * A segment starts with a fixed header:
+ * <pre>
+ *   int   magic      "ELSR"
+ *   short version
+ *   short reserved
+ *   long  base time  (epoch milliseconds)
+ * </pre>
+ * Version 2 segments, the only ones written now, follow this with
+ * compressed blocks of points, see {@link BlockCodec}. Version 1 segments
+ * from older sessions, which are still read, follow it with fixed width
+ * records of an int offset in milliseconds from the base time and a float
+ * value.
+ * Segments are only ever appended to, a new segment is started once one
+ * holds {@link #MAX_RECORDS} points or a point is further from the base
+ * time than an int of milliseconds, about 24 days.
+ * Segment files are named {@code <series>.<base time>.seg}.
+ *
+ * Each series also has a rollup file per bucket size, named
+ * {@code <series>.<bucket ms>.rollup}, with a header of:
+ * <pre>
+ *   int   magic      "ELSU"
+ *   short version
+ *   short reserved
+ *   long  base time  (epoch milliseconds, a multiple of the bucket size)
+ *   long  bucket size (milliseconds)
+ * </pre>
+ * followed by records of an int bucket number counted from the base time
+ * and the float minimum, maximum and time weighted average of the bucket.
+ */
+public final class SegmentFormat {
+
+    /** "ELSR" */
+    public static final int MAGIC = 0x454C5352;
+    /**
+     * The version of segments of fixed width records, only read.
+     */
+    public static final short VERSION = 1;
+    /**
+     * The version of segments made of compressed blocks.
+     */
+    public static final short BLOCK_VERSION = 2;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 8;
+    public static final String SUFFIX = ".seg";
+    /** "ELSU" */
+    public static final int ROLLUP_MAGIC = 0x454C5355;
+    public static final int ROLLUP_HEADER_SIZE = 24;
+    public static final int ROLLUP_RECORD_SIZE = 16;
+    public static final String ROLLUP_SUFFIX = ".rollup";
+    /**
+     * The largest number of points in one segment.
+     */
+    public static final int MAX_RECORDS = 1 << 20;
+
+    private SegmentFormat() {
+    }
+
+    /**
+     * Write a segment header.
+     * @param buffer The buffer to write into.
+     * @param base The base time of the segment.
+     * @param version The version of the segment.
+     */
+    public static void putHeader(final ByteBuffer buffer, final long base,
+            final short version) {
+        buffer.putInt(MAGIC);
+        buffer.putShort(version);
+        buffer.putShort((short) 0);
+        buffer.putLong(base);
+    }
+
+    /**
+     * @param series The name of the series.
+     * @param base The base time of the segment.
+     * @return The file name of the segment.
+     */
+    public static String segmentName(final String series, final long base) {
+        return series + "." + base + SUFFIX;
+    }
+
+    /**
+     * @param series The name of the series.
+     * @param bucket The bucket size of the rollup in milliseconds.
+     * @return The file name of the rollup.
+     */
+    public static String rollupName(final String series, final long bucket) {
+        return series + "." + bucket + ROLLUP_SUFFIX;
+    }
+
+    /**
+     * @param file A file in a session directory.
+     * @return The name of the series the file belongs to,
+     *  or null if it isn't a segment.
+     */
+    public static String seriesName(final File file) {
+        String name = file.getName();
+        if (!name.endsWith(SUFFIX)) {
+            return null;
+        }
+        name = name.substring(0, name.length() - SUFFIX.length());
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        return name.substring(0, dot);
+    }
+
+    /**
+     * @param file A segment file.
+     * @return The base time from the name of the segment, or -1.
+     */
+    public static long segmentBase(final File file) {
+        String name = file.getName();
+        name = name.substring(0, name.length() - SUFFIX.length());
+        try {
+            return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Format a value the same way the CSV files always have.
+     * @param value The value to format.
+     * @return The value without a trailing ".0" for whole numbers.
+     */
+    public static String format(final float value) {
+        if (value == Math.rint(value) && !Float.isInfinite(value)) {
+            return Long.toString((long) value);
+        }
+        return Float.toString(value);
+    }
+}
@@ -0,0 +1,446 @@
+package com.sb.elsinore.recorder;
+
+import com.sb.elsinore.BrewServer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A sparse time index over a series data file.
+ * Every {@link #INTERVAL}th point of a version 1 segment or legacy CSV file,
+ * and the start of every block of a version 2 segment, has its time and
+ * byte offset stored in a side file named {@code <data file>.idx}, so a
+ * reader can seek close to any time and scan forward from there.
+ *
+ * The index file has a header of:
+ * <pre>
+ *   int   magic    "ELSI"
+ *   short version
+ *   short reserved
+ *   int   interval
+ *   int   reserved
+ * </pre>
+ * followed by entries of a long time and a long byte offset. The index of
+ * a version 2 segment has the segment's version and entries of a long
+ * time, an int byte offset and the int number of points in the block, as
+ * blocks are closed early when points are slow to arrive.
+ * The recorder writes the index of a segment as it goes, indexes for
+ * older sessions are built the first time they are needed.
+ */
+public final class SeriesIndex {
+
+    /** "ELSI" */
+    public static final int MAGIC = 0x454C5349;
+    public static final int HEADER_SIZE = 16;
+    public static final int ENTRY_SIZE = 16;
+    public static final String SUFFIX = ".idx";
+    /**
+     * The number of points between index entries.
+     */
+    public static final int INTERVAL = 256;
+
+    private SeriesIndex() {
+    }
+
+    /**
+     * @param data A series data file.
+     * @return The index file for the data file.
+     */
+    public static File indexFile(final File data) {
+        return new File(data.getParentFile(), data.getName() + SUFFIX);
+    }
+
+    /**
+     * Write an index header.
+     * @param buffer The buffer to write to.
+     */
+    public static void putHeader(final ByteBuffer buffer) {
+        putHeader(buffer, INTERVAL);
+    }
+
+    /**
+     * Write an index header.
+     * @param buffer The buffer to write to.
+     * @param interval The number of points between entries.
+     */
+    public static void putHeader(final ByteBuffer buffer, final int interval) {
+        putHeader(buffer, interval, SegmentFormat.VERSION);
+    }
+
+    /**
+     * Write an index header.
+     * @param buffer The buffer to write to.
+     * @param interval The most points between entries.
+     * @param version The version of the segment indexed.
+     */
+    public static void putHeader(final ByteBuffer buffer, final int interval,
+            final short version) {
+        buffer.putInt(MAGIC);
+        buffer.putShort(version);
+        buffer.putShort((short) 0);
+        buffer.putInt(interval);
+        buffer.putInt(0);
+    }
+
+    /**
+     * Write an index entry.
+     * @param buffer The buffer to write to.
+     * @param time The time of the point.
+     * @param offset The byte offset of the point in the data file.
+     */
+    public static void putEntry(final ByteBuffer buffer, final long time,
+            final long offset) {
+        buffer.putLong(time);
+        buffer.putLong(offset);
+    }
+
+    /**
+     * Write the index entry of a block.
+     * @param buffer The buffer to write to.
+     * @param time The time of the first point in the block.
+     * @param offset The byte offset of the block in the segment.
+     * @param count The number of points in the block.
+     */
+    public static void putBlockEntry(final ByteBuffer buffer, final long time,
+            final long offset, final int count) {
+        buffer.putLong(time);
+        buffer.putInt((int) offset);
+        buffer.putInt(count);
+    }
+
+    /**
+     * Find where to start scanning a data file for the first point after
+     * a time. Every point before the returned offset is at or before the
+     * time.
+     * @param data The data file.
+     * @param after The time to seek to.
+     * @return The byte offset to start scanning from.
+     * @throws IOException If the index couldn't be read or built.
+     */
+    public static long seek(final File data, final long after)
+            throws IOException {
+        Entries entries = load(data);
+        int entry = lastAtOrBefore(entries, after);
+        if (entry < 0) {
+            return firstOffset(data);
+        }
+        return entries.offsets[entry];
+    }
+
+    /**
+     * Estimate how many points of a data file fall in a time range.
+     * @param data The data file.
+     * @param after The start of the range, exclusive.
+     * @param to The end of the range, inclusive.
+     * @return The estimated number of points, accurate to the points
+     *  between two entries.
+     * @throws IOException If the index couldn't be read or built.
+     */
+    public static long estimate(final File data, final long after,
+            final long to) throws IOException {
+        Entries entries = load(data);
+        if (entries.count == 0) {
+            return 0;
+        }
+        int first = lastAtOrBefore(entries, after);
+        int last = lastAtOrBefore(entries, to);
+        if (last < 0) {
+            return 0;
+        }
+        long points = 0;
+        for (int i = Math.max(first, 0); i <= last; i++) {
+            points += entries.counts[i];
+        }
+        return points;
+    }
+
+    /**
+     * @param entries The index entries.
+     * @param time The time to look for.
+     * @return The last entry at or before the time, or -1.
+     */
+    private static int lastAtOrBefore(final Entries entries, final long time) {
+        int low = 0;
+        int high = entries.count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (entries.times[middle] <= time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * @param data The data file.
+     * @return The offset of the first point in the data file.
+     */
+    private static long firstOffset(final File data) {
+        if (data.getName().endsWith(SeriesReader.CSV_SUFFIX)) {
+            return 0;
+        }
+        return SegmentFormat.HEADER_SIZE;
+    }
+
+    /**
+     * Load the index of a data file, building it if it's missing.
+     * @param data The data file.
+     * @return The index entries.
+     * @throws IOException If the index couldn't be read or built.
+     */
+    private static Entries load(final File data) throws IOException {
+        File index = indexFile(data);
+        if (!index.exists()) {
+            return rebuild(data, true);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(index, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                // The recorder has only just started this index
+                return rebuild(data, false);
+            }
+            MappedByteBuffer map =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (map.getInt(0) != MAGIC) {
+                return rebuild(data, false);
+            }
+            Entries entries = new Entries(map.getShort(4), map.getInt(8),
+                (int) ((size - HEADER_SIZE) / ENTRY_SIZE));
+            boolean blocks = entries.version == SegmentFormat.BLOCK_VERSION;
+            int position = HEADER_SIZE;
+            for (int i = 0; i < entries.count; i++) {
+                entries.times[i] = map.getLong(position);
+                if (blocks) {
+                    entries.offsets[i] = map.getInt(position + 8);
+                    entries.counts[i] = map.getInt(position + 12);
+                } else {
+                    entries.offsets[i] = map.getLong(position + 8);
+                    entries.counts[i] = entries.interval;
+                }
+                position += ENTRY_SIZE;
+            }
+            return entries;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Build the index of a data file.
+     * @param data The data file.
+     * @param save True to save the index next to the data. This is only done
+     *  when there is no index file at all, an existing file may still be
+     *  being written by the recorder.
+     * @return The index entries.
+     * @throws IOException If the data file couldn't be read.
+     */
+    private static Entries rebuild(final File data, final boolean save)
+            throws IOException {
+        Entries entries;
+        if (data.getName().endsWith(SeriesReader.CSV_SUFFIX)) {
+            entries = buildCsv(data);
+        } else {
+            entries = buildSegment(data);
+        }
+        if (!save) {
+            return entries;
+        }
+        BrewServer.LOG.info("Saving the index for " + data.getAbsolutePath());
+
+        ByteBuffer buffer = ByteBuffer.allocate(
+            HEADER_SIZE + entries.count * ENTRY_SIZE);
+        putHeader(buffer, entries.interval, entries.version);
+        for (int i = 0; i < entries.count; i++) {
+            if (entries.version == SegmentFormat.BLOCK_VERSION) {
+                putBlockEntry(buffer, entries.times[i], entries.offsets[i],
+                    entries.counts[i]);
+            } else {
+                putEntry(buffer, entries.times[i], entries.offsets[i]);
+            }
+        }
+        buffer.flip();
+
+        // Write to a temporary file first so a reader never sees half of it
+        File index = indexFile(data);
+        File temp = new File(index.getParentFile(), index.getName() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.getChannel().write(buffer);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(index)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            // The index is still usable for this request
+            BrewServer.LOG.warning("Could not save the index for "
+                + data.getAbsolutePath() + ": " + e.getMessage());
+        }
+        return entries;
+    }
+
+    /**
+     * Index a binary segment.
+     * @param data The segment file.
+     * @return The index entries.
+     * @throws IOException If the segment couldn't be read.
+     */
+    private static Entries buildSegment(final File data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(data, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < SegmentFormat.HEADER_SIZE) {
+                return new Entries(SegmentFormat.VERSION, INTERVAL, 0);
+            }
+            MappedByteBuffer map =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            long base = map.getLong(8);
+            if (map.getShort(4) == SegmentFormat.BLOCK_VERSION) {
+                return buildBlocks(map, (int) size);
+            }
+            int records = (int) ((size - SegmentFormat.HEADER_SIZE)
+                / SegmentFormat.RECORD_SIZE);
+            Entries entries = new Entries(SegmentFormat.VERSION, INTERVAL,
+                (records + INTERVAL - 1) / INTERVAL);
+            for (int i = 0; i < entries.count; i++) {
+                int offset = SegmentFormat.HEADER_SIZE
+                    + i * INTERVAL * SegmentFormat.RECORD_SIZE;
+                entries.times[i] = base + map.getInt(offset);
+                entries.offsets[i] = offset;
+                entries.counts[i] = Math.min(INTERVAL, records - i * INTERVAL);
+            }
+            return entries;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Index the blocks of a version 2 segment.
+     * @param map The segment.
+     * @param size The size of the segment.
+     * @return The index entries.
+     */
+    private static Entries buildBlocks(final MappedByteBuffer map,
+            final int size) {
+        int blocks = 0;
+        int position = SegmentFormat.HEADER_SIZE;
+        while (position + BlockCodec.BLOCK_HEADER_SIZE <= size
+                && position + BlockCodec.blockSize(map, position) <= size) {
+            blocks++;
+            position += BlockCodec.blockSize(map, position);
+        }
+        Entries entries = new Entries(SegmentFormat.BLOCK_VERSION,
+            BlockCodec.MAX_BLOCK_POINTS, blocks);
+        position = SegmentFormat.HEADER_SIZE;
+        for (int i = 0; i < blocks; i++) {
+            entries.times[i] = BlockCodec.blockStart(map, position);
+            entries.offsets[i] = position;
+            entries.counts[i] = BlockCodec.blockCount(map, position);
+            position += BlockCodec.blockSize(map, position);
+        }
+        return entries;
+    }
+
+    /**
+     * Index a legacy CSV file by the byte offset of its lines.
+     * @param data The CSV file.
+     * @return The index entries.
+     * @throws IOException If the file couldn't be read.
+     */
+    private static Entries buildCsv(final File data) throws IOException {
+        long[] times = new long[16];
+        long[] offsets = new long[16];
+        int count = 0;
+
+        InputStream in = new BufferedInputStream(new FileInputStream(data));
+        try {
+            StringBuilder line = new StringBuilder();
+            long offset = 0;
+            long lineStart = 0;
+            int lines = 0;
+            int read;
+            while ((read = in.read()) >= 0) {
+                offset++;
+                if (read != '\n') {
+                    line.append((char) read);
+                    continue;
+                }
+                int comma = line.indexOf(",");
+                if (comma > 0) {
+                    try {
+                        long time = Long.parseLong(line.substring(0, comma));
+                        if (lines % INTERVAL == 0) {
+                            if (count == times.length) {
+                                times = grow(times);
+                                offsets = grow(offsets);
+                            }
+                            times[count] = time;
+                            offsets[count] = lineStart;
+                            count++;
+                        }
+                        lines++;
+                    } catch (NumberFormatException e) {
+                        // Skip the bad line
+                    }
+                }
+                line.setLength(0);
+                lineStart = offset;
+            }
+        } finally {
+            in.close();
+        }
+
+        Entries entries = new Entries(SegmentFormat.VERSION, INTERVAL, count);
+        System.arraycopy(times, 0, entries.times, 0, count);
+        System.arraycopy(offsets, 0, entries.offsets, 0, count);
+        for (int i = 0; i < count; i++) {
+            entries.counts[i] = INTERVAL;
+        }
+        return entries;
+    }
+
+    private static long[] grow(final long[] array) {
+        long[] grown = new long[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * The entries of an index.
+     */
+    private static final class Entries {
+        private final short version;
+        private final int interval;
+        private final int count;
+        private final long[] times;
+        private final long[] offsets;
+        private final int[] counts;
+
+        private Entries(final short newVersion, final int newInterval,
+                final int newCount) {
+            this.version = newVersion;
+            this.interval = Math.max(1, newInterval);
+            this.count = newCount;
+            this.times = new long[newCount];
+            this.offsets = new long[newCount];
+            this.counts = new int[newCount];
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.sb.elsinore.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads a series for display, keeping the number of points bounded.
+ * The raw points are used when there are few enough of them, otherwise the
+ * finest rollup tier that fits is used, falling back to thinning out the
+ * coarsest available data evenly.
+ */
+public final class SeriesQuery {
+
+    private SeriesQuery() {
+    }
+
+    /**
+     * Read a series.
+     * @param directory The session directory.
+     * @param series The name of the series.
+     * @param files The files of the series, from
+     *  {@link SeriesReader#listSeries(File)}.
+     * @param size The most points wanted, 0 or less for every raw point.
+     * @param visitor The visitor to pass the points to, rollup buckets are
+     *  passed as their average at the start time of the bucket.
+     * @return The bucket size of the tier that was used, 0 for the raw points.
+     * @throws IOException If the series couldn't be read.
+     */
+    public static long read(final File directory, final String series,
+            final List<File> files, final int size,
+            final SeriesReader.Visitor visitor) throws IOException {
+        return read(directory, series, files, Long.MIN_VALUE, Long.MAX_VALUE,
+            size, visitor);
+    }
+
+    /**
+     * Read a time range of a series.
+     * @param directory The session directory.
+     * @param series The name of the series.
+     * @param files The files of the series, from
+     *  {@link SeriesReader#listSeries(File)}.
+     * @param after The start of the range, exclusive.
+     * @param to The end of the range, inclusive.
+     * @param size The most points wanted, 0 or less for every raw point.
+     * @param visitor The visitor to pass the points to, rollup buckets are
+     *  passed as their average at the start time of the bucket.
+     * @return The bucket size of the tier that was used, 0 for the raw points.
+     * @throws IOException If the series couldn't be read.
+     */
+    public static long read(final File directory, final String series,
+            final List<File> files, final long after, final long to,
+            final int size, final SeriesReader.Visitor visitor)
+            throws IOException {
+        if (size <= 0) {
+            SeriesReader.readRange(files, after, to, visitor);
+            return 0;
+        }
+        long total = SeriesReader.estimatePoints(files, after, to);
+        if (total <= size) {
+            SeriesReader.readRange(files, after, to, visitor);
+            return 0;
+        }
+
+        File rollup = null;
+        long bucket = 0;
+        for (long tier : Rollup.TIERS) {
+            File candidate = SeriesReader.rollupFile(directory, series, tier);
+            long buckets = SeriesReader.countBuckets(candidate);
+            if (buckets == 0) {
+                continue;
+            }
+            if (after != Long.MIN_VALUE && to != Long.MAX_VALUE) {
+                // At most one bucket per tier width of the range
+                buckets = Math.min(buckets, (to - after) / tier + 1);
+            }
+            rollup = candidate;
+            bucket = tier;
+            total = buckets;
+            if (buckets <= size) {
+                break;
+            }
+        }
+
+        final Thinner thinner = new Thinner(visitor, (total + size - 1) / size);
+        if (rollup == null) {
+            SeriesReader.readRange(files, after, to, thinner);
+            return 0;
+        }
+        SeriesReader.readRollup(rollup, new SeriesReader.RollupVisitor() {
+            @Override
+            public void bucket(final long time, final float min,
+                    final float max, final float average) {
+                if (time > after && time <= to) {
+                    thinner.point(time, average);
+                }
+            }
+        });
+        return bucket;
+    }
+
+    /**
+     * Passes on every nth point.
+     */
+    private static final class Thinner implements SeriesReader.Visitor {
+        private final SeriesReader.Visitor visitor;
+        private final long stride;
+        private long count = 0;
+
+        private Thinner(final SeriesReader.Visitor newVisitor,
+                final long newStride) {
+            this.visitor = newVisitor;
+            this.stride = Math.max(1, newStride);
+        }
+
+        @Override
+        public void point(final long time, final float value) {
+            if (count++ % stride == 0) {
+                visitor.point(time, value);
+            }
+        }
+    }
+}
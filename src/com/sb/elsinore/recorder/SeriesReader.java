@@ -0,0 +1,587 @@
+package com.sb.elsinore.recorder;
+
+import com.sb.elsinore.BrewServer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the series of a recorder session.
+ * Binary segments are mapped into memory and scanned in place,
+ * sessions recorded before the binary format are read from their CSV files.
+ */
+public final class SeriesReader {
+
+    /**
+     * The suffix of the legacy CSV series files.
+     */
+    public static final String CSV_SUFFIX = ".csv";
+    private static final Charset CHARSET = Charset.forName("US-ASCII");
+    /**
+     * The size of the buffer the CSV export is written through.
+     */
+    private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Receives the points of a series in the order they were recorded.
+     */
+    public interface Visitor {
+        /**
+         * @param time The time of the point.
+         * @param value The value of the point.
+         */
+        void point(long time, float value);
+    }
+
+    /**
+     * Receives the buckets of a rollup in order.
+     */
+    public interface RollupVisitor {
+        /**
+         * @param time The start time of the bucket.
+         * @param min The smallest value in the bucket.
+         * @param max The largest value in the bucket.
+         * @param average The time weighted average of the bucket.
+         */
+        void bucket(long time, float min, float max, float average);
+    }
+
+    private SeriesReader() {
+    }
+
+    /**
+     * Count the points of a series without reading them.
+     * Legacy CSV files are counted by line.
+     * @param files The files of the series.
+     * @return The number of points in the series.
+     * @throws IOException If a CSV file couldn't be read.
+     */
+    public static long countPoints(final List<File> files) throws IOException {
+        long count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(CSV_SUFFIX)) {
+                BufferedReader reader =
+                    new BufferedReader(new FileReader(file));
+                try {
+                    while (reader.readLine() != null) {
+                        count++;
+                    }
+                } finally {
+                    reader.close();
+                }
+            } else {
+                count += countSegment(file);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Count the points of a segment, from the size of a version 1 segment
+     * or the block headers of a version 2 segment.
+     * @param file The segment file.
+     * @return The number of points in the segment.
+     * @throws IOException If the segment couldn't be read.
+     */
+    private static long countSegment(final File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long size = raf.length();
+            if (size < SegmentFormat.HEADER_SIZE) {
+                return 0;
+            }
+            raf.seek(4);
+            if (raf.readShort() != SegmentFormat.BLOCK_VERSION) {
+                return (size - SegmentFormat.HEADER_SIZE)
+                    / SegmentFormat.RECORD_SIZE;
+            }
+            long count = 0;
+            long position = SegmentFormat.HEADER_SIZE;
+            while (position + BlockCodec.BLOCK_HEADER_SIZE <= size) {
+                raf.seek(position);
+                int payload = raf.readInt();
+                int points = raf.readInt();
+                position += BlockCodec.BLOCK_HEADER_SIZE + payload;
+                if (payload < 0 || position > size) {
+                    break;
+                }
+                count += points;
+            }
+            return count;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param directory The session directory.
+     * @param series The name of the series.
+     * @param bucket The bucket size of the rollup.
+     * @return The rollup file, which may not exist.
+     */
+    public static File rollupFile(final File directory, final String series,
+            final long bucket) {
+        return new File(directory, SegmentFormat.rollupName(series, bucket));
+    }
+
+    /**
+     * @param rollup The rollup file.
+     * @return The number of buckets in the rollup, 0 if it doesn't exist.
+     */
+    public static long countBuckets(final File rollup) {
+        return Math.max(0, (rollup.length() - SegmentFormat.ROLLUP_HEADER_SIZE)
+            / SegmentFormat.ROLLUP_RECORD_SIZE);
+    }
+
+    /**
+     * Scan a rollup file.
+     * @param file The rollup file.
+     * @param visitor The visitor to pass the buckets to.
+     * @throws IOException If the file couldn't be read.
+     */
+    public static void readRollup(final File file, final RollupVisitor visitor)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < SegmentFormat.ROLLUP_HEADER_SIZE) {
+                return;
+            }
+            MappedByteBuffer map =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (map.getInt(0) != SegmentFormat.ROLLUP_MAGIC
+                    || map.getShort(4) != SegmentFormat.VERSION) {
+                BrewServer.LOG.warning("Skipping unknown rollup format: "
+                    + file.getAbsolutePath());
+                return;
+            }
+            long base = map.getLong(8);
+            long bucket = map.getLong(16);
+            long count = (size - SegmentFormat.ROLLUP_HEADER_SIZE)
+                / SegmentFormat.ROLLUP_RECORD_SIZE;
+            int position = SegmentFormat.ROLLUP_HEADER_SIZE;
+            for (long i = 0; i < count; i++) {
+                visitor.bucket(base + map.getInt(position) * bucket,
+                    map.getFloat(position + 4), map.getFloat(position + 8),
+                    map.getFloat(position + 12));
+                position += SegmentFormat.ROLLUP_RECORD_SIZE;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Find the series in a session directory.
+     * @param directory The session directory.
+     * @return The files of each series, keyed and sorted by series name.
+     *  Segments are listed oldest first.
+     */
+    public static Map<String, List<File>> listSeries(final File directory) {
+        Map<String, List<File>> segments = new TreeMap<String, List<File>>();
+        Map<String, List<File>> csvFiles = new TreeMap<String, List<File>>();
+        File[] contents = directory.listFiles();
+        if (contents == null) {
+            return segments;
+        }
+
+        for (File content : contents) {
+            String series = SegmentFormat.seriesName(content);
+            if (series != null) {
+                addFile(segments, series, content);
+            } else if (content.getName().endsWith(CSV_SUFFIX)) {
+                String name = content.getName();
+                addFile(csvFiles, name.substring(0,
+                    name.length() - CSV_SUFFIX.length()), content);
+            }
+        }
+
+        Comparator<File> byBase = new Comparator<File>() {
+            @Override
+            public int compare(final File a, final File b) {
+                long baseA = SegmentFormat.segmentBase(a);
+                long baseB = SegmentFormat.segmentBase(b);
+                return baseA < baseB ? -1 : (baseA > baseB ? 1 : 0);
+            }
+        };
+        for (List<File> files : segments.values()) {
+            Collections.sort(files, byBase);
+        }
+
+        // Legacy sessions only have the CSV files
+        for (Map.Entry<String, List<File>> entry : csvFiles.entrySet()) {
+            if (!segments.containsKey(entry.getKey())) {
+                segments.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return segments;
+    }
+
+    private static void addFile(final Map<String, List<File>> map,
+            final String series, final File file) {
+        List<File> files = map.get(series);
+        if (files == null) {
+            files = new ArrayList<File>();
+            map.put(series, files);
+        }
+        files.add(file);
+    }
+
+    /**
+     * Read every point of a series.
+     * @param files The files of the series, from {@link #listSeries(File)}.
+     * @param visitor The visitor to pass the points to.
+     * @throws IOException If a file couldn't be read.
+     */
+    public static void read(final List<File> files, final Visitor visitor)
+            throws IOException {
+        readRange(files, Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Read the points of a series that are newer than a time.
+     * @param files The files of the series, from {@link #listSeries(File)}.
+     * @param since Only points after this time are read.
+     * @param visitor The visitor to pass the points to.
+     * @throws IOException If a file couldn't be read.
+     */
+    public static void readSince(final List<File> files, final long since,
+            final Visitor visitor) throws IOException {
+        readRange(files, since, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Read the points of a series in a time range.
+     * Segments outside of the range are skipped and each file is entered
+     * through its sparse index, so this costs little more than the number
+     * of points in the range.
+     * @param files The files of the series, from {@link #listSeries(File)}.
+     * @param after The start of the range, exclusive.
+     * @param to The end of the range, inclusive.
+     * @param visitor The visitor to pass the points to.
+     * @throws IOException If a file couldn't be read.
+     */
+    public static void readRange(final List<File> files, final long after,
+            final long to, final Visitor visitor) throws IOException {
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            if (file.getName().endsWith(CSV_SUFFIX)) {
+                readCsv(file, after, to, visitor);
+                continue;
+            }
+            // The next segment starts after everything in this one
+            if (i + 1 < files.size()
+                    && SegmentFormat.segmentBase(files.get(i + 1)) <= after) {
+                continue;
+            }
+            if (SegmentFormat.segmentBase(file) > to) {
+                break;
+            }
+            readSegment(file, after, to, visitor);
+        }
+    }
+
+    /**
+     * Estimate the number of points of a series in a time range.
+     * @param files The files of the series, from {@link #listSeries(File)}.
+     * @param after The start of the range, exclusive.
+     * @param to The end of the range, inclusive.
+     * @return The estimated number of points.
+     * @throws IOException If an index couldn't be read or built.
+     */
+    public static long estimatePoints(final List<File> files, final long after,
+            final long to) throws IOException {
+        if (after == Long.MIN_VALUE && to == Long.MAX_VALUE) {
+            return countPoints(files);
+        }
+        long count = 0;
+        for (File file : files) {
+            count += SeriesIndex.estimate(file, after, to);
+        }
+        return count;
+    }
+
+    /**
+     * Scan a binary segment.
+     * Only complete records are read, so a segment that is still being
+     * written is safe to read.
+     * @param file The segment file.
+     * @param visitor The visitor to pass the points to.
+     * @throws IOException If the file couldn't be read.
+     */
+    public static void readSegment(final File file, final Visitor visitor)
+            throws IOException {
+        readSegment(file, Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Scan the records of a binary segment in a time range.
+     * @param file The segment file.
+     * @param after The start of the range, exclusive.
+     * @param to The end of the range, inclusive.
+     * @param visitor The visitor to pass the points to.
+     * @throws IOException If the file couldn't be read.
+     */
+    public static void readSegment(final File file, final long after,
+            final long to, final Visitor visitor) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size >= SegmentFormat.HEADER_SIZE) {
+                MappedByteBuffer map =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (map.getInt(0) != SegmentFormat.MAGIC) {
+                    BrewServer.LOG.warning("Skipping unknown segment format: "
+                        + file.getAbsolutePath());
+                    return;
+                }
+                long position = SegmentFormat.HEADER_SIZE;
+                if (after != Long.MIN_VALUE) {
+                    position = Math.max(position,
+                        SeriesIndex.seek(file, after));
+                }
+                short version = map.getShort(4);
+                boolean more;
+                if (version == SegmentFormat.BLOCK_VERSION) {
+                    more = readBlocks(map, (int) position, after, to, visitor);
+                } else if (version == SegmentFormat.VERSION) {
+                    more = readRecords(map, position, after, to, visitor);
+                } else {
+                    BrewServer.LOG.warning("Skipping unknown segment version: "
+                        + file.getAbsolutePath());
+                    return;
+                }
+                if (!more) {
+                    return;
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        // The newest points may not be in a written block yet
+        SegmentAppender.readOpenBlock(file, after, to, visitor);
+    }
+
+    /**
+     * Scan the fixed width records of a version 1 segment.
+     * @param map The segment.
+     * @param start The position of the first record to scan.
+     * @param after The start of the range, exclusive.
+     * @param to The end of the range, inclusive.
+     * @param visitor The visitor to pass the points to.
+     * @return False if a point after the range was reached.
+     */
+    private static boolean readRecords(final MappedByteBuffer map,
+            final long start, final long after, final long to,
+            final Visitor visitor) {
+        long base = map.getLong(8);
+        long size = map.capacity();
+        for (long position = start;
+                position + SegmentFormat.RECORD_SIZE <= size;
+                position += SegmentFormat.RECORD_SIZE) {
+            long time = base + map.getInt((int) position);
+            if (time <= after) {
+                continue;
+            }
+            if (time > to) {
+                return false;
+            }
+            visitor.point(time, map.getFloat((int) position + 4));
+        }
+        return true;
+    }
+
+    /**
+     * Decode the compressed blocks of a version 2 segment.
+     * Blocks that start after the range are never decoded, and a block
+     * that hasn't been completely written yet is left alone.
+     * @param map The segment.
+     * @param start The position of the first block to decode.
+     * @param after The start of the range, exclusive.
+     * @param to The end of the range, inclusive.
+     * @param visitor The visitor to pass the points to.
+     * @return False if a point after the range was reached.
+     */
+    private static boolean readBlocks(final MappedByteBuffer map,
+            final int start, final long after, final long to,
+            final Visitor visitor) {
+        int size = map.capacity();
+        int position = start;
+        while (position + BlockCodec.BLOCK_HEADER_SIZE <= size) {
+            int blockSize = BlockCodec.blockSize(map, position);
+            if (blockSize < BlockCodec.BLOCK_HEADER_SIZE
+                    || position + blockSize > size) {
+                break;
+            }
+            if (BlockCodec.blockStart(map, position) > to
+                    || !BlockCodec.decode(map, position, after, to, visitor)) {
+                return false;
+            }
+            position += blockSize;
+        }
+        return true;
+    }
+
+    /**
+     * Read a legacy CSV series file, skipping any line that can't be parsed.
+     * @param file The CSV file.
+     * @param visitor The visitor to pass the points to.
+     * @throws IOException If the file couldn't be read.
+     */
+    public static void readCsv(final File file, final Visitor visitor)
+            throws IOException {
+        readCsv(file, Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Read the points of a legacy CSV series file in a time range.
+     * @param file The CSV file.
+     * @param after The start of the range, exclusive.
+     * @param to The end of the range, inclusive.
+     * @param visitor The visitor to pass the points to.
+     * @throws IOException If the file couldn't be read.
+     */
+    public static void readCsv(final File file, final long after,
+            final long to, final Visitor visitor) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            if (after != Long.MIN_VALUE) {
+                in.getChannel().position(SeriesIndex.seek(file, after));
+            }
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, CHARSET));
+            String line;
+            int skipped = 0;
+            while ((line = reader.readLine()) != null) {
+                int comma = line.indexOf(',');
+                if (comma < 0) {
+                    skipped++;
+                    continue;
+                }
+                try {
+                    long time = Long.parseLong(line.substring(0, comma));
+                    if (time <= after) {
+                        continue;
+                    }
+                    if (time > to) {
+                        break;
+                    }
+                    visitor.point(time, Float.parseFloat(
+                        line.substring(comma + 1).trim()));
+                } catch (NumberFormatException e) {
+                    // Skip the bad line, usually one torn by a power cut
+                    skipped++;
+                }
+            }
+            if (skipped > 0) {
+                BrewServer.LOG.warning("Skipped " + skipped
+                    + " unreadable lines in " + file.getAbsolutePath());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Export a series as CSV lines of "time,value".
+     * @param files The files of the series, from {@link #listSeries(File)}.
+     * @param out The stream to write to, this is left open.
+     * @throws IOException If the series couldn't be read or written.
+     */
+    public static void writeCsv(final List<File> files, final OutputStream out)
+            throws IOException {
+        writeCsv(files, Long.MIN_VALUE, Long.MAX_VALUE, out);
+    }
+
+    /**
+     * Export a time range of a series as CSV lines of "time,value".
+     * Legacy CSV files are copied across as they are when the whole series
+     * is wanted.
+     * @param files The files of the series, from {@link #listSeries(File)}.
+     * @param after The start of the range, exclusive.
+     * @param to The end of the range, inclusive.
+     * @param out The stream to write to, this is left open.
+     * @throws IOException If the series couldn't be read or written.
+     */
+    public static void writeCsv(final List<File> files, final long after,
+            final long to, final OutputStream out) throws IOException {
+        boolean everything = after == Long.MIN_VALUE && to == Long.MAX_VALUE;
+        final Writer writer = new BufferedWriter(
+            new OutputStreamWriter(out, CHARSET), EXPORT_BUFFER_SIZE);
+        final IOException[] failure = new IOException[1];
+        Visitor visitor = new Visitor() {
+            @Override
+            public void point(final long time, final float value) {
+                if (failure[0] != null) {
+                    return;
+                }
+                try {
+                    writer.write(Long.toString(time));
+                    writer.write(',');
+                    writer.write(SegmentFormat.format(value));
+                    writer.write("\r\n");
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        for (File file : files) {
+            if (everything && file.getName().endsWith(CSV_SUFFIX)) {
+                writer.flush();
+                copy(file, out);
+            } else {
+                readRange(Collections.singletonList(file), after, to,
+                    visitor);
+            }
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Copy a whole file to a stream through the file's channel.
+     * @param file The file to copy.
+     * @param out The stream to copy to.
+     * @throws IOException If the file couldn't be read or written.
+     */
+    private static void copy(final File file, final OutputStream out)
+            throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                position += channel.transferTo(position, size - position,
+                    target);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
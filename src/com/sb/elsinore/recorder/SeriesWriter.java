@@ -0,0 +1,305 @@
+package com.sb.elsinore.recorder;
+
+import com.sb.elsinore.BrewServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps one open, buffered channel per series file.
+ * Appends go into a buffer per file which is written out when it fills up
+ * or when its oldest data is older than the flush interval, optionally
+ * forcing the data to the disk after every write.
+ */
+public class SeriesWriter {
+
+    /**
+     * The size of the buffer for each file.
+     */
+    public static final int BUFFER_SIZE = 8192;
+    /**
+     * The longest time in milliseconds data is held before being written.
+     */
+    public static final long FLUSH_INTERVAL = 5000;
+    /**
+     * The length of the window the write rates are measured over.
+     */
+    private static final long RATE_WINDOW = 60000;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final Map<File, Series> openSeries = new HashMap<File, Series>();
+    private boolean sync = false;
+
+    private long totalBytes = 0;
+    private long totalFlushes = 0;
+    private long windowStart = System.currentTimeMillis();
+    private long windowBytes = 0;
+    private long windowFlushes = 0;
+    private double bytesPerSecond = 0;
+    private double flushesPerSecond = 0;
+
+    /**
+     * @param newSync True to force the data to the disk after each write.
+     */
+    public SeriesWriter(final boolean newSync) {
+        this.sync = newSync;
+    }
+
+    /**
+     * @param newSync True to force the data to the disk after each write.
+     */
+    public synchronized void setSync(final boolean newSync) {
+        this.sync = newSync;
+    }
+
+    /**
+     * Append text to a file, opening the file if it isn't already.
+     * @param file The file to append to.
+     * @param text The text to append.
+     * @throws IOException If the file couldn't be opened or written.
+     */
+    public void append(final File file, final String text)
+            throws IOException {
+        byte[] bytes = text.getBytes(CHARSET);
+        append(file, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Append bytes to a file, opening the file if it isn't already.
+     * @param file The file to append to.
+     * @param bytes The array holding the bytes to append.
+     * @param offset The offset of the first byte to append.
+     * @param length The number of bytes to append.
+     * @throws IOException If the file couldn't be opened or written.
+     */
+    public synchronized void append(final File file, final byte[] bytes,
+            final int offset, final int length) throws IOException {
+        Series series = openSeries.get(file);
+        if (series == null) {
+            series = new Series(file);
+            openSeries.put(file, series);
+        }
+
+        if (length > series.buffer.remaining()) {
+            flush(series);
+        }
+        if (length > series.buffer.remaining()) {
+            // Too big to buffer, write it straight through
+            write(series, ByteBuffer.wrap(bytes, offset, length));
+            return;
+        }
+        if (series.buffer.position() == 0) {
+            series.firstBuffered = System.currentTimeMillis();
+        }
+        series.buffer.put(bytes, offset, length);
+    }
+
+    /**
+     * Write out every buffer that has held data for longer than the
+     * flush interval.
+     */
+    public synchronized void flushDue() {
+        long now = System.currentTimeMillis();
+        for (Series series : openSeries.values()) {
+            if (series.buffer.position() > 0
+                    && now - series.firstBuffered >= FLUSH_INTERVAL) {
+                flushQuietly(series);
+            }
+        }
+        updateRates(now);
+    }
+
+    /**
+     * Write out the buffer of a single file.
+     * @param file The file to write out.
+     * @throws IOException If the data couldn't be written.
+     */
+    public synchronized void flush(final File file) throws IOException {
+        Series series = openSeries.get(file);
+        if (series != null) {
+            flush(series);
+        }
+    }
+
+    /**
+     * Write out a single file and force it to the disk.
+     * @param file The file to force.
+     * @throws IOException If the data couldn't be written or forced.
+     */
+    public synchronized void force(final File file) throws IOException {
+        Series series = openSeries.get(file);
+        if (series != null) {
+            flush(series);
+            series.channel.force(false);
+        }
+    }
+
+    /**
+     * Write out every file and force it to the disk.
+     * @throws IOException If any file couldn't be written or forced, the
+     *  rest are still forced.
+     */
+    public synchronized void forceAll() throws IOException {
+        IOException failure = null;
+        for (Series series : openSeries.values()) {
+            try {
+                flush(series);
+                series.channel.force(false);
+            } catch (IOException e) {
+                BrewServer.LOG.warning("Could not force "
+                    + series.file.getAbsolutePath() + ": " + e.getMessage());
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Write out every buffer.
+     */
+    public synchronized void flushAll() {
+        for (Series series : openSeries.values()) {
+            flushQuietly(series);
+        }
+    }
+
+    /**
+     * Write out and close a single file.
+     * @param file The file to close.
+     */
+    public synchronized void close(final File file) {
+        Series series = openSeries.remove(file);
+        if (series != null) {
+            flushQuietly(series);
+            try {
+                series.channel.close();
+            } catch (IOException e) {
+                BrewServer.LOG.warning("Could not close "
+                    + series.file.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write out and close every file.
+     */
+    public synchronized void close() {
+        Iterator<Series> iterator = openSeries.values().iterator();
+        while (iterator.hasNext()) {
+            Series series = iterator.next();
+            flushQuietly(series);
+            try {
+                series.channel.close();
+            } catch (IOException e) {
+                BrewServer.LOG.warning("Could not close "
+                    + series.file.getAbsolutePath() + ": " + e.getMessage());
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return The write statistics as a map.
+     */
+    public synchronized Map<String, Object> getMapStatus() {
+        updateRates(System.currentTimeMillis());
+        Map<String, Object> statusMap = new HashMap<String, Object>();
+        statusMap.put("openFiles", openSeries.size());
+        statusMap.put("sync", sync);
+        statusMap.put("bytes", totalBytes);
+        statusMap.put("flushes", totalFlushes);
+        statusMap.put("bytesPerSecond", bytesPerSecond);
+        statusMap.put("flushesPerSecond", flushesPerSecond);
+        return statusMap;
+    }
+
+    /**
+     * Roll the rate window over once it has run its length.
+     * @param now The current time.
+     */
+    private void updateRates(final long now) {
+        long elapsed = now - windowStart;
+        if (elapsed >= RATE_WINDOW) {
+            bytesPerSecond = windowBytes * 1000d / elapsed;
+            flushesPerSecond = windowFlushes * 1000d / elapsed;
+            windowBytes = 0;
+            windowFlushes = 0;
+            windowStart = now;
+        }
+    }
+
+    /**
+     * Flush a series, logging any failure.
+     * @param series The series to flush.
+     */
+    private void flushQuietly(final Series series) {
+        try {
+            flush(series);
+        } catch (IOException e) {
+            BrewServer.LOG.warning("Could not save to file: "
+                + series.file.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the buffered data of a series to its file.
+     * @param series The series to flush.
+     * @throws IOException If the data couldn't be written.
+     */
+    private void flush(final Series series) throws IOException {
+        if (series.buffer.position() == 0) {
+            return;
+        }
+        series.buffer.flip();
+        try {
+            write(series, series.buffer);
+        } finally {
+            series.buffer.clear();
+        }
+    }
+
+    /**
+     * Write the remaining data of a buffer to a series file.
+     * @param series The series to write to.
+     * @param data The data to write.
+     * @throws IOException If the data couldn't be written.
+     */
+    private void write(final Series series, final ByteBuffer data)
+            throws IOException {
+        int length = data.remaining();
+        while (data.hasRemaining()) {
+            series.channel.write(data);
+        }
+        if (sync) {
+            series.channel.force(false);
+        }
+        totalBytes += length;
+        windowBytes += length;
+        totalFlushes++;
+        windowFlushes++;
+    }
+
+    /**
+     * An open series file and its buffer.
+     */
+    private static final class Series {
+        private final File file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long firstBuffered = 0;
+
+        private Series(final File newFile) throws IOException {
+            this.file = newFile;
+            this.channel = new FileOutputStream(newFile, true).getChannel();
+        }
+    }
+}
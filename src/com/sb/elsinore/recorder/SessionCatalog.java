@@ -0,0 +1,485 @@
+package com.sb.elsinore.recorder;
+
+import com.sb.elsinore.BrewServer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * The catalog of the recorded sessions in a recorder directory.
+ * Each session has its start and end time, the vessels and series in it,
+ * and the number of points and bytes of each series.
+ * The recorder updates the catalog as it writes, and it is saved to
+ * {@code sessions.json} in the recorder directory every few seconds, so
+ * the graphs can find any session without listing the directories.
+ * The catalog is built from the session directories the first time the
+ * file is missing.
+ * The series files of each session are listed once and kept until the
+ * session directory changes.
+ */
+public class SessionCatalog {
+
+    public static final String FILE_NAME = "sessions.json";
+    /**
+     * A listing made this soon after the directory last changed is made
+     * again, as a file added in the same tick of the file system clock
+     * doesn't change the modified time.
+     */
+    private static final long LISTING_SETTLE = 2000;
+    /**
+     * The longest time in milliseconds a change is held before being saved.
+     */
+    public static final long SAVE_INTERVAL = SeriesWriter.FLUSH_INTERVAL;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final File file;
+    private final TreeMap<Long, Session> sessions = new TreeMap<Long, Session>();
+    private boolean loaded = false;
+    private boolean dirty = false;
+    private long lastSave = 0;
+    private long liveSession = -1L;
+    private final Map<Long, Listing> listings = new HashMap<Long, Listing>();
+
+    /**
+     * @param newDirectory The recorder directory.
+     */
+    public SessionCatalog(final File newDirectory) {
+        this.directory = newDirectory;
+        this.file = new File(newDirectory, FILE_NAME);
+    }
+
+    /**
+     * @return The recorder directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param id The session ID.
+     * @return The directory of the session.
+     */
+    public File sessionDirectory(final long id) {
+        return new File(directory, String.valueOf(id));
+    }
+
+    /**
+     * List the series files of a session.
+     * @param id The session ID.
+     * @return The files of each series, in time order, which must not be
+     *  changed.
+     */
+    public synchronized Map<String, List<File>> seriesFiles(final long id) {
+        File sessionDirectory = sessionDirectory(id);
+        long modified = sessionDirectory.lastModified();
+        Listing listing = listings.get(id);
+        if (listing == null || listing.modified != modified
+                || listing.listed - modified < LISTING_SETTLE) {
+            listing = new Listing(modified, Collections.unmodifiableMap(
+                SeriesReader.listSeries(sessionDirectory)));
+            listings.put(id, listing);
+        }
+        return listing.files;
+    }
+
+    /**
+     * Start recording a new session.
+     * @param id The session ID, which is the start time.
+     */
+    public synchronized void startSession(final long id) {
+        load();
+        Session session = new Session(id);
+        session.end = id;
+        sessions.put(id, session);
+        liveSession = id;
+        dirty = true;
+    }
+
+    /**
+     * Stop recording the live session and save the catalog.
+     */
+    public synchronized void finishSession() {
+        load();
+        liveSession = -1L;
+        dirty = true;
+        save();
+    }
+
+    /**
+     * Count a point written to a series of the live session.
+     * @param vessel The vessel the series belongs to.
+     * @param series The name of the series.
+     * @param time The time of the point.
+     * @param bytes The number of bytes written.
+     */
+    public synchronized void addPoint(final String vessel,
+            final String series, final long time, final int bytes) {
+        Session session = sessions.get(liveSession);
+        if (session == null) {
+            return;
+        }
+        session.vessels.add(vessel);
+        SeriesInfo info = seriesInfo(session, series);
+        info.points++;
+        info.bytes += bytes;
+        if (time > session.end) {
+            session.end = time;
+        }
+        dirty = true;
+    }
+
+    /**
+     * Count the points and bytes of a session again from its files, after
+     * they were changed by something other than the recorder.
+     * @param id The session ID.
+     * @param newest The time of the newest point put in the files, as the
+     *  files were written after the session ended.
+     */
+    public synchronized void rescan(final long id, final long newest) {
+        load();
+        Session previous = sessions.get(id);
+        if (previous == null) {
+            return;
+        }
+        listings.remove(id);
+        Session session = scanSession(id, sessionDirectory(id));
+        session.end = Math.max(previous.end, newest);
+        sessions.put(id, session);
+        dirty = true;
+        save();
+    }
+
+    /**
+     * Count bytes written to a series of the live session without a new
+     * point, such as when a block of points is written out.
+     * @param series The name of the series.
+     * @param bytes The number of bytes written.
+     */
+    public synchronized void addBytes(final String series, final int bytes) {
+        Session session = sessions.get(liveSession);
+        if (session == null || bytes == 0) {
+            return;
+        }
+        seriesInfo(session, series).bytes += bytes;
+        dirty = true;
+    }
+
+    private static SeriesInfo seriesInfo(final Session session,
+            final String series) {
+        SeriesInfo info = session.series.get(series);
+        if (info == null) {
+            info = new SeriesInfo();
+            session.series.put(series, info);
+        }
+        return info;
+    }
+
+    /**
+     * Save the catalog if it has changed and the save interval has passed.
+     */
+    public synchronized void saveDue() {
+        if (dirty
+                && System.currentTimeMillis() - lastSave >= SAVE_INTERVAL) {
+            save();
+        }
+    }
+
+    /**
+     * @return The ID of the newest session, or -1 if there are none.
+     */
+    public synchronized long newest() {
+        load();
+        if (sessions.isEmpty()) {
+            return -1L;
+        }
+        return sessions.lastKey();
+    }
+
+    /**
+     * @param id A session ID.
+     * @return True if the session is in the catalog.
+     */
+    public synchronized boolean contains(final long id) {
+        load();
+        return sessions.containsKey(id);
+    }
+
+    /**
+     * @return Every session, newest first.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized JSONArray toJSON() {
+        load();
+        JSONArray array = new JSONArray();
+        for (Session session : sessions.descendingMap().values()) {
+            array.add(session.toJSON(session.id == liveSession));
+        }
+        return array;
+    }
+
+    /**
+     * @param id A session ID.
+     * @return The session, or null if it isn't in the catalog.
+     */
+    public synchronized JSONObject toJSON(final long id) {
+        load();
+        Session session = sessions.get(id);
+        if (session == null) {
+            return null;
+        }
+        return session.toJSON(id == liveSession);
+    }
+
+    /**
+     * Read the catalog file, or build it from the session directories
+     * if there isn't one.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            scan();
+            return;
+        }
+        try {
+            Reader reader = new InputStreamReader(
+                new FileInputStream(file), CHARSET);
+            try {
+                JSONObject json = (JSONObject) new JSONParser().parse(reader);
+                JSONArray array = (JSONArray) json.get("sessions");
+                for (Object entry : array) {
+                    Session session = Session.fromJSON((JSONObject) entry);
+                    sessions.put(session.id, session);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            BrewServer.LOG.warning("Could not read the session catalog: "
+                + e.getMessage());
+            scan();
+        } catch (ParseException e) {
+            BrewServer.LOG.warning("Could not parse the session catalog: "
+                + e.getMessage());
+            scan();
+        } catch (RuntimeException e) {
+            BrewServer.LOG.warning("Invalid session catalog: "
+                + e.getMessage());
+            scan();
+        }
+    }
+
+    /**
+     * Build the catalog from the session directories.
+     * The end of a session is taken from its newest file.
+     */
+    private void scan() {
+        sessions.clear();
+        File[] contents = directory.listFiles();
+        if (contents == null) {
+            return;
+        }
+        BrewServer.LOG.info("Building the session catalog for "
+            + directory.getAbsolutePath());
+        for (File content : contents) {
+            if (!content.isDirectory()) {
+                continue;
+            }
+            long id;
+            try {
+                id = Long.parseLong(content.getName());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            sessions.put(id, scanSession(id, content));
+        }
+        dirty = true;
+        save();
+    }
+
+    /**
+     * Build the details of a session from its directory.
+     * @param id The session ID.
+     * @param content The session directory.
+     * @return The session.
+     */
+    private static Session scanSession(final long id, final File content) {
+        Session session = new Session(id);
+        session.end = id;
+        for (Map.Entry<String, List<File>> series
+                : SeriesReader.listSeries(content).entrySet()) {
+            SeriesInfo info = new SeriesInfo();
+            try {
+                info.points = SeriesReader.countPoints(series.getValue());
+            } catch (IOException e) {
+                BrewServer.LOG.warning("Could not count "
+                    + series.getKey() + ": " + e.getMessage());
+            }
+            for (File data : series.getValue()) {
+                info.bytes += data.length();
+                session.end = Math.max(session.end, data.lastModified());
+            }
+            session.series.put(series.getKey(), info);
+            session.vessels.add(vesselName(series.getKey()));
+        }
+        return session;
+    }
+
+    /**
+     * @param series The name of a series.
+     * @return The vessel the series belongs to.
+     */
+    private static String vesselName(final String series) {
+        int dash = series.lastIndexOf('-');
+        String name = series;
+        if (dash > 0) {
+            name = series.substring(0, dash);
+        }
+        return name.replace('_', ' ');
+    }
+
+    /**
+     * Write the catalog to a temporary file and move it into place,
+     * so a reader never sees a partial catalog.
+     */
+    @SuppressWarnings("unchecked")
+    private void save() {
+        lastSave = System.currentTimeMillis();
+        if (!dirty || !directory.isDirectory()) {
+            return;
+        }
+        dirty = false;
+        JSONArray array = new JSONArray();
+        for (Session session : sessions.values()) {
+            array.add(session.toJSON(false));
+        }
+        JSONObject json = new JSONObject();
+        json.put("sessions", array);
+
+        File temp = new File(directory, FILE_NAME + ".tmp");
+        try {
+            Writer out = new OutputStreamWriter(
+                new FileOutputStream(temp), CHARSET);
+            try {
+                out.write(json.toJSONString());
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                // Windows won't rename over an existing file
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Could not rename " + temp);
+                }
+            }
+        } catch (IOException e) {
+            BrewServer.LOG.warning("Could not save the session catalog: "
+                + e.getMessage());
+            dirty = true;
+        }
+    }
+
+    /**
+     * The details of one session.
+     */
+    private static final class Session {
+        private final long id;
+        private long end;
+        private final TreeSet<String> vessels = new TreeSet<String>();
+        private final TreeMap<String, SeriesInfo> series =
+            new TreeMap<String, SeriesInfo>();
+
+        private Session(final long newId) {
+            this.id = newId;
+        }
+
+        @SuppressWarnings("unchecked")
+        private JSONObject toJSON(final boolean live) {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("start", id);
+            json.put("end", end);
+            if (live) {
+                json.put("live", true);
+            }
+            JSONArray vesselArray = new JSONArray();
+            vesselArray.addAll(vessels);
+            json.put("vessels", vesselArray);
+            JSONObject seriesJSON = new JSONObject();
+            for (Map.Entry<String, SeriesInfo> entry : series.entrySet()) {
+                JSONObject infoJSON = new JSONObject();
+                infoJSON.put("points", entry.getValue().points);
+                infoJSON.put("bytes", entry.getValue().bytes);
+                seriesJSON.put(entry.getKey(), infoJSON);
+            }
+            json.put("series", seriesJSON);
+            return json;
+        }
+
+        private static Session fromJSON(final JSONObject json) {
+            Session session = new Session(((Number) json.get("id")).longValue());
+            session.end = ((Number) json.get("end")).longValue();
+            JSONArray vesselArray = (JSONArray) json.get("vessels");
+            if (vesselArray != null) {
+                for (Object vessel : vesselArray) {
+                    session.vessels.add((String) vessel);
+                }
+            }
+            JSONObject seriesJSON = (JSONObject) json.get("series");
+            if (seriesJSON != null) {
+                for (Object name : seriesJSON.keySet()) {
+                    JSONObject infoJSON = (JSONObject) seriesJSON.get(name);
+                    SeriesInfo info = new SeriesInfo();
+                    info.points = ((Number) infoJSON.get("points")).longValue();
+                    info.bytes = ((Number) infoJSON.get("bytes")).longValue();
+                    session.series.put((String) name, info);
+                }
+            }
+            return session;
+        }
+    }
+
+    /**
+     * The series files of a session as they were listed.
+     */
+    private static final class Listing {
+        private final long modified;
+        private final long listed = System.currentTimeMillis();
+        private final Map<String, List<File>> files;
+
+        private Listing(final long newModified,
+                final Map<String, List<File>> newFiles) {
+            this.modified = newModified;
+            this.files = newFiles;
+        }
+    }
+
+    /**
+     * The size of one series in a session.
+     */
+    private static final class SeriesInfo {
+        private long points = 0;
+        private long bytes = 0;
+    }
+}
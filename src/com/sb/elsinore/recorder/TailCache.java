@@ -0,0 +1,232 @@
+package com.sb.elsinore.recorder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the newest points of each series of the live session in memory,
+ * so the live graph can be drawn without reading the series files.
+ * Each series holds its points in a ring of primitive arrays, points are
+ * dropped once they are older than the maximum age or the ring is full,
+ * and the oldest points of any series are dropped when all of the rings
+ * together go over the total cap.
+ * A read is only answered when none of the points it asks for have been
+ * dropped, otherwise the caller goes to the files.
+ */
+public class TailCache {
+
+    /**
+     * The most points held across every series, 12 bytes each.
+     */
+    public static final int MAX_TOTAL_POINTS = 256 * 1024;
+
+    private final Map<String, Ring> rings = new HashMap<String, Ring>();
+    private long maxAge;
+    private int seriesPoints;
+    private int totalPoints = 0;
+    /**
+     * False once points have been thrown away other than by eviction, a
+     * new series may then have older points in the files.
+     */
+    private boolean complete = true;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param newMaxAge The longest time in milliseconds to keep a point.
+     * @param newSeriesPoints The most points to keep for one series.
+     */
+    public TailCache(final long newMaxAge, final int newSeriesPoints) {
+        this.maxAge = newMaxAge;
+        this.seriesPoints = limit(newSeriesPoints);
+    }
+
+    /**
+     * @param points A number of points per series.
+     * @return The number kept within 1 and the total cap.
+     */
+    private static int limit(final int points) {
+        return Math.min(MAX_TOTAL_POINTS, Math.max(1, points));
+    }
+
+    /**
+     * Change the limits, a change in the number of points per series
+     * empties the cache.
+     * @param newMaxAge The longest time in milliseconds to keep a point.
+     * @param newSeriesPoints The most points to keep for one series.
+     */
+    public synchronized void configure(final long newMaxAge,
+            final int newSeriesPoints) {
+        maxAge = newMaxAge;
+        if (limit(newSeriesPoints) != seriesPoints) {
+            seriesPoints = limit(newSeriesPoints);
+            clear();
+        }
+    }
+
+    /**
+     * Drop every point part way through a session.
+     */
+    public synchronized void clear() {
+        rings.clear();
+        totalPoints = 0;
+        complete = false;
+    }
+
+    /**
+     * Empty the cache for a new session.
+     */
+    public synchronized void reset() {
+        clear();
+        complete = true;
+    }
+
+    /**
+     * Add a point that has been written to a series.
+     * @param series The name of the series.
+     * @param time The time of the point.
+     * @param value The value of the point.
+     */
+    public synchronized void add(final String series, final long time,
+            final float value) {
+        Ring ring = rings.get(series);
+        if (ring == null) {
+            ring = new Ring(seriesPoints);
+            if (!complete) {
+                ring.droppedUpTo = time - 1;
+            }
+            rings.put(series, ring);
+        }
+        while (ring.count > 0 && (ring.count == ring.times.length
+                || ring.oldestTime() < time - maxAge)) {
+            evict(ring);
+        }
+        ring.add(time, value);
+        totalPoints++;
+
+        while (totalPoints > MAX_TOTAL_POINTS) {
+            Ring oldest = null;
+            for (Ring candidate : rings.values()) {
+                if (candidate.count > 0 && (oldest == null
+                        || candidate.oldestTime() < oldest.oldestTime())) {
+                    oldest = candidate;
+                }
+            }
+            evict(oldest);
+        }
+    }
+
+    private void evict(final Ring ring) {
+        ring.removeOldest();
+        totalPoints--;
+        evictions++;
+    }
+
+    /**
+     * Read the points of a series in a time range, if they are all held.
+     * @param series The name of the series.
+     * @param after The start of the range, exclusive.
+     * @param to The end of the range, inclusive.
+     * @param size The most points wanted, 0 or less for any number.
+     * @param visitor The visitor to pass the points to.
+     * @return False if the range isn't held or has more than size points,
+     *  nothing is passed to the visitor then.
+     */
+    public synchronized boolean read(final String series, final long after,
+            final long to, final int size,
+            final SeriesReader.Visitor visitor) {
+        Ring ring = rings.get(series);
+        if (ring == null || after < ring.droppedUpTo) {
+            misses++;
+            return false;
+        }
+        int first = ring.firstAfter(after);
+        int last = to == Long.MAX_VALUE ? ring.count : ring.firstAfter(to);
+        if (size > 0 && last - first > size) {
+            misses++;
+            return false;
+        }
+        hits++;
+        for (int i = first; i < last; i++) {
+            visitor.point(ring.time(i), ring.value(i));
+        }
+        return true;
+    }
+
+    /**
+     * @return The size and hit rate of the cache as a map.
+     */
+    public synchronized Map<String, Object> getMapStatus() {
+        Map<String, Object> status = new HashMap<String, Object>();
+        status.put("series", rings.size());
+        status.put("points", totalPoints);
+        status.put("hits", hits);
+        status.put("misses", misses);
+        status.put("evictions", evictions);
+        return status;
+    }
+
+    /**
+     * The newest points of one series, oldest first.
+     */
+    private static final class Ring {
+        private final long[] times;
+        private final float[] values;
+        private int start = 0;
+        private int count = 0;
+        /**
+         * The time of the newest point that has been dropped, any read
+         * starting before this would be missing points.
+         */
+        private long droppedUpTo = Long.MIN_VALUE;
+
+        private Ring(final int capacity) {
+            this.times = new long[capacity];
+            this.values = new float[capacity];
+        }
+
+        private void add(final long time, final float value) {
+            int slot = (start + count) % times.length;
+            times[slot] = time;
+            values[slot] = value;
+            count++;
+        }
+
+        private void removeOldest() {
+            droppedUpTo = Math.max(droppedUpTo, times[start]);
+            start = (start + 1) % times.length;
+            count--;
+        }
+
+        /**
+         * @param time A time.
+         * @return The position of the first point after the time.
+         */
+        private int firstAfter(final long time) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (time(middle) <= time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private long oldestTime() {
+            return times[start];
+        }
+
+        private long time(final int i) {
+            return times[(start + i) % times.length];
+        }
+
+        private float value(final int i) {
+            return values[(start + i) % values.length];
+        }
+    }
+}
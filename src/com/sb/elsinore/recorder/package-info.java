@@ -0,0 +1,4 @@
+/**
+ * Provides the typed sample feed and the classes that record it.
+ */
+package com.sb.elsinore.recorder;
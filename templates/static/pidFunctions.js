@@ -140,254 +140,313 @@ var sortObjectByKey = function(obj) {
 	return sorted_obj;
 };
 
+/**
+ * Follow the status from the /events stream, or poll /getstatus where the
+ * browser has no EventSource or the server turns the stream down.
+ */
 function waitForMsg() {
 	if (window.disableUpdates) {
 		return false;
 	}
-	jQuery
-			.ajax({
-				type : 'GET',
-				url : '/getstatus',
-				dataType : 'json',
-				async : true,
-				cache : false,
-				timeout : 5000,
-				success : function(data) {
-					if (data == null)
-						return;
-
-					if ("breweryName" in data) {
-						val = data.breweryName;
-						if (val != null && val.length > 0 && val != "") {
-							window.breweryName = val;
-							jQuery("#breweryname").text(val);
-						} else {
-							window.breweryName = "Elsinore";
-							jQuery("#breweryname").text("Elsinore");
-						}
-					}
+	if (window.statusEvents) {
+		// Show what the stream sent while the updates were off
+		if (window.statusData) {
+			updateStatus(window.statusData);
+		}
+		return false;
+	}
+	if (window.EventSource && !window.pollStatus) {
+		followStatus();
+		return false;
+	}
+	jQuery.ajax({
+		type : 'GET',
+		url : '/getstatus',
+		dataType : 'json',
+		async : true,
+		// Left to the browser cache, which revalidates with the ETag as
+		// the server sends no-cache
+		timeout : 5000,
+		success : updateStatus
+	});
+	setTimeout(waitForMsg, 1000);
+
+}
+
+/**
+ * Open the /events stream. The first event is the whole status, then each
+ * "delta" event has the top level entries that changed, a null entry has
+ * gone. The browser reconnects by itself after a dropped connection, but
+ * not after an error status such as 503 when too many streams are open,
+ * so it goes back to polling then.
+ */
+function followStatus() {
+	var source = new EventSource('/events');
+	window.statusEvents = source;
+	source.addEventListener('status', function(event) {
+		window.statusData = JSON.parse(event.data);
+		if (!window.disableUpdates) {
+			updateStatus(window.statusData);
+		}
+	});
+	source.addEventListener('delta', function(event) {
+		var delta = JSON.parse(event.data);
+		if (window.statusData == null) {
+			window.statusData = {};
+		}
+		$.each(delta, function(key, value) {
+			if (value == null) {
+				delete window.statusData[key];
+			} else {
+				window.statusData[key] = value;
+			}
+		});
+		if (!window.disableUpdates) {
+			updateStatus(window.statusData);
+		}
+	});
+	source.onerror = function() {
+		if (source.readyState == EventSource.CLOSED) {
+			source.close();
+			window.statusEvents = null;
+			window.pollStatus = true;
+			waitForMsg();
+		}
+	};
+}
 
-					// Check for an error message
-					if ("message" in data) {
-						val = data.message;
+function updateStatus(data) {
+	if (data == null)
+		return;
 
-						if (val.length > 0) {
-							val += "<br/><button id='clearMessage' class='holo-button modeclass' "
-									+ "onclick='clearStatus(); return false;'>"
-									+ $.i18n.prop("CLEAR") + "</button>";
-							jQuery("#messages-body").html(val);
+	if ("breweryName" in data) {
+		val = data.breweryName;
+		if (val != null && val.length > 0 && val != "") {
+			window.breweryName = val;
+			jQuery("#breweryname").text(val);
+		} else {
+			window.breweryName = "Elsinore";
+			jQuery("#breweryname").text("Elsinore");
+		}
+	}
 
-							if (!$("#messages").is(":visible")) {
-								jQuery("#messages").css('display', 'block');
-								jQuery("#messages").toggleClass("hidden", false);
+	// Check for an error message
+	if ("message" in data) {
+		val = data.message;
+
+		if (val.length > 0) {
+			val += "<br/><button id='clearMessage' class='holo-button modeclass' "
+					+ "onclick='clearStatus(); return false;'>"
+					+ $.i18n.prop("CLEAR") + "</button>";
+			jQuery("#messages-body").html(val);
+
+			if (!$("#messages").is(":visible")) {
+				jQuery("#messages").css('display', 'block');
+				jQuery("#messages").toggleClass("hidden", false);
+			}
+		} else {
+			if ($("#messages").is(":visible")) {
+				jQuery("#messages").toggleClass("hidden", true);;
+			}
+		}
+	}
+
+	if ("brewday" in data) {
+		val = data.brewday;
+		$.each(val, function(timerName, timerStatus) {
+			checkTimer(timerStatus, timerName);
+		});
+
+	}
+
+	if ("mash" in data) {
+		val = data.mash;
+		if (val != 'Unset') {
+
+			val = sortObjectByKey(val);
+
+			$.each(val,
+					function(mashPID, mashDetails) {
+						// Iterate the list of mash Lists
+						addMashTable(mashPID);
+						$.each(mashDetails, function(mashStep,
+								mashData) {
+							if (mashStep != 'pid') {
+								addMashStep(mashStep, mashData,
+										mashPID);
 							}
+						});
+
+						if ($("#mashTable" + mashPID).find(
+								'.success').length > 0) {
+							$("#mashButton-" + mashPID).text(
+									$.i18n.prop("DISABLE"));
 						} else {
-							if ($("#messages").is(":visible")) {
-								jQuery("#messages").toggleClass("hidden", true);;
-							}
+							$("#mashButton-" + mashPID).text(
+									$.i18n.prop("ACTIVATE"));
 						}
-					}
 
-					if ("brewday" in data) {
-						val = data.brewday;
-						$.each(val, function(timerName, timerStatus) {
-							checkTimer(timerStatus, timerName);
-						});
+					});
+		}
+	}
 
-					}
+	if ("pumps" in data) {
+		val = data.pumps;
+		$
+				.each(
+						val,
+						function(pumpName, pumpStatus) {
+							// enable or disable the pump as
+							// required
+							if (pumpStatus) {
+								jQuery('button[id^="'
+										+ pumpName + '"]')[0].style.background = "red";
+								jQuery('button[id^="'
+										+ pumpName + '"]')[0].innerHTML = pumpName
+										.replace("_", " ")
+										+ " "
+										+ $.i18n
+												.prop("PUMP_ON");
+							} else {
+								jQuery('button[id^="'
+										+ pumpName + '"]')[0].style.background = "#666666";
+								jQuery('button[id^="'
+										+ pumpName + '"]')[0].innerHTML = pumpName
+										.replace("_", " ")
+										+ " "
+										+ $.i18n
+												.prop("PUMP_OFF");
+							}
+						});
+	}
 
-					if ("mash" in data) {
-						val = data.mash;
-						if (val != 'Unset') {
-
-							val = sortObjectByKey(val);
-
-							$.each(val,
-									function(mashPID, mashDetails) {
-										// Iterate the list of mash Lists
-										addMashTable(mashPID);
-										$.each(mashDetails, function(mashStep,
-												mashData) {
-											if (mashStep != 'pid') {
-												addMashStep(mashStep, mashData,
-														mashPID);
-											}
-										});
-
-										if ($("#mashTable" + mashPID).find(
-												'.success').length > 0) {
-											$("#mashButton-" + mashPID).text(
-													$.i18n.prop("DISABLE"));
-										} else {
-											$("#mashButton-" + mashPID).text(
-													$.i18n.prop("ACTIVATE"));
-										}
+	if (window.disableUpdates) {
+		return false;
+	}
 
-									});
-						}
-					}
+	if ("vessels" in data) {
+		val = data.vessels;
 
-					if ("pumps" in data) {
-						val = data.pumps;
-						$
-								.each(
-										val,
-										function(pumpName, pumpStatus) {
-											// enable or disable the pump as
-											// required
-											if (pumpStatus) {
-												jQuery('button[id^="'
-														+ pumpName + '"]')[0].style.background = "red";
-												jQuery('button[id^="'
-														+ pumpName + '"]')[0].innerHTML = pumpName
-														.replace("_", " ")
-														+ " "
-														+ $.i18n
-																.prop("PUMP_ON");
-											} else {
-												jQuery('button[id^="'
-														+ pumpName + '"]')[0].style.background = "#666666";
-												jQuery('button[id^="'
-														+ pumpName + '"]')[0].innerHTML = pumpName
-														.replace("_", " ")
-														+ " "
-														+ $.i18n
-																.prop("PUMP_OFF");
-											}
-										});
-					}
+		if (!("system" in data.vessels)
+				&& !("System" in data.vessels)) {
+			// No System temperature, add a header to add it in.
+			var sysTemp = $("[id=tempProbes] > [id=System]");
+			if (sysTemp.length == 0 && !data.locked) {
+				var sysHtml = '<div id="System" class="holo-content controller panel panel-primary Temp">'
+						+ '<div id="System-title" class="title panel-heading "'
+						+ 'onclick="enableSystem(this);" style="cursor: pointer;">'
+						+ $.i18n.prop("SYSTEM")
+						+ '</div>'
+						+ '</div>';
 
-					if (window.disableUpdates) {
-						return false;
-					}
+				$("[id=tempProbes]").append(sysHtml)
+			}
+			if ($("[id=tempProbes] > [id=System] > div").length == 1
+					&& data.locked) {
+				sysTemp.remove();
+			}
+		}
+		$
+				.each(
+						val,
+						function(vesselName, vesselStatus) {
+
+							// This should always be there
+							if ("name" in vesselStatus) {
+								vesselName = vesselStatus.name;
+								if (vesselName == $.i18n
+										.prop("SYSTEM")
+										&& $('[id=System-tempGauge]').length == 0) {
+									return;
+								}
+							}
 
-					if ("vessels" in data) {
-						val = data.vessels;
-
-						if (!("system" in data.vessels)
-								&& !("System" in data.vessels)) {
-							// No System temperature, add a header to add it in.
-							var sysTemp = $("[id=tempProbes] > [id=System]");
-							if (sysTemp.length == 0 && !data.locked) {
-								var sysHtml = '<div id="System" class="holo-content controller panel panel-primary Temp">'
-										+ '<div id="System-title" class="title panel-heading "'
-										+ 'onclick="enableSystem(this);" style="cursor: pointer;">'
-										+ $.i18n.prop("SYSTEM")
-										+ '</div>'
-										+ '</div>';
-
-								$("[id=tempProbes]").append(sysHtml)
+							if ("tempprobe" in vesselStatus) {
+								updateTempProbe(vesselName,
+										vesselStatus.tempprobe);
 							}
-							if ($("[id=tempProbes] > [id=System] > div").length == 1
-									&& data.locked) {
-								sysTemp.remove();
+
+							if ("pidstatus" in vesselStatus) {
+
+								addMashTable(vesselName);
+
+								updatePIDStatus(vesselName,
+										vesselStatus.pidstatus);
+
+								// Hide the gauge if needs be
+								if (vesselStatus.pidstatus.mode == "off") {
+									$(
+											'div[id^="'
+													+ vesselName
+													+ '-gage"]')
+											.toggleClass("hidden", true);
+								} else {
+									$(
+											'div[id^="'
+													+ vesselName
+													+ '-gage"]')
+											.toggleClass("hidden", false);
+									var duty = vesselStatus.pidstatus.duty;
+									if ("actualduty" in vesselStatus.pidstatus) {
+										duty = vesselStatus.pidstatus.actualduty;
+									}
+
+									if (duty < 0) {
+										if (Gauges[vesselName].config.textMax != "0") {
+											Gauges[vesselName].config.levelColors = [
+													"#0033CC",
+													"#CC00CC",
+													"#a9d70b" ];
+										}
+										Gauges[vesselName]
+												.refreshBoth(
+														duty,
+														-100,
+														"0");
+									} else {
+										if (Gauges[vesselName].config.textMax != "0") {
+											Gauges[vesselName].config.levelColors = [
+													"#a9d70b",
+													"#f9c802",
+													"#ff0000" ];
+										}
+										Gauges[vesselName]
+												.refreshBoth(
+														duty,
+														"0",
+														100);
+									}
+
+								}
+							} else {
+								hidePIDForm(vesselName);
 							}
-						}
-						$
-								.each(
-										val,
-										function(vesselName, vesselStatus) {
-
-											// This should always be there
-											if ("name" in vesselStatus) {
-												vesselName = vesselStatus.name;
-												if (vesselName == $.i18n
-														.prop("SYSTEM")
-														&& $('[id=System-tempGauge]').length == 0) {
-													return;
-												}
-											}
-
-											if ("tempprobe" in vesselStatus) {
-												updateTempProbe(vesselName,
-														vesselStatus.tempprobe);
-											}
-
-											if ("pidstatus" in vesselStatus) {
-
-												addMashTable(vesselName);
-
-												updatePIDStatus(vesselName,
-														vesselStatus.pidstatus);
-
-												// Hide the gauge if needs be
-												if (vesselStatus.pidstatus.mode == "off") {
-													$(
-															'div[id^="'
-																	+ vesselName
-																	+ '-gage"]')
-															.toggleClass("hidden", true);
-												} else {
-													$(
-															'div[id^="'
-																	+ vesselName
-																	+ '-gage"]')
-															.toggleClass("hidden", false);
-													var duty = vesselStatus.pidstatus.duty;
-													if ("actualduty" in vesselStatus.pidstatus) {
-														duty = vesselStatus.pidstatus.actualduty;
-													}
-
-													if (duty < 0) {
-														if (Gauges[vesselName].config.textMax != "0") {
-															Gauges[vesselName].config.levelColors = [
-																	"#0033CC",
-																	"#CC00CC",
-																	"#a9d70b" ];
-														}
-														Gauges[vesselName]
-																.refreshBoth(
-																		duty,
-																		-100,
-																		"0");
-													} else {
-														if (Gauges[vesselName].config.textMax != "0") {
-															Gauges[vesselName].config.levelColors = [
-																	"#a9d70b",
-																	"#f9c802",
-																	"#ff0000" ];
-														}
-														Gauges[vesselName]
-																.refreshBoth(
-																		duty,
-																		"0",
-																		100);
-													}
-
-												}
-											} else {
-												hidePIDForm(vesselName);
-											}
-
-											if ("volume" in vesselStatus) {
-												updateVolumeStatus(vesselName,
-														vesselStatus.volume);
-											} else {
-												jQuery(
-														"#" + vesselName
-																+ "-volume")
-														.text(
-																$.i18n
-																		.prop("NO_VOLUME"));
-											}
-										});
-					}
 
-					if ("locked" in data) {
-						if (window.locked == undefined) {
-							window.locked = !data.locked;
-							toggleEdit(false);
-							window.locked = data.locked;
-						}
-					}
+							if ("volume" in vesselStatus) {
+								updateVolumeStatus(vesselName,
+										vesselStatus.volume);
+							} else {
+								jQuery(
+										"#" + vesselName
+												+ "-volume")
+										.text(
+												$.i18n
+														.prop("NO_VOLUME"));
+							}
+						});
+	}
 
-					vessel = null;
-					data = null;
-					fixWebkitHeightBug();
-				}
-			});
-	setTimeout(waitForMsg, 1000);
+	if ("locked" in data) {
+		if (window.locked == undefined) {
+			window.locked = !data.locked;
+			toggleEdit(false);
+			window.locked = data.locked;
+		}
+	}
 
+	vessel = null;
+	data = null;
+	fixWebkitHeightBug();
 }
 
 function addMashTable(vesselName) {
@@ -2298,6 +2357,17 @@ function changeScale() {
 	location.reload();
 }
 
+/**
+ * Turn the graph cursors from the last response into "series:time" pairs.
+ */
+function encodeCursors(cursors) {
+	var pairs = [];
+	for (var series in cursors) {
+		pairs.push(series + ":" + cursors[series]);
+	}
+	return pairs.join(",");
+}
+
 function embedGraph(vessel) {
 	vessel = vessel.trim();
 	if ($('#' + vessel + "-graph_title")[0].innerHTML == $.i18n
@@ -2312,6 +2382,7 @@ function embedGraph(vessel) {
 	var alreadyFetched = {};
 	window.updateOnly = false;
 	var chart = null;
+	var cursors = {};
 	$("#" + vessel + "-graph_body").width(300);
 	$("#" + vessel + "-graph_body").height(200);
 	function fetchData() {
@@ -2321,9 +2392,11 @@ function embedGraph(vessel) {
 				series["size"] = {};
 				series["size"]["height"] = 150;
 				chart = c3.generate(series);
-			} else {
-				chart.load(series);
+			} else if (series.columns.length > 0) {
+				// Only the new points are sent, add them to the end
+				chart.flow({columns: series.columns, length: 0});
 			}
+			cursors = series.cursors;
 			window.updateOnly = true;
 		}
 
@@ -2334,6 +2407,7 @@ function embedGraph(vessel) {
 		updateParams["vessel"] = vessel;
 		updateParams["bindto"] = vessel + "-graph_body";
 		updateParams["updates"] = window.updateOnly;
+		updateParams["cursors"] = encodeCursors(cursors);
 		
 		$.ajax({
 			url : "/graph-data/",